@@ -9,9 +9,12 @@ import javafx.stage.Stage;
 import javafx.stage.WindowEvent;
 import name.azzurite.mcserver.config.AppConfig;
 import name.azzurite.mcserver.console.LocalConsole;
+import name.azzurite.mcserver.dedup.DedupSyncClient;
 import name.azzurite.mcserver.ftp.FTPSyncClient;
 import name.azzurite.mcserver.server.LocalServerService;
 import name.azzurite.mcserver.server.SyncingLocalServer;
+import name.azzurite.mcserver.sync.HashCache;
+import name.azzurite.mcserver.sync.RequestCost;
 import name.azzurite.mcserver.sync.ServerInfoService;
 import name.azzurite.mcserver.sync.ServerSynchronizer;
 import name.azzurite.mcserver.sync.SyncClient;
@@ -26,9 +29,9 @@ import name.azzurite.mcserver.view.StartMinecraftButton;
 import name.azzurite.mcserver.view.UpdateDisplay;
 import name.azzurite.mcserver.view.override.DownloadFilesOverride;
 import name.azzurite.mcserver.view.override.OverrideMenu;
-import name.azzurite.mcserver.view.override.SetOfflineOverride;
+import name.azzurite.mcserver.view.override.RestoreBackupOverride;
+import name.azzurite.mcserver.view.override.RollBackOverride;
 import name.azzurite.mcserver.view.override.UploadFilesOverride;
-import name.azzurite.mcserver.view.override.UploadInProgressOverride;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -67,10 +70,6 @@ public class MinecraftServerSync extends Application {
 			IOException {
 		OverrideMenu overrideMenu = FXUtil.createFXMLController(OverrideMenu.class, unused -> new OverrideMenu(serverInfoService));
 
-		SetOfflineOverride setOfflineOverride =
-				FXUtil.createFXMLController(SetOfflineOverride.class, unused -> new SetOfflineOverride(serverService));
-		overrideMenu.addOverrideButton(setOfflineOverride);
-
 		DownloadFilesOverride downloadFilesOverride =
 				FXUtil.createFXMLController(DownloadFilesOverride.class, unused -> new DownloadFilesOverride(serverService));
 		overrideMenu.addOverrideButton(downloadFilesOverride);
@@ -79,9 +78,13 @@ public class MinecraftServerSync extends Application {
 				FXUtil.createFXMLController(UploadFilesOverride.class, unused -> new UploadFilesOverride(serverService));
 		overrideMenu.addOverrideButton(uploadFilesOverride);
 
-		UploadInProgressOverride uploadInProgressOverride =
-				FXUtil.createFXMLController(UploadInProgressOverride.class, unused -> new UploadInProgressOverride(serverService));
-		overrideMenu.addOverrideButton(uploadInProgressOverride);
+		RestoreBackupOverride restoreBackupOverride =
+				FXUtil.createFXMLController(RestoreBackupOverride.class, unused -> new RestoreBackupOverride(serverService));
+		overrideMenu.addOverrideButton(restoreBackupOverride);
+
+		RollBackOverride rollBackOverride =
+				FXUtil.createFXMLController(RollBackOverride.class, unused -> new RollBackOverride(serverService));
+		overrideMenu.addOverrideButton(rollBackOverride);
 
 		return overrideMenu;
 	}
@@ -127,8 +130,13 @@ public class MinecraftServerSync extends Application {
 			LOGGER.info("Skipping version check.");
 		}
 
-		SyncClient syncClient = new FTPSyncClient(appConfig);
-		sync = new ServerSynchronizer(appConfig, syncClient);
+		HashCache hashCache = HashCache.load(appConfig.getBaseServerPath(), appConfig.getHashCachePath());
+		RequestCost requestCost = RequestCost.load(appConfig.getRequestCostPath());
+		FTPSyncClient ftpSyncClient = new FTPSyncClient(appConfig, hashCache, requestCost);
+		SyncClient syncClient = appConfig.isDedupStorage()
+				? new DedupSyncClient(ftpSyncClient, ftpSyncClient, appConfig, hashCache)
+				: ftpSyncClient;
+		sync = new ServerSynchronizer(appConfig, syncClient, hashCache, requestCost);
 
 		serverService = new LocalServerService(appConfig, sync, console);
 		primaryStage.setOnCloseRequest(this::preventCloseUntilServerShutdown);
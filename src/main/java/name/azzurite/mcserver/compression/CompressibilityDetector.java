@@ -0,0 +1,183 @@
+package name.azzurite.mcserver.compression;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+import com.jakewharton.byteunits.BinaryByteUnit;
+
+/**
+ * Estimates how much a file would shrink when compressed, so already compressed data is not compressed again.
+ * <p>
+ * Files starting with the signature of a compressed format, like the gzipped NBT of {@code level.dat} and player data, are stored.
+ * Other files are estimated by compressing a few samples with the fastest deflate level. Region files mostly consist of zlib
+ * compressed chunks, only the padding between them still compresses, so they are compressed with the fastest level of the codec.
+ */
+public class CompressibilityDetector {
+
+	public enum Compressibility {
+		/** compressing would save less than the minimum gain, the file is stored */
+		INCOMPRESSIBLE,
+		/** only part of the file compresses, the fastest level of the codec saves nearly as much as a slow one */
+		LOW,
+		NORMAL
+	}
+
+	private static final int SAMPLE_SIZE = 65536;
+
+	private static final int SAMPLE_COUNT = 3;
+
+	private static final double LOW_GAIN = 0.35;
+
+	private static final int[][] COMPRESSED_SIGNATURES = {
+			{0x1F, 0x8B}, // gzip
+			{0x50, 0x4B, 0x03, 0x04}, // zip
+			{0x28, 0xB5, 0x2F, 0xFD}, // zstd
+			{0xFD, 0x37, 0x7A, 0x58, 0x5A}, // xz
+			{0x42, 0x5A, 0x68}, // bzip2
+			{0x89, 0x50, 0x4E, 0x47}, // png
+	};
+
+	private final double minGain;
+
+	private final Counter incompressible = new Counter();
+
+	private final Counter low = new Counter();
+
+	private final Counter normal = new Counter();
+
+	private final LongAdder detectionNanos = new LongAdder();
+
+	/**
+	 * @param minGain the fraction of the size compressing has to save at least, otherwise the file is stored
+	 */
+	public CompressibilityDetector(double minGain) {
+		this.minGain = minGain;
+	}
+
+	private static boolean hasCompressedSignature(byte[] start, int length) {
+		for (int[] signature : COMPRESSED_SIGNATURES) {
+			if (length < signature.length) {
+				continue;
+			}
+			boolean matches = true;
+			for (int i = 0; i < signature.length && matches; ++i) {
+				matches = (start[i] & 0xFF) == signature[i];
+			}
+			if (matches) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public Compressibility detect(File file) throws IOException {
+		long start = System.nanoTime();
+		Compressibility compressibility;
+		try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+			compressibility = detect(in);
+		} finally {
+			detectionNanos.add(System.nanoTime() - start);
+		}
+
+		long size = file.length();
+		switch (compressibility) {
+			case INCOMPRESSIBLE:
+				incompressible.add(size);
+				break;
+			case LOW:
+				low.add(size);
+				break;
+			default:
+				normal.add(size);
+		}
+		return compressibility;
+	}
+
+	private Compressibility detect(RandomAccessFile in) throws IOException {
+		long size = in.length();
+		byte[] sample = new byte[SAMPLE_SIZE];
+		int sampleLength = readSample(in, 0, sample);
+		if (sampleLength == 0 || hasCompressedSignature(sample, sampleLength)) {
+			return Compressibility.INCOMPRESSIBLE;
+		}
+
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		byte[] output = new byte[SAMPLE_SIZE];
+		long sampledBytes = 0;
+		long compressedBytes = 0;
+		try {
+			for (int i = 0; i < SAMPLE_COUNT; ++i) {
+				long position = (size <= SAMPLE_SIZE * SAMPLE_COUNT) ? (long) i * SAMPLE_SIZE : (size - SAMPLE_SIZE) / (SAMPLE_COUNT - 1) * i;
+				if (i > 0) {
+					sampleLength = readSample(in, position, sample);
+				}
+				if (sampleLength == 0) {
+					break;
+				}
+				deflater.reset();
+				deflater.setInput(sample, 0, sampleLength);
+				deflater.finish();
+				while (!deflater.finished()) {
+					compressedBytes += deflater.deflate(output);
+				}
+				sampledBytes += sampleLength;
+			}
+		} finally {
+			deflater.end();
+		}
+
+		double gain = 1 - (double) compressedBytes / sampledBytes;
+		if (gain < minGain) {
+			return Compressibility.INCOMPRESSIBLE;
+		}
+		return (gain < LOW_GAIN) ? Compressibility.LOW : Compressibility.NORMAL;
+	}
+
+	private static int readSample(RandomAccessFile in, long position, byte[] sample) throws IOException {
+		in.seek(position);
+		int length = 0;
+		int read;
+		while (length < sample.length && (read = in.read(sample, length, sample.length - length)) >= 0) {
+			length += read;
+		}
+		return length;
+	}
+
+	public void reset() {
+		incompressible.reset();
+		low.reset();
+		normal.reset();
+		detectionNanos.reset();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("stored %s, fast compressed %s, compressed %s, detection took %d ms", incompressible, low, normal,
+				detectionNanos.sum() / 1000000);
+	}
+
+	private static class Counter {
+
+		private final LongAdder files = new LongAdder();
+
+		private final LongAdder bytes = new LongAdder();
+
+		void add(long size) {
+			files.increment();
+			bytes.add(size);
+		}
+
+		void reset() {
+			files.reset();
+			bytes.reset();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d files (%.1f MiB)", files.sum(), BinaryByteUnit.BYTES.toMebibytes(bytes.sum() * 10) / 10.0);
+		}
+	}
+}
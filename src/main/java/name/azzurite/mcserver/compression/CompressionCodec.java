@@ -0,0 +1,26 @@
+package name.azzurite.mcserver.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A compression algorithm for the content of server archives. The id is stored in the archive header, so an archive can always be
+ * decompressed, whatever codec is configured at the time.
+ */
+public interface CompressionCodec {
+
+	int getId();
+
+	/**
+	 * @return a stream compressing into {@code out}, closing it finishes the compressed data and closes {@code out}
+	 */
+	OutputStream compress(OutputStream out) throws IOException;
+
+	InputStream decompress(InputStream in) throws IOException;
+
+	/**
+	 * @return the fastest variant of this codec, for data that barely compresses
+	 */
+	CompressionCodec getFastest();
+}
@@ -0,0 +1,56 @@
+package name.azzurite.mcserver.compression;
+
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+import org.apache.commons.lang3.StringUtils;
+
+public final class CompressionCodecs {
+
+	private static final int DEFAULT_ZSTD_LEVEL = 3;
+
+	private static final String LONG_WINDOW_OPTION = "long";
+
+	private CompressionCodecs() {}
+
+	/**
+	 * @param spec the name of the codec, optionally followed by a colon and the level, for example {@code zstd:19} or {@code stored}.
+	 * zstd can be followed by {@code :long} to use a long window.
+	 */
+	public static CompressionCodec parse(String spec) {
+		String name = StringUtils.substringBefore(spec, ":").trim();
+		String options = StringUtils.substringAfter(spec, ":");
+		String level = StringUtils.substringBefore(options, ":").trim();
+		String option = StringUtils.substringAfter(options, ":").trim();
+		if (!option.isEmpty() && !(name.equals("zstd") && option.equals(LONG_WINDOW_OPTION))) {
+			throw new IllegalArgumentException("Unknown compression option in '" + spec + "'");
+		}
+		try {
+			switch (name) {
+				case "stored":
+					return new StoredCodec();
+				case "deflate":
+					return new DeflateCodec(level.isEmpty() ? Deflater.DEFAULT_COMPRESSION : Integer.parseInt(level));
+				case "zstd":
+					return new ZstdCodec(level.isEmpty() ? DEFAULT_ZSTD_LEVEL : Integer.parseInt(level), !option.isEmpty());
+				default:
+					throw new IllegalArgumentException("Unknown compression codec '" + spec + "'");
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid compression level in '" + spec + "'", e);
+		}
+	}
+
+	static CompressionCodec forId(int id) throws IOException {
+		switch (id) {
+			case StoredCodec.ID:
+				return new StoredCodec();
+			case DeflateCodec.ID:
+				return new DeflateCodec(Deflater.DEFAULT_COMPRESSION);
+			case ZstdCodec.ID:
+				return new ZstdCodec(DEFAULT_ZSTD_LEVEL);
+			default:
+				throw new IOException("Archive was compressed with unknown codec " + id);
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package name.azzurite.mcserver.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Deflate, as used by zip files. {@link ServerArchive} writes deflated archives as plain zip files, so older versions can still read
+ * them.
+ */
+public class DeflateCodec implements CompressionCodec {
+
+	static final int ID = 1;
+
+	private final int level;
+
+	/**
+	 * @param level 0 to 9, or {@link Deflater#DEFAULT_COMPRESSION}
+	 */
+	public DeflateCodec(int level) {
+		if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+			throw new IllegalArgumentException("Invalid deflate level " + level);
+		}
+		this.level = level;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	@Override
+	public int getId() {
+		return ID;
+	}
+
+	@Override
+	public OutputStream compress(OutputStream out) {
+		Deflater deflater = new Deflater(level);
+		return new DeflaterOutputStream(out, deflater) {
+			@Override
+			public void close() throws IOException {
+				super.close();
+				deflater.end();
+			}
+		};
+	}
+
+	@Override
+	public InputStream decompress(InputStream in) {
+		return new InflaterInputStream(in);
+	}
+
+	@Override
+	public CompressionCodec getFastest() {
+		return new DeflateCodec(Deflater.BEST_SPEED);
+	}
+
+	@Override
+	public String toString() {
+		return "deflate:" + level;
+	}
+}
@@ -0,0 +1,206 @@
+package name.azzurite.mcserver.compression;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import name.azzurite.mcserver.compression.CompressibilityDetector.Compressibility;
+import name.azzurite.mcserver.util.OnlyContentZipEntrySource;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.zeroturnaround.zip.ZipEntrySource;
+import org.zeroturnaround.zip.ZipUtil;
+
+/**
+ * The archives the server files are uploaded in.
+ * <p>
+ * Deflated archives are plain zip files. Archives with any other codec start with a header naming the codec, followed by the
+ * compressed entries, each one its path, size and content. Both kinds are told apart by their first bytes, so archives written with
+ * a different configuration or by an older version can always be extracted.
+ */
+public final class ServerArchive {
+
+	private static final int MAGIC = 0x4D535341; // "MSSA"
+
+	private static final int VERSION = 1;
+
+	private static final int ZIP_SIGNATURE = 0x504B; // "PK"
+
+	private ServerArchive() {}
+
+	/**
+	 * Writes the archive to {@code out} without closing it.
+	 */
+	public static void pack(ZipEntrySource[] entries, CompressionCodec codec, OutputStream out) throws IOException {
+		pack(entries, codec, null, out);
+	}
+
+	/**
+	 * Writes the archive to {@code out} without closing it. Entries the detector finds to be already compressed are stored, entries
+	 * that barely compress use the fastest variant of the codec. In a zip file this is decided for every entry, other archives are
+	 * only stored or compressed faster when all their entries are.
+	 *
+	 * @param detector {@code null} to compress every entry with the codec
+	 */
+	public static void pack(ZipEntrySource[] entries, CompressionCodec codec, CompressibilityDetector detector, OutputStream out)
+			throws IOException {
+		Compressibility[] compressibilities = new Compressibility[entries.length];
+		for (int i = 0; i < entries.length; ++i) {
+			compressibilities[i] = detect(entries[i], detector);
+		}
+
+		if (codec instanceof DeflateCodec) {
+			packZip(entries, compressibilities, ((DeflateCodec) codec).getLevel(), out);
+			return;
+		}
+
+		CompressionCodec archiveCodec = codec;
+		if (entries.length > 0 && Arrays.stream(compressibilities).allMatch(Compressibility.INCOMPRESSIBLE::equals)) {
+			archiveCodec = new StoredCodec();
+		} else if (entries.length > 0 && Arrays.stream(compressibilities).noneMatch(Compressibility.NORMAL::equals)) {
+			archiveCodec = codec.getFastest();
+		}
+
+		DataOutputStream header = new DataOutputStream(out);
+		header.writeInt(MAGIC);
+		header.writeByte(VERSION);
+		header.writeByte(archiveCodec.getId());
+		header.flush();
+		try (DataOutputStream compressed = new DataOutputStream(
+				new BufferedOutputStream(archiveCodec.compress(new CloseShieldOutputStream(out))))) {
+			for (ZipEntrySource entry : entries) {
+				try (InputStream in = entry.getInputStream()) {
+					if (in == null) {
+						continue;
+					}
+					long size = entry.getEntry().getSize();
+					compressed.writeBoolean(true);
+					compressed.writeUTF(entry.getPath());
+					compressed.writeLong(size);
+					if (IOUtils.copyLarge(in, compressed, 0, size) != size) {
+						throw new IOException(entry.getPath() + " changed while it was compressed");
+					}
+				}
+			}
+			compressed.writeBoolean(false);
+		}
+	}
+
+	private static Compressibility detect(ZipEntrySource entry, CompressibilityDetector detector) throws IOException {
+		if (detector == null || !(entry instanceof OnlyContentZipEntrySource)) {
+			return Compressibility.NORMAL;
+		}
+		File file = ((OnlyContentZipEntrySource) entry).getFile();
+		return file.isDirectory() ? Compressibility.NORMAL : detector.detect(file);
+	}
+
+	private static void packZip(ZipEntrySource[] entries, Compressibility[] compressibilities, int level, OutputStream out)
+			throws IOException {
+		ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new CloseShieldOutputStream(out)));
+		for (int i = 0; i < entries.length; ++i) {
+			ZipEntrySource entry = entries[i];
+			ZipEntry zipEntry = entry.getEntry();
+			if (compressibilities[i] == Compressibility.INCOMPRESSIBLE) {
+				storeUncompressed(entry, zipEntry);
+			}
+			zip.setLevel((compressibilities[i] == Compressibility.LOW) ? Deflater.BEST_SPEED : level);
+			zip.putNextEntry(zipEntry);
+			try (InputStream in = entry.getInputStream()) {
+				if (in != null) {
+					IOUtils.copy(in, zip);
+				}
+			}
+			zip.closeEntry();
+		}
+		zip.close();
+	}
+
+	/**
+	 * Stored zip entries need their size and checksum before their content, so the content is read twice. If it changes in between,
+	 * the zip stream fails when the entry is closed.
+	 */
+	private static void storeUncompressed(ZipEntrySource entry, ZipEntry zipEntry) throws IOException {
+		CRC32 crc = new CRC32();
+		long size;
+		try (InputStream in = entry.getInputStream()) {
+			if (in == null) {
+				return;
+			}
+			size = IOUtils.copyLarge(new CheckedInputStream(in, crc), NullOutputStream.NULL_OUTPUT_STREAM);
+		}
+		zipEntry.setMethod(ZipEntry.STORED);
+		zipEntry.setSize(size);
+		zipEntry.setCompressedSize(size);
+		zipEntry.setCrc(crc.getValue());
+	}
+
+	public static void pack(ZipEntrySource[] entries, CompressionCodec codec, File archive) throws IOException {
+		pack(entries, codec, null, archive);
+	}
+
+	public static void pack(ZipEntrySource[] entries, CompressionCodec codec, CompressibilityDetector detector, File archive)
+			throws IOException {
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(archive.toPath()))) {
+			pack(entries, codec, detector, out);
+		}
+	}
+
+	/**
+	 * Extracts the archive read from {@code in} into the directory, without closing {@code in}.
+	 */
+	public static void unpack(InputStream in, File directory) throws IOException {
+		BufferedInputStream bufferedIn = new BufferedInputStream(new CloseShieldInputStream(in));
+		bufferedIn.mark(4);
+		int magic = new DataInputStream(bufferedIn).readInt();
+		bufferedIn.reset();
+		if ((magic >>> 16) == ZIP_SIGNATURE) {
+			ZipUtil.unpack(bufferedIn, directory);
+			return;
+		}
+		if (magic != MAGIC) {
+			throw new IOException("Not a server archive");
+		}
+
+		DataInputStream header = new DataInputStream(bufferedIn);
+		header.readInt();
+		int version = header.readUnsignedByte();
+		if (version != VERSION) {
+			throw new IOException("Unknown server archive version " + version);
+		}
+		CompressionCodec codec = CompressionCodecs.forId(header.readUnsignedByte());
+		Path directoryPath = directory.toPath().normalize();
+		try (DataInputStream entries = new DataInputStream(new BufferedInputStream(codec.decompress(bufferedIn)))) {
+			while (entries.readBoolean()) {
+				String path = entries.readUTF();
+				long size = entries.readLong();
+				Path file = directoryPath.resolve(path).normalize();
+				if (!file.startsWith(directoryPath)) {
+					throw new IOException("Archive entry " + path + " is outside of the target directory");
+				}
+				Files.createDirectories(file.getParent());
+				try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+					if (IOUtils.copyLarge(new BoundedInputStream(entries, size), out) != size) {
+						throw new IOException("Archive entry " + path + " is incomplete");
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package name.azzurite.mcserver.compression;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Stores the content without compression, for files that are already compressed or fast connections.
+ */
+public class StoredCodec implements CompressionCodec {
+
+	static final int ID = 0;
+
+	@Override
+	public int getId() {
+		return ID;
+	}
+
+	@Override
+	public OutputStream compress(OutputStream out) {
+		return out;
+	}
+
+	@Override
+	public InputStream decompress(InputStream in) {
+		return in;
+	}
+
+	@Override
+	public CompressionCodec getFastest() {
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return "stored";
+	}
+}
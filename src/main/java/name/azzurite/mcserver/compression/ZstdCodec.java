@@ -0,0 +1,72 @@
+package name.azzurite.mcserver.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+/**
+ * Zstandard. Compresses better than deflate at the same speed on high levels, and the negative levels are about as fast as LZ4 for
+ * syncing over a fast local network.
+ */
+public class ZstdCodec implements CompressionCodec {
+
+	static final int ID = 2;
+
+	/**
+	 * 128 MiB, the largest window every decoder accepts without being configured for it
+	 */
+	private static final int LONG_WINDOW_LOG = 27;
+
+	private final int level;
+
+	private final boolean longWindow;
+
+	public ZstdCodec(int level) {
+		this(level, false);
+	}
+
+	/**
+	 * @param longWindow finds repetitions across the whole window of 128 MiB instead of only the last few MiB, for large files with
+	 * distant similar parts like the chunks of a region
+	 */
+	public ZstdCodec(int level, boolean longWindow) {
+		if (level < Zstd.minCompressionLevel() || level > Zstd.maxCompressionLevel()) {
+			throw new IllegalArgumentException("Invalid zstd level " + level);
+		}
+		this.level = level;
+		this.longWindow = longWindow;
+	}
+
+	@Override
+	public int getId() {
+		return ID;
+	}
+
+	@Override
+	public OutputStream compress(OutputStream out) throws IOException {
+		ZstdOutputStream compressed = new ZstdOutputStream(out, level);
+		if (longWindow) {
+			compressed.setLong(LONG_WINDOW_LOG);
+		}
+		return compressed;
+	}
+
+	@Override
+	public InputStream decompress(InputStream in) throws IOException {
+		return new ZstdInputStream(in);
+	}
+
+	@Override
+	public CompressionCodec getFastest() {
+		return (level <= 1) ? this : new ZstdCodec(1);
+	}
+
+	@Override
+	public String toString() {
+		return "zstd:" + level + (longWindow ? ":long" : "");
+	}
+}
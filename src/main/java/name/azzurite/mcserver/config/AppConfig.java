@@ -34,7 +34,57 @@ public final class AppConfig {
 	private static final String FTP_PASSWORD_PROPERTY = "ftp.password";
 
 	private static final String FTP_BASE_DIRECTORY_PROPERTY = "ftp.base.directory";
+
+	private static final String FTP_CONNECTIONS_PROPERTY = "ftp.connections";
+
+	private static final int DEFAULT_FTP_CONNECTIONS = 4;
+
+	private static final String UPLOAD_STREAMING_PROPERTY = "upload.streaming";
+
+	private static final String DOWNLOAD_STREAMING_PROPERTY = "download.streaming";
+
+	private static final String STORAGE_DEDUP_PROPERTY = "storage.dedup";
+
+	private static final String COMPRESSION_THREADS_PROPERTY = "compression.threads";
+
+	private static final String DISK_READS_PROPERTY = "disk.reads";
+
+	private static final int DEFAULT_DISK_READS = 2;
+
+	private static final String REGION_COMPRESSION_PROPERTY = "compression.region";
+
+	private static final String BIG_FILE_COMPRESSION_PROPERTY = "compression.big";
+
+	private static final String SMALL_FILE_COMPRESSION_PROPERTY = "compression.small";
+
+	private static final String DEFAULT_COMPRESSION = "deflate";
+
+	private static final String RAW_REGION_COMPRESSION_PROPERTY = "compression.region.raw";
+
+	private static final String COMPRESSION_MIN_GAIN_PROPERTY = "compression.min.gain";
+
+	private static final int DEFAULT_COMPRESSION_MIN_GAIN = 5;
+
+	private static final String BACKUP_KEEP_SNAPSHOTS_PROPERTY = "backup.keep.snapshots";
+
+	private static final int DEFAULT_BACKUP_KEEP_SNAPSHOTS = 10;
+
+	private static final String BACKUP_KEEP_DAYS_PROPERTY = "backup.keep.days";
+
+	private static final String REMOTE_KEEP_GENERATIONS_PROPERTY = "remote.keep.generations";
+
+	private static final int DEFAULT_REMOTE_KEEP_GENERATIONS = 20;
+
+	private static final String HOST_LEASE_SECONDS_PROPERTY = "host.lease.seconds";
+
+	private static final int DEFAULT_HOST_LEASE_SECONDS = 60;
+
+	private static final String BACKGROUND_SYNC_MINUTES_PROPERTY = "background.sync.minutes";
+
+	private static final int DEFAULT_BACKGROUND_SYNC_MINUTES = 15;
+
 	private static final String VERSION_RESOURCE_NAME = "version.txt";
+
 	private static final String VERSION_PROPERTY = "version";
 
 	private final Properties config;
@@ -96,6 +146,22 @@ public final class AppConfig {
 		return getBaseServerPath().resolve("MinecraftServerSync/backup");
 	}
 
+	public Path getBackupSnapshotsPath() {
+		return getBackupPath().resolve("snapshots");
+	}
+
+	public Path getHashCachePath() {
+		return getBaseServerPath().resolve("MinecraftServerSync/hashCache");
+	}
+
+	public Path getRequestCostPath() {
+		return getBaseServerPath().resolve("MinecraftServerSync/requestCost");
+	}
+
+	public Path getTransferJournalPath() {
+		return getBaseServerPath().resolve("MinecraftServerSync/transferJournal");
+	}
+
 	public Optional<String> getMinecraftLauncherPath() {
 		return Optional.ofNullable(config.getProperty(LAUNCHER_PATH_PROPERTY));
 	}
@@ -108,6 +174,24 @@ public final class AppConfig {
 		return Optional.ofNullable(config.getProperty(propertyName));
 	}
 
+	/**
+	 * A property left empty in the config file counts as not set, like the properties the default config file ships empty.
+	 *
+	 * @return the value of the property, at least the minimum, or the default if the property is not set or not a number
+	 */
+	private int getIntProperty(String propertyName, int defaultValue, int minimum) {
+		String value = config.getProperty(propertyName, "").trim();
+		if (value.isEmpty()) {
+			return defaultValue;
+		}
+		try {
+			return Math.max(minimum, Integer.parseInt(value));
+		} catch (NumberFormatException e) {
+			LOGGER.warn("Config property {} is not a number, using {}: {}", propertyName, defaultValue, value);
+			return defaultValue;
+		}
+	}
+
 	public Optional<String> getFtpPort() {
 		return getStringProperty(FTP_PORT_PROPERTY);
 	}
@@ -124,6 +208,85 @@ public final class AppConfig {
 		return getStringProperty(FTP_BASE_DIRECTORY_PROPERTY);
 	}
 
+	public int getFtpConnectionCount() {
+		return getIntProperty(FTP_CONNECTIONS_PROPERTY, DEFAULT_FTP_CONNECTIONS, 1);
+	}
+
+	public boolean isUploadStreaming() {
+		return Boolean.parseBoolean(config.getProperty(UPLOAD_STREAMING_PROPERTY, "true"));
+	}
+
+	public boolean isDownloadStreaming() {
+		return Boolean.parseBoolean(config.getProperty(DOWNLOAD_STREAMING_PROPERTY, "true"));
+	}
+
+	public boolean isDedupStorage() {
+		return Boolean.parseBoolean(config.getProperty(STORAGE_DEDUP_PROPERTY, "false"));
+	}
+
+	public int getCompressionThreadCount() {
+		return getIntProperty(COMPRESSION_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors(), 1);
+	}
+
+	public int getConcurrentDiskReads() {
+		return getIntProperty(DISK_READS_PROPERTY, DEFAULT_DISK_READS, 1);
+	}
+
+	public String getRegionCompression() {
+		return config.getProperty(REGION_COMPRESSION_PROPERTY, DEFAULT_COMPRESSION);
+	}
+
+	public String getBigFileCompression() {
+		return config.getProperty(BIG_FILE_COMPRESSION_PROPERTY, DEFAULT_COMPRESSION);
+	}
+
+	public String getSmallFileCompression() {
+		return config.getProperty(SMALL_FILE_COMPRESSION_PROPERTY, DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * @return whether the chunks of regions are decompressed before the region is compressed as a whole
+	 */
+	public boolean isRawRegionCompression() {
+		return Boolean.parseBoolean(config.getProperty(RAW_REGION_COMPRESSION_PROPERTY, "false"));
+	}
+
+	/**
+	 * @return the fraction of its size compressing a file has to save, otherwise it is stored uncompressed
+	 */
+	public double getCompressionMinGain() {
+		return getIntProperty(COMPRESSION_MIN_GAIN_PROPERTY, DEFAULT_COMPRESSION_MIN_GAIN, 0) / 100.0;
+	}
+
+	public int getBackupKeepSnapshots() {
+		return getIntProperty(BACKUP_KEEP_SNAPSHOTS_PROPERTY, DEFAULT_BACKUP_KEEP_SNAPSHOTS, 1);
+	}
+
+	public int getBackupKeepDays() {
+		return getIntProperty(BACKUP_KEEP_DAYS_PROPERTY, 0, 0);
+	}
+
+	/**
+	 * @return how many of the latest generations of the server files are kept on the server to roll back to
+	 */
+	public int getRemoteKeepGenerations() {
+		return getIntProperty(REMOTE_KEEP_GENERATIONS_PROPERTY, DEFAULT_REMOTE_KEEP_GENERATIONS, 1);
+	}
+
+	/**
+	 * @return how long the host of the server keeps it without renewing, someone else can take over after a crash once it expired
+	 */
+	public int getHostLeaseSeconds() {
+		return getIntProperty(HOST_LEASE_SECONDS_PROPERTY, DEFAULT_HOST_LEASE_SECONDS, 15);
+	}
+
+	/**
+	 * @return how often the server files are uploaded while the server runs, 0 to only upload them when it stops
+	 */
+	public int getBackgroundSyncMinutes() {
+		return getIntProperty(BACKGROUND_SYNC_MINUTES_PROPERTY, DEFAULT_BACKGROUND_SYNC_MINUTES, 0);
+	}
+
 	public String getServerMaxMemory() {
 		String memory = config.getProperty("max.memory");
 		return (memory == null) ? "1408M" : memory;
@@ -11,6 +11,11 @@ import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,6 +31,8 @@ public final class LocalConsole {
 
 	private List<PrintWriter> outRedirects = new ArrayList<>();
 
+	private final List<Consumer<String>> outputListeners = new CopyOnWriteArrayList<>();
+
 	public LocalConsole() throws IOException {
 		systemOut = System.out;
 		redirectOut();
@@ -65,6 +72,28 @@ public final class LocalConsole {
 		});
 	}
 
+	/**
+	 * Sends the message and waits until a line matching the expected output is printed.
+	 *
+	 * @param expectedOutput has to match the whole line, so it cannot be printed by chat messages of players
+	 * @return false if the output was not printed in time
+	 */
+	public boolean sendAndAwait(String message, Pattern expectedOutput, long timeoutMillis) throws InterruptedException {
+		CountDownLatch printed = new CountDownLatch(1);
+		Consumer<String> listener = line -> {
+			if (expectedOutput.matcher(line).matches()) {
+				printed.countDown();
+			}
+		};
+		outputListeners.add(listener);
+		try {
+			send(message);
+			return printed.await(timeoutMillis, TimeUnit.MILLISECONDS);
+		} finally {
+			outputListeners.remove(listener);
+		}
+	}
+
 	public void addOutput(InputStream inputStream) {
 		Thread outRedirectThread = new Thread(() -> {
 			try (Scanner scanner = new Scanner(inputStream)) {
@@ -76,6 +105,7 @@ public final class LocalConsole {
 					});
 
 					systemOut.println(nextLine);
+					outputListeners.forEach(listener -> listener.accept(nextLine));
 				}
 			}
 		});
@@ -0,0 +1,124 @@
+package name.azzurite.mcserver.dedup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+import name.azzurite.mcserver.sync.ManifestFormatException;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Describes one generation of the server files as the list of chunks of every file. The chunks themselves are stored once by their
+ * hash in the {@link ChunkStore}, no matter how many files or generations contain them.
+ * <p>
+ * Stored as a binary file: a magic number, the format version and the number of files, followed by every file with its path, size,
+ * MD5 and chunk list.
+ */
+public class ChunkIndex {
+
+	private static final int MAGIC = 0x4D535349; // "MSSI"
+
+	private static final int VERSION = 1;
+
+	private final Map<String, IndexedFile> files = new TreeMap<>();
+
+	public static ChunkIndex read(InputStream inputStream) throws IOException {
+		try {
+			return readFiles(new DataInputStream(new BufferedInputStream(inputStream)));
+		} catch (EOFException e) {
+			throw new ManifestFormatException("Chunk index is truncated", e);
+		}
+	}
+
+	private static ChunkIndex readFiles(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+			throw new ManifestFormatException("Not a chunk index of a supported version");
+		}
+
+		ChunkIndex index = new ChunkIndex();
+		int fileCount = in.readInt();
+		if (fileCount < 0) {
+			throw new ManifestFormatException("Invalid chunk index file count " + fileCount);
+		}
+		for (int i = 0; i < fileCount; ++i) {
+			String path = in.readUTF();
+			long size = in.readLong();
+			byte[] hash = new byte[in.readUnsignedByte()];
+			in.readFully(hash);
+
+			int chunkCount = in.readInt();
+			if (chunkCount < 0) {
+				throw new ManifestFormatException("Invalid chunk count " + chunkCount + " of " + path);
+			}
+			List<ChunkRef> chunks = new ArrayList<>();
+			long offset = 0;
+			for (int j = 0; j < chunkCount; ++j) {
+				byte[] chunkHash = new byte[in.readUnsignedByte()];
+				in.readFully(chunkHash);
+				int length = in.readInt();
+				if (length < 0) {
+					throw new ManifestFormatException("Invalid chunk length " + length + " in " + path);
+				}
+				chunks.add(new ChunkRef(Hex.encodeHexString(chunkHash), offset, length));
+				offset += length;
+			}
+			index.putFile(new IndexedFile(path, size, hash, chunks));
+		}
+		return index;
+	}
+
+	public void write(OutputStream outputStream) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(files.size());
+		for (IndexedFile file : files.values()) {
+			out.writeUTF(file.getPath());
+			out.writeLong(file.getSize());
+			out.writeByte(file.getHash().length);
+			out.write(file.getHash());
+
+			out.writeInt(file.getChunks().size());
+			for (ChunkRef chunk : file.getChunks()) {
+				byte[] chunkHash = decodeHash(chunk.getHash());
+				out.writeByte(chunkHash.length);
+				out.write(chunkHash);
+				out.writeInt(chunk.getLength());
+			}
+		}
+		out.flush();
+	}
+
+	private static byte[] decodeHash(String hash) throws IOException {
+		try {
+			return Hex.decodeHex(hash.toCharArray());
+		} catch (DecoderException e) {
+			throw new IOException("Invalid chunk hash " + hash, e);
+		}
+	}
+
+	public Optional<IndexedFile> getFile(String path) {
+		return Optional.ofNullable(files.get(path));
+	}
+
+	public void putFile(IndexedFile file) {
+		files.put(file.getPath(), file);
+	}
+
+	public Collection<IndexedFile> getFiles() {
+		return Collections.unmodifiableCollection(files.values());
+	}
+}
@@ -0,0 +1,39 @@
+package name.azzurite.mcserver.dedup;
+
+/**
+ * A chunk of a file, identified by the SHA-256 of its content.
+ */
+public class ChunkRef {
+
+	private final String hash;
+
+	private final long offset;
+
+	private final int length;
+
+	/**
+	 * @param offset the position of the chunk in the file it was read from, only meaningful for local files
+	 */
+	public ChunkRef(String hash, long offset, int length) {
+		this.hash = hash;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	public String getHash() {
+		return hash;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	@Override
+	public String toString() {
+		return hash + " (" + length + " bytes)";
+	}
+}
@@ -0,0 +1,47 @@
+package name.azzurite.mcserver.dedup;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Set;
+
+import name.azzurite.mcserver.sync.SyncActionFuture;
+
+/**
+ * Remote storage that keeps every chunk once under its hash, together with the {@link ChunkIndex} of the latest generation.
+ */
+public interface ChunkStore {
+
+	/**
+	 * @return the hashes of all chunks that are completely stored
+	 */
+	SyncActionFuture<Set<String>> findStoredChunks();
+
+	/**
+	 * @return the index of the latest generation, or an empty index if there is none
+	 */
+	SyncActionFuture<ChunkIndex> retrieveIndex();
+
+	/**
+	 * Stores the missing chunks and afterwards replaces the index, so the stored index never refers to chunks that are not stored.
+	 * The index is replaced as a whole, readers never see a partially written one. Stored chunks the new index does not refer to may
+	 * be deleted afterwards.
+	 */
+	SyncActionFuture<Void> storeGeneration(ChunkIndex index, Collection<ChunkRef> missingChunks, ChunkSource source);
+
+	SyncActionFuture<Void> retrieveChunks(Collection<ChunkRef> chunks, ChunkSink sink);
+
+	@FunctionalInterface
+	interface ChunkSource {
+
+		/**
+		 * @return the current content of the chunk, which may differ from its hash if the file changed since it was chunked
+		 */
+		byte[] read(ChunkRef chunk) throws IOException;
+	}
+
+	@FunctionalInterface
+	interface ChunkSink {
+
+		void write(ChunkRef chunk, byte[] data) throws IOException;
+	}
+}
@@ -0,0 +1,102 @@
+package name.azzurite.mcserver.dedup;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Splits files into chunks at positions determined by their content (FastCDC). Inserting or removing bytes only changes the chunks
+ * around the change, all other chunks keep their boundaries and therefore their hashes.
+ * <p>
+ * A gear rolling hash is computed over the bytes. A chunk ends where the hash matches a mask, which is harder to match before the
+ * average chunk size and easier after it, so the chunk sizes stay close to the average.
+ */
+public final class ContentDefinedChunker {
+
+	static final int MIN_CHUNK_SIZE = 16 * 1024;
+
+	static final int AVERAGE_CHUNK_SIZE = 64 * 1024;
+
+	static final int MAX_CHUNK_SIZE = 256 * 1024;
+
+	private static final long GEAR_SEED = 0x4D535343L; // "MSSC"
+
+	private static final long MASK_BEFORE_AVERAGE = -1L << (64 - 18);
+
+	private static final long MASK_AFTER_AVERAGE = -1L << (64 - 14);
+
+	private static final long[] GEAR = createGearTable();
+
+	private ContentDefinedChunker() {}
+
+	private static long[] createGearTable() {
+		// java.util.Random is specified to produce the same sequence everywhere, so every installation cuts at the same positions
+		Random random = new Random(GEAR_SEED);
+		long[] gear = new long[256];
+		for (int i = 0; i < gear.length; ++i) {
+			gear[i] = random.nextLong();
+		}
+		return gear;
+	}
+
+	public static List<ChunkRef> chunk(Path file) throws IOException {
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+			return chunk(in);
+		}
+	}
+
+	public static List<ChunkRef> chunk(InputStream in) throws IOException {
+		List<ChunkRef> chunks = new ArrayList<>();
+		byte[] buffer = new byte[MAX_CHUNK_SIZE];
+		int filled = 0;
+		long offset = 0;
+		while (true) {
+			filled += IOUtils.read(in, buffer, filled, buffer.length - filled);
+			if (filled == 0) {
+				return chunks;
+			}
+
+			int length = findChunkEnd(buffer, filled);
+			MessageDigest sha256 = DigestUtils.getSha256Digest();
+			sha256.update(buffer, 0, length);
+			chunks.add(new ChunkRef(Hex.encodeHexString(sha256.digest()), offset, length));
+
+			System.arraycopy(buffer, length, buffer, 0, filled - length);
+			filled -= length;
+			offset += length;
+		}
+	}
+
+	private static int findChunkEnd(byte[] data, int length) {
+		if (length <= MIN_CHUNK_SIZE) {
+			return length;
+		}
+
+		long hash = 0;
+		int averageEnd = Math.min(AVERAGE_CHUNK_SIZE, length);
+		int i = MIN_CHUNK_SIZE;
+		for (; i < averageEnd; ++i) {
+			hash = (hash << 1) + GEAR[data[i] & 0xFF];
+			if ((hash & MASK_BEFORE_AVERAGE) == 0) {
+				return i + 1;
+			}
+		}
+		for (; i < length; ++i) {
+			hash = (hash << 1) + GEAR[data[i] & 0xFF];
+			if ((hash & MASK_AFTER_AVERAGE) == 0) {
+				return i + 1;
+			}
+		}
+		return length;
+	}
+}
@@ -0,0 +1,10 @@
+package name.azzurite.mcserver.dedup;
+
+public class DedupException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public DedupException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
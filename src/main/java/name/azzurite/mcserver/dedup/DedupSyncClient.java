@@ -0,0 +1,334 @@
+package name.azzurite.mcserver.dedup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import name.azzurite.mcserver.config.AppConfig;
+import name.azzurite.mcserver.sync.ComposedSyncActionFuture;
+import name.azzurite.mcserver.sync.HashCache;
+import name.azzurite.mcserver.sync.NoProgressSyncActionFuture;
+import name.azzurite.mcserver.sync.PublishGuard;
+import name.azzurite.mcserver.sync.StreamedDownload;
+import name.azzurite.mcserver.sync.StreamedUpload;
+import name.azzurite.mcserver.sync.SyncActionFuture;
+import name.azzurite.mcserver.sync.SyncClient;
+import name.azzurite.mcserver.sync.SyncManifest;
+import name.azzurite.mcserver.util.AsyncUtil;
+import name.azzurite.mcserver.util.LogUtil;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Synchronizes the server files through a {@link ChunkStore} instead of as one archive per file. Every file is split into content
+ * defined chunks and only the chunks the other side does not have yet are transferred: on upload the chunks missing in the store, on
+ * download the chunks that cannot be found in the current local files.
+ * <p>
+ * The paths given to {@link #uploadFiles(Collection)} and returned by {@link #findServerFiles(SyncManifest)} are the server files themselves, not
+ * archives in the sync directory. All other operations are passed on to the wrapped client.
+ */
+public class DedupSyncClient implements SyncClient {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(DedupSyncClient.class);
+
+	private static final String DOWNLOADED_CHUNKS_DIRECTORY = "chunks";
+
+	private static final String ASSEMBLY_DIRECTORY = "assembly";
+
+	private final SyncClient delegate;
+
+	private final ChunkStore chunkStore;
+
+	private final AppConfig appConfig;
+
+	private final HashCache hashCache;
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(1);
+
+	public DedupSyncClient(SyncClient delegate, ChunkStore chunkStore, AppConfig appConfig, HashCache hashCache) {
+		this.delegate = delegate;
+		this.chunkStore = chunkStore;
+		this.appConfig = appConfig;
+		this.hashCache = hashCache;
+	}
+
+	private static <R> SyncActionFuture<R> failed(String actionName, Throwable cause) {
+		CompletableFuture<R> failed = new CompletableFuture<>();
+		failed.completeExceptionally(cause);
+		return new NoProgressSyncActionFuture<>(actionName, failed);
+	}
+
+	private static byte[] readChunk(Path file, ChunkRef chunk) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer data = ByteBuffer.allocate(chunk.getLength());
+			long position = chunk.getOffset();
+			while (data.hasRemaining()) {
+				int read = channel.read(data, position);
+				if (read < 0) {
+					throw new IOException("File " + file + " is shorter than its chunk list");
+				}
+				position += read;
+			}
+			return data.array();
+		}
+	}
+
+	private String toIndexPath(Path file) {
+		return appConfig.getBaseServerPath().relativize(file).toString().replace('\\', '/');
+	}
+
+	private Path toLocalPath(String indexPath) {
+		return appConfig.getBaseServerPath().resolve(indexPath);
+	}
+
+	@Override
+	public SyncActionFuture<String> retrieveFileContents(String file) {
+		return delegate.retrieveFileContents(file);
+	}
+
+	@Override
+	public SyncActionFuture<Void> setFileContents(String file, String contents) {
+		return delegate.setFileContents(file, contents);
+	}
+
+	@Override
+	public SyncActionFuture<Void> deleteFile(String file) {
+		return delegate.deleteFile(file);
+	}
+
+	/**
+	 * Files whose hash did not change since the last generation keep their chunk list without being read again.
+	 */
+	@Override
+	public SyncActionFuture<Void> uploadFiles(Collection<Path> filePaths) {
+		try {
+			ChunkIndex previousIndex = AsyncUtil.getResult(chunkStore.retrieveIndex());
+			Set<String> storedChunks = AsyncUtil.getResult(chunkStore.findStoredChunks());
+
+			LOGGER.info("Chunking local server files...");
+			ChunkIndex index = new ChunkIndex();
+			Map<String, LocalChunk> missingChunks = new LinkedHashMap<>();
+			for (Path filePath : filePaths) {
+				IndexedFile file = indexFile(filePath, previousIndex);
+				index.putFile(file);
+				for (ChunkRef chunk : file.getChunks()) {
+					if (!storedChunks.contains(chunk.getHash())) {
+						missingChunks.putIfAbsent(chunk.getHash(), new LocalChunk(filePath, chunk));
+					}
+				}
+			}
+			hashCache.save();
+			long missingBytes = missingChunks.values().stream().mapToLong(chunk -> chunk.chunk.getLength()).sum();
+			LOGGER.info("Local server files chunked, {} new chunks ({} bytes) have to be uploaded.", missingChunks.size(),
+					missingBytes);
+
+			Collection<ChunkRef> chunksToUpload =
+					missingChunks.values().stream().map(chunk -> chunk.chunk).collect(Collectors.toList());
+			return chunkStore.storeGeneration(index, chunksToUpload, chunk -> missingChunks.get(chunk.getHash()).read());
+		} catch (IOException | ExecutionException e) {
+			return failed("server file upload", e);
+		}
+	}
+
+	private IndexedFile indexFile(Path filePath, ChunkIndex previousIndex) throws IOException {
+		String path = toIndexPath(filePath);
+		byte[] hash = hashCache.getHash(filePath);
+		Optional<IndexedFile> previous = previousIndex.getFile(path).filter(file -> file.hasHash(hash));
+		if (previous.isPresent()) {
+			return previous.get();
+		}
+		return new IndexedFile(path, Files.size(filePath), hash, ContentDefinedChunker.chunk(filePath));
+	}
+
+	@Override
+	public SyncActionFuture<Void> uploadStreams(Collection<StreamedUpload> uploads, Collection<String> keptPaths) {
+		return delegate.uploadStreams(uploads, keptPaths);
+	}
+
+	@Override
+	public SyncActionFuture<Boolean> doesFileExist(String file) {
+		return delegate.doesFileExist(file);
+	}
+
+	/**
+	 * The chunks of the changed files are first searched in their current local versions, only the remaining ones are downloaded.
+	 * The new files are assembled next to each other and only moved into place once all of them are complete, so a local file can
+	 * still be read for its chunks while the others are assembled. The files are taken from the chunk index, not the manifest.
+	 */
+	@Override
+	public SyncActionFuture<List<Path>> downloadFiles(Collection<String> fileNames, SyncManifest manifest) {
+		try {
+			ChunkIndex index = AsyncUtil.getResult(chunkStore.retrieveIndex());
+
+			LOGGER.info("Chunking changed local server files...");
+			List<IndexedFile> changedFiles = new ArrayList<>();
+			Map<String, LocalChunk> localChunks = new HashMap<>();
+			for (String fileName : fileNames) {
+				Optional<IndexedFile> file = index.getFile(fileName);
+				Path localPath = toLocalPath(fileName);
+				if (!file.isPresent() || file.get().hasHash(hashCache.getHash(localPath))) {
+					continue;
+				}
+				changedFiles.add(file.get());
+				if (Files.exists(localPath)) {
+					for (ChunkRef chunk : ContentDefinedChunker.chunk(localPath)) {
+						localChunks.put(chunk.getHash(), new LocalChunk(localPath, chunk));
+					}
+				}
+			}
+
+			Map<String, ChunkRef> missingChunks = new LinkedHashMap<>();
+			changedFiles.stream()
+					.flatMap(file -> file.getChunks().stream())
+					.filter(chunk -> !localChunks.containsKey(chunk.getHash()))
+					.forEach(chunk -> missingChunks.putIfAbsent(chunk.getHash(), chunk));
+			LOGGER.info("{} files changed, {} chunks have to be downloaded.", changedFiles.size(), missingChunks.size());
+
+			Path chunkDirectory = appConfig.getSyncPath().resolve(DOWNLOADED_CHUNKS_DIRECTORY);
+			Files.createDirectories(chunkDirectory);
+			SyncActionFuture<Void> chunkDownload = chunkStore.retrieveChunks(missingChunks.values(),
+					(chunk, data) -> Files.write(chunkDirectory.resolve(chunk.getHash()), data));
+
+			CompletableFuture<List<Path>> result = CompletableFuture.supplyAsync(() -> {
+				try {
+					AsyncUtil.getResult(chunkDownload);
+					assembleFiles(changedFiles, localChunks, chunkDirectory);
+					hashCache.save();
+					return fileNames.stream().map(this::toLocalPath).collect(Collectors.toList());
+				} catch (IOException | ExecutionException e) {
+					throw new DedupException("Could not assemble downloaded files", e);
+				} finally {
+					deleteDirectory(chunkDirectory);
+				}
+			}, executor);
+			return new ComposedSyncActionFuture<>(result, chunkDownload);
+		} catch (IOException | ExecutionException e) {
+			return failed("server file download", e);
+		}
+	}
+
+	private void assembleFiles(Collection<IndexedFile> files, Map<String, LocalChunk> localChunks, Path chunkDirectory)
+			throws IOException {
+		LOGGER.info("Assembling {} changed files...", files.size());
+		Path assemblyDirectory = appConfig.getSyncPath().resolve(ASSEMBLY_DIRECTORY);
+		try {
+			Map<Path, Path> assembledFiles = new LinkedHashMap<>();
+			for (IndexedFile file : files) {
+				Path assembledFile = assemblyDirectory.resolve(file.getPath());
+				assembleFile(file, assembledFile, localChunks, chunkDirectory);
+				assembledFiles.put(assembledFile, toLocalPath(file.getPath()));
+			}
+			for (Map.Entry<Path, Path> assembledFile : assembledFiles.entrySet()) {
+				Files.createDirectories(assembledFile.getValue().getParent());
+				Files.move(assembledFile.getKey(), assembledFile.getValue(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			deleteDirectory(assemblyDirectory);
+		}
+		LOGGER.info("Changed files assembled.");
+	}
+
+	private static void assembleFile(IndexedFile file, Path assembledFile, Map<String, LocalChunk> localChunks, Path chunkDirectory)
+			throws IOException {
+		Files.createDirectories(assembledFile.getParent());
+		MessageDigest md5 = DigestUtils.getMd5Digest();
+		try (OutputStream out = new DigestOutputStream(Files.newOutputStream(assembledFile), md5)) {
+			for (ChunkRef chunk : file.getChunks()) {
+				LocalChunk localChunk = localChunks.get(chunk.getHash());
+				out.write(localChunk != null ? localChunk.read() : Files.readAllBytes(chunkDirectory.resolve(chunk.getHash())));
+			}
+		}
+		if (!file.hasHash(md5.digest())) {
+			throw new IOException("Assembled file " + file.getPath() + " does not match its hash");
+		}
+	}
+
+	private static void deleteDirectory(Path directory) {
+		try {
+			FileUtils.deleteDirectory(directory.toFile());
+		} catch (IOException e) {
+			LOGGER.warn("Could not delete directory {}", directory);
+			LogUtil.stacktrace(LOGGER, e);
+		}
+	}
+
+	@Override
+	public SyncActionFuture<Void> downloadStreams(Collection<StreamedDownload> downloads, SyncManifest manifest) {
+		return delegate.downloadStreams(downloads, manifest);
+	}
+
+	/**
+	 * The server files are the files in the chunk index, the manifest is not used.
+	 */
+	@Override
+	public SyncActionFuture<Set<String>> findServerFiles(SyncManifest manifest) {
+		CompletableFuture<Set<String>> serverFiles = CompletableFuture.supplyAsync(() -> {
+			try {
+				return AsyncUtil.getResult(chunkStore.retrieveIndex()).getFiles().stream()
+						.map(IndexedFile::getPath)
+						.collect(Collectors.toSet());
+			} catch (ExecutionException e) {
+				throw new DedupException("Could not retrieve chunk index", e);
+			}
+		}, executor);
+		return new NoProgressSyncActionFuture<>("list server files", serverFiles);
+	}
+
+	@Override
+	public SyncActionFuture<SyncManifest> retrieveManifest() {
+		return delegate.retrieveManifest();
+	}
+
+	/**
+	 * Only the index of the latest generation is kept, so there is no earlier generation to roll back to. Moving HEAD of the wrapped
+	 * client would not change what is downloaded, the rollback is refused instead.
+	 */
+	@Override
+	public SyncActionFuture<Optional<String>> rollBack() {
+		return failed("rollback",
+				new UnsupportedOperationException("Rolling back is not supported when the server files are stored deduplicated"));
+	}
+
+	@Override
+	public void setPublishGuard(PublishGuard publishGuard) {
+		delegate.setPublishGuard(publishGuard);
+	}
+
+	private static class LocalChunk {
+
+		private final Path file;
+
+		private final ChunkRef chunk;
+
+		LocalChunk(Path file, ChunkRef chunk) {
+			this.file = file;
+			this.chunk = chunk;
+		}
+
+		byte[] read() throws IOException {
+			return readChunk(file, chunk);
+		}
+	}
+}
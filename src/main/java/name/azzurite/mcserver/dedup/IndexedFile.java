@@ -0,0 +1,56 @@
+package name.azzurite.mcserver.dedup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A file of a generation, described by the chunks it consists of.
+ */
+public class IndexedFile {
+
+	private final String path;
+
+	private final long size;
+
+	private final byte[] hash;
+
+	private final List<ChunkRef> chunks;
+
+	/**
+	 * @param path the path of the file relative to the server directory
+	 * @param hash the MD5 of the whole file
+	 */
+	public IndexedFile(String path, long size, byte[] hash, List<ChunkRef> chunks) {
+		this.path = path;
+		this.size = size;
+		this.hash = hash.clone();
+		this.chunks = Collections.unmodifiableList(new ArrayList<>(chunks));
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public byte[] getHash() {
+		return hash.clone();
+	}
+
+	public boolean hasHash(byte[] otherHash) {
+		return Arrays.equals(hash, otherHash);
+	}
+
+	public List<ChunkRef> getChunks() {
+		return chunks;
+	}
+
+	@Override
+	public String toString() {
+		return path + " (" + chunks.size() + " chunks)";
+	}
+}
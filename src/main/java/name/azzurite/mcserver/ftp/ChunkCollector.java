@@ -0,0 +1,103 @@
+package name.azzurite.mcserver.ftp;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import name.azzurite.mcserver.config.AppConfig;
+import name.azzurite.mcserver.dedup.ChunkIndex;
+import name.azzurite.mcserver.dedup.ChunkRef;
+import name.azzurite.mcserver.dedup.IndexedFile;
+import name.azzurite.mcserver.util.LogUtil;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.io.CopyStreamListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static name.azzurite.mcserver.ftp.FTPConnection.*;
+
+/**
+ * Deletes the stored chunks the chunk index does not refer to anymore. Runs on its own connection after the index was replaced, so
+ * the next download or upload does not have to wait for it.
+ * <p>
+ * An upload that is still running may already have stored chunks its index does not refer to yet, so only chunks that were stored
+ * well before the current index are deleted, judged by the modification times the server reports. Chunks without a modification
+ * time are kept. An upload that reuses a chunk which is deleted while it runs notices before it replaces the index, see
+ * {@link FTPSyncClient#storeGeneration}.
+ */
+class ChunkCollector {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ChunkCollector.class);
+
+	private static final long UPLOAD_GRACE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+	private final AtomicBoolean collectionPending = new AtomicBoolean();
+
+	private final FTPConnection connection;
+
+	ChunkCollector(AppConfig appConfig, CopyStreamListener progressListener) {
+		connection = new FTPConnection(appConfig, progressListener, "chunk collection connection");
+	}
+
+	/**
+	 * Starts a collection unless one is already waiting to start, which will see the latest index as well.
+	 */
+	void collectInBackground() {
+		if (!collectionPending.compareAndSet(false, true)) {
+			return;
+		}
+		executor.execute(() -> {
+			collectionPending.set(false);
+			try {
+				connection.retryVoid(this::collect);
+			} catch (FTPException e) {
+				LOGGER.warn("Could not delete unused chunks, trying again after the next upload: {}", e.getMessage());
+				LogUtil.stacktrace(LOGGER, e);
+			}
+		});
+	}
+
+	private void collect(FTPClient ftp) throws IOException {
+		Optional<RemoteEntry> indexFile = FTPRemoteListing.getFile(ftp, FTPSyncClient.CHUNK_INDEX_FILE);
+		if (!indexFile.isPresent() || indexFile.get().getModifyTime() < 0) {
+			return;
+		}
+		ChunkIndex index = FTPSyncClient.ftpRetrieveChunkIndex(ftp);
+		if (index.getFiles().isEmpty()) {
+			LOGGER.warn("The chunk index is empty, not deleting any chunks.");
+			return;
+		}
+
+		Set<String> referencedChunks = new HashSet<>();
+		for (IndexedFile file : index.getFiles()) {
+			for (ChunkRef chunk : file.getChunks()) {
+				referencedChunks.add(chunk.getHash());
+			}
+		}
+
+		long storedBefore = indexFile.get().getModifyTime() - UPLOAD_GRACE_MILLIS;
+		Map<String, RemoteEntry> listing = FTPRemoteListing.listRecursively(ftp, FTPSyncClient.CHUNK_DIRECTORY);
+		int deletedChunks = 0;
+		for (RemoteEntry entry : listing.values()) {
+			// partial chunks of uploads that were interrupted are collected as well
+			String hash = StringUtils.removeEnd(StringUtils.substringAfterLast(entry.getPath(), "/"),
+					FTPSyncClient.PARTIAL_CHUNK_EXTENSION);
+			if (entry.isFile() && !referencedChunks.contains(hash) && entry.getModifyTime() >= 0
+					&& entry.getModifyTime() < storedBefore) {
+				ftp.deleteFile(entry.getPath());
+				logFtpCommand(ftp, "deleteFile", entry.getPath());
+				++deletedChunks;
+			}
+		}
+		LOGGER.info("Deleted {} chunks the chunk index does not refer to", deletedChunks);
+	}
+}
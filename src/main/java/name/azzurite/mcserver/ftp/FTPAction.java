@@ -2,8 +2,10 @@ package name.azzurite.mcserver.ftp;
 
 import java.io.IOException;
 
+import org.apache.commons.net.ftp.FTPClient;
+
 @FunctionalInterface
 interface FTPAction<R> {
 
-	R perform() throws IOException;
+	R perform(FTPClient ftp) throws IOException;
 }
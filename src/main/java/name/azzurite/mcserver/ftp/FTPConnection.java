@@ -0,0 +1,162 @@
+package name.azzurite.mcserver.ftp;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Optional;
+
+import name.azzurite.mcserver.config.AppConfig;
+import name.azzurite.mcserver.util.AsyncUtil;
+import name.azzurite.mcserver.util.LogUtil;
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.io.CopyStreamListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single, independently logged in FTP session. Not thread safe, every connection must only be used by one thread at a time.
+ */
+class FTPConnection {
+
+	private static final int MAX_RETRIES = 5;
+
+	private static final long INITIAL_RETRY_DELAY_MILLIS = 1000L;
+
+	private static final int BUF_SIZE = 1048576;
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(FTPConnection.class);
+
+	private final FTPClient ftpClient = new FTPClient();
+
+	private final AppConfig appConfig;
+
+	private final String name;
+
+	FTPConnection(AppConfig appConfig, CopyStreamListener progressListener, String name) {
+		this.appConfig = appConfig;
+		this.name = name;
+		ftpClient.setBufferSize(BUF_SIZE);
+		ftpClient.setCopyStreamListener(progressListener);
+	}
+
+	static void logFtpCommand(FTPClient ftp, String commandName, Object... arguments) {
+		logCommand(commandName, arguments);
+		logResult(ftp);
+	}
+
+	private static void logResult(FTPClient ftp) {
+		LOGGER.trace("Result: {}", ftp.getReplyString());
+	}
+
+	private static void logCommand(String commandName, Object[] arguments) {
+		StringBuilder commandLog = new StringBuilder();
+		commandLog.append("Executed command: ");
+		appendCommandString(commandLog, commandName, arguments);
+		LOGGER.trace(commandLog.toString());
+	}
+
+	@SuppressWarnings("MagicCharacter")
+	private static void appendCommandString(StringBuilder sb, String commandName, Object[] arguments) {
+		sb.append(commandName);
+		sb.append('(');
+		Arrays.stream(arguments).forEach(arg -> {
+			if (arg instanceof String) {
+				sb.append('"');
+			}
+			sb.append(arg);
+			if (arg instanceof String) {
+				sb.append('"');
+			}
+			sb.append(", ");
+		});
+		if (arguments.length > 0) {
+			sb.delete(sb.length() - 2, sb.length());
+		}
+		sb.append(')');
+	}
+
+	private static FTPException createMissingConfigEx(String property) {
+		return new FTPException("The required property " + property + " could not be found.");
+	}
+
+	private void tryConnect() throws IOException {
+		if (ftpClient.isConnected()) {
+			return;
+		}
+		LOGGER.info("Connecting {} to FTP server...", name);
+
+		String hostName = appConfig.getFtpHostName().orElseThrow(() -> createMissingConfigEx("ftp host name"));
+		String port = appConfig.getFtpPort().orElseThrow(() -> createMissingConfigEx("ftp port"));
+		ftpClient.connect(hostName, Integer.valueOf(port));
+		logFtpCommand(ftpClient, "tryConnect", hostName, port);
+
+		ftpClient.enterLocalPassiveMode();
+		logFtpCommand(ftpClient, "enterLocalPassiveMode");
+
+		Optional<String> userName = appConfig.getFtpUserName();
+		Optional<String> password = appConfig.getFtpPassword();
+		if (userName.isPresent() && password.isPresent()) {
+			boolean loginSuccessful = ftpClient.login(userName.get(), password.get());
+			logFtpCommand(ftpClient, "login", userName.get(), password.get());
+			if (loginSuccessful) {
+				LOGGER.debug("FTP login successful");
+			} else {
+				LOGGER.debug("FTP login failed");
+			}
+		} else {
+			LOGGER.warn("No authentication for ftp set!");
+		}
+
+		ftpClient.setFileType(FTP.BINARY_FILE_TYPE);
+		logFtpCommand(ftpClient, "setFileType");
+
+		String baseDirectory =
+				appConfig.getFtpBaseDirectory().orElseThrow(() -> createMissingConfigEx("ftp base directory"));
+		ftpClient.changeWorkingDirectory(baseDirectory);
+		logFtpCommand(ftpClient, "changeWorkingDirectory", baseDirectory);
+
+		LOGGER.info("Connected {} to FTP server.", name);
+	}
+
+	private void disconnect() {
+		try {
+			ftpClient.disconnect();
+		} catch (IOException e) {
+			LOGGER.warn("Error while disconnecting: {}", e.getMessage());
+			LogUtil.stacktrace(LOGGER, e);
+		}
+	}
+
+	/**
+	 * Performs the action on this connection, reconnecting and trying again if it fails with an {@link IOException}. The delay before
+	 * each further attempt doubles, so a short outage of the connection does not use up all attempts at once.
+	 */
+	<R> R retry(FTPAction<R> action) {
+		for (int i = 1; i <= MAX_RETRIES; ++i) {
+			try {
+				if (i > 1) {
+					long delay = INITIAL_RETRY_DELAY_MILLIS << (i - 2);
+					LOGGER.debug("Trying action again after failure in {}ms...", delay);
+					AsyncUtil.threadSleep(delay);
+				}
+				tryConnect();
+				return action.perform(ftpClient);
+			} catch (IOException e) {
+				LOGGER.warn("Error during FTP action on {}: {}", name, e.getMessage());
+				LogUtil.stacktrace(LOGGER, e);
+
+				disconnect();
+			}
+		}
+
+		LOGGER.error("Could not perform FTP action, {} retries all failed.", MAX_RETRIES);
+		throw new FTPException("Could not perform FTP action.");
+	}
+
+	void retryVoid(FTPVoidAction action) {
+		retry(ftp -> {
+			action.perform(ftp);
+			return (Void) null;
+		});
+	}
+}
@@ -0,0 +1,105 @@
+package name.azzurite.mcserver.ftp;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static name.azzurite.mcserver.ftp.FTPConnection.*;
+
+/**
+ * Lists a remote directory tree with size, modification time and type of every entry in a single pass.
+ * <p>
+ * Uses MLSD if the server supports it, as its machine readable facts are exact and always contain the modification time. Falls back
+ * to LIST otherwise.
+ */
+final class FTPRemoteListing {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(FTPRemoteListing.class);
+
+	private static final String MLST_FEATURE = "MLST";
+
+	private FTPRemoteListing() {}
+
+	static Map<String, RemoteEntry> listRecursively(FTPClient ftp, String directory) throws IOException {
+		boolean useMlsd = ftp.hasFeature(MLST_FEATURE);
+		logFtpCommand(ftp, "hasFeature", MLST_FEATURE);
+		LOGGER.debug("Listing '{}' using {}", directory, useMlsd ? "MLSD" : "LIST");
+
+		Map<String, RemoteEntry> entries = new HashMap<>();
+		listRecursively(ftp, directory, useMlsd, entries);
+		return entries;
+	}
+
+	/**
+	 * @return the size of the remote file, or -1 if it does not exist
+	 */
+	static long getFileSize(FTPClient ftp, String file) throws IOException {
+		return getFile(ftp, file).map(RemoteEntry::getSize).orElse(-1L);
+	}
+
+	/**
+	 * @return empty if the remote file does not exist
+	 */
+	static Optional<RemoteEntry> getFile(FTPClient ftp, String file) throws IOException {
+		FTPFile remoteFile;
+		if (ftp.hasFeature(MLST_FEATURE)) {
+			remoteFile = ftp.mlistFile(file);
+			logFtpCommand(ftp, "mlistFile", file);
+		} else {
+			FTPFile[] remoteFiles = ftp.listFiles(file);
+			logFtpCommand(ftp, "listFiles", file);
+			remoteFile = remoteFiles.length == 1 ? remoteFiles[0] : null;
+		}
+		return (remoteFile == null || !remoteFile.isFile()) ? Optional.empty() : Optional.of(new RemoteEntry(file, remoteFile));
+	}
+
+	/**
+	 * MLSD also lists the directory itself and its parent (as type cdir and pdir), which must not be recursed into.
+	 */
+	private static boolean isChildEntry(FTPFile file) {
+		if (file == null) {
+			return false;
+		}
+		String name = file.getName();
+		if (name == null || ".".equals(name) || "..".equals(name) || name.contains("/")) {
+			return false;
+		}
+		String rawListing = file.getRawListing();
+		if (rawListing == null) {
+			return true;
+		}
+		String facts = rawListing.toLowerCase(Locale.ENGLISH);
+		return !facts.contains("type=cdir") && !facts.contains("type=pdir");
+	}
+
+	private static void listRecursively(FTPClient ftp, String directory, boolean useMlsd, Map<String, RemoteEntry> entries)
+			throws IOException {
+		FTPFile[] files;
+		if (useMlsd) {
+			files = ftp.mlistDir(directory);
+			logFtpCommand(ftp, "mlistDir", directory);
+		} else {
+			files = ftp.listFiles(directory);
+			logFtpCommand(ftp, "listFiles", directory);
+		}
+
+		for (FTPFile file : files) {
+			if (!isChildEntry(file)) {
+				continue;
+			}
+			String path = directory + '/' + file.getName();
+			RemoteEntry entry = new RemoteEntry(path, file);
+			entries.put(path, entry);
+			if (entry.isDirectory()) {
+				listRecursively(ftp, path, useMlsd, entries);
+			}
+		}
+	}
+}
@@ -1,208 +1,172 @@
 package name.azzurite.mcserver.ftp;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.ToLongFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import name.azzurite.mcserver.config.AppConfig;
+import name.azzurite.mcserver.dedup.ChunkIndex;
+import name.azzurite.mcserver.dedup.ChunkRef;
+import name.azzurite.mcserver.dedup.ChunkStore;
+import name.azzurite.mcserver.dedup.IndexedFile;
+import name.azzurite.mcserver.sync.HashCache;
+import name.azzurite.mcserver.sync.ManifestEntry;
 import name.azzurite.mcserver.sync.NoProgressSyncActionFuture;
+import name.azzurite.mcserver.sync.PublishGuard;
+import name.azzurite.mcserver.sync.RequestCost;
+import name.azzurite.mcserver.sync.StageThroughput;
+import name.azzurite.mcserver.sync.StreamedDownload;
+import name.azzurite.mcserver.sync.StreamedUpload;
 import name.azzurite.mcserver.sync.SyncActionFuture;
 import name.azzurite.mcserver.sync.SyncClient;
+import name.azzurite.mcserver.sync.SyncManifest;
 import name.azzurite.mcserver.util.AsyncUtil;
 import name.azzurite.mcserver.util.LogUtil;
-import name.azzurite.mcserver.util.OnlyContentZipEntrySource;
+import name.azzurite.mcserver.util.WaitTimingInputStream;
+import name.azzurite.mcserver.util.WaitTimingOutputStream;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.io.input.ProxyInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.net.ftp.FTPClient;
 import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPReply;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.zeroturnaround.zip.ZipException;
-import org.zeroturnaround.zip.ZipUtil;
 
-import static name.azzurite.mcserver.util.LambdaExceptionUtil.*;
+import static name.azzurite.mcserver.ftp.FTPConnection.*;
 import static name.azzurite.mcserver.util.StreamUtil.*;
 
-public class FTPSyncClient implements SyncClient {
+public class FTPSyncClient implements SyncClient, ChunkStore {
 
-	private static final String MD5_FILE = "MinecraftServerSync/md5s.zip";
+	private static final String MANIFEST_FILE = "MinecraftServerSync/manifest";
 
-	private static final Path MD5_TEMP_PATH = Paths.get("MinecraftServerSync/md5s");
+	static final String CHUNK_INDEX_FILE = "MinecraftServerSync/index";
 
-	private static final int MAX_RETRIES = 3;
+	private static final String PARTIAL_CHUNK_INDEX_FILE = CHUNK_INDEX_FILE + ".part";
 
-	private static final int BUF_SIZE = 1048576;
+	static final String CHUNK_DIRECTORY = "MinecraftServerSync/chunks";
 
-	private static final Logger LOGGER = LoggerFactory.getLogger(FTPSyncClient.class);
+	static final String PARTIAL_CHUNK_EXTENSION = ".part";
+
+	private static final int STREAM_PIPE_SIZE = 4 * 1048576;
 
-	private final FTPClient ftpClient = new FTPClient();
+	private static final Pattern MD5_HEX = Pattern.compile("\\b[0-9a-fA-F]{32}\\b");
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(FTPSyncClient.class);
 
 	private final AppConfig appConfig;
 
 	private final ExecutorService executor = Executors.newFixedThreadPool(1);
 
-	private final FTPTransferProgressListener progressListener;
+	private final ExecutorService streamExecutor = Executors.newCachedThreadPool(AsyncUtil.lowPriorityThreads());
 
-	public FTPSyncClient(AppConfig appConfig) {
-		ftpClient.setBufferSize(BUF_SIZE);
-		this.appConfig = appConfig;
-		progressListener = new FTPTransferProgressListener();
-		ftpClient.setCopyStreamListener(progressListener);
-	}
+	private final ExecutorService streamWriteExecutor;
 
-	private static void logFtpCommand(FTPClient ftp, String commandName, Object... arguments) {
-		logCommand(commandName, arguments);
-		logResult(ftp);
-	}
+	private final FTPTransferProgressListener progressListener;
 
-	private static void logResult(FTPClient ftp) {
-		LOGGER.trace("Result: {}", ftp.getReplyString());
-	}
+	private final FTPConnection controlConnection;
 
-	private static void logCommand(String commandName, Object[] arguments) {
-		StringBuilder commandLog = new StringBuilder();
-		commandLog.append("Executed command: ");
-		appendCommandString(commandLog, commandName, arguments);
-		LOGGER.trace(commandLog.toString());
-	}
+	private final FTPTransferPool transferPool;
 
-	@SuppressWarnings("MagicCharacter")
-	private static void appendCommandString(StringBuilder sb, String commandName, Object[] arguments) {
-		sb.append(commandName);
-		sb.append('(');
-		Arrays.stream(arguments).forEach(arg -> {
-			if (arg instanceof String) {
-				sb.append('"');
-			}
-			sb.append(arg);
-			if (arg instanceof String) {
-				sb.append('"');
-			}
-			sb.append(", ");
-		});
-		if (arguments.length > 0) {
-			sb.delete(sb.length() - 2, sb.length());
-		}
-		sb.append(')');
-	}
+	private final HashCache hashCache;
 
-	private static FTPException createMissingConfigEx(String property) {
-		return new FTPException("The required property " + property + " could not be found.");
-	}
+	private final RequestCost requestCost;
 
-	private static String generateMd5FileName(Path file) {
-		String md5FileName = file.getFileName() + ".md5";
-		Path parent = file.getParent();
-		if (parent != null) {
-			return toFtpPath(file.getParent().resolve(md5FileName));
-		} else {
-			return md5FileName;
-		}
-	}
+	private final RemoteDirectoryCache remoteDirectories = new RemoteDirectoryCache();
 
-	private static byte[] computeMd5(Path localPath) throws IOException {
-		if (!Files.exists(localPath)) {
-			return new byte[0];
-		}
-		try (InputStream file = Files.newInputStream(localPath)) {
-			return DigestUtils.md5(file);
-		}
-	}
+	private final TransferJournal transferJournal;
 
-	private static String toFtpPath(Path path) {
-		return path.toString().replaceAll("\\\\", "/");
-	}
+	private final GenerationCollector generationCollector;
 
-	private void tryConnect() {
-		if (ftpClient.isConnected()) {
-			return;
-		}
-		LOGGER.info("Connecting to FTP server...");
+	private final ChunkCollector chunkCollector;
 
-		try {
-			String hostName = appConfig.getFtpHostName().orElseThrow(() -> createMissingConfigEx("ftp host name"));
-			String port = appConfig.getFtpPort().orElseThrow(() -> createMissingConfigEx("ftp port"));
-			ftpClient.connect(hostName, Integer.valueOf(port));
-			logFtpCommand(ftpClient, "tryConnect", hostName, port);
-
-			ftpClient.enterLocalPassiveMode();
-			logFtpCommand(ftpClient, "enterLocalPassiveMode");
-
-			Optional<String> userName = appConfig.getFtpUserName();
-			Optional<String> password = appConfig.getFtpPassword();
-			if (userName.isPresent() && password.isPresent()) {
-				boolean loginSuccessful = ftpClient.login(userName.get(), password.get());
-				logFtpCommand(ftpClient, "login", userName.get(), password.get());
-				if (loginSuccessful) {
-					LOGGER.debug("FTP login successful");
-				} else {
-					LOGGER.debug("FTP login failed");
-				}
-			} else {
-				LOGGER.warn("No authentication for ftp set!");
-			}
+	private volatile Map<String, RemoteEntry> lastRemoteListing = Collections.emptyMap();
 
-			ftpClient.setFileType(FTP.BINARY_FILE_TYPE);
-			logFtpCommand(ftpClient, "setFileType");
+	private volatile PublishGuard publishGuard;
 
-			String baseDirectory =
-					appConfig.getFtpBaseDirectory().orElseThrow(() -> createMissingConfigEx("ftp base directory"));
-			ftpClient.changeWorkingDirectory(baseDirectory);
-			logFtpCommand(ftpClient, "changeWorkingDirectory", baseDirectory);
+	public FTPSyncClient(AppConfig appConfig, HashCache hashCache, RequestCost requestCost) {
+		this.appConfig = appConfig;
+		this.hashCache = hashCache;
+		this.requestCost = requestCost;
+		progressListener = new FTPTransferProgressListener();
+		controlConnection = new FTPConnection(appConfig, progressListener, "control connection");
+		transferPool = new FTPTransferPool(appConfig, progressListener, appConfig.getFtpConnectionCount());
+		streamWriteExecutor = Executors.newFixedThreadPool(appConfig.getCompressionThreadCount(), AsyncUtil.lowPriorityThreads());
+		transferJournal = new TransferJournal(appConfig.getTransferJournalPath());
+		generationCollector = new GenerationCollector(appConfig, progressListener, remoteDirectories, getRemoteSyncDirectory());
+		chunkCollector = new ChunkCollector(appConfig, progressListener);
+	}
 
-			LOGGER.info("Connected to FTP server.");
-		} catch (IOException e) {
-			throw new FTPException(e);
-		}
+	private static String toFtpPath(Path path) {
+		return path.toString().replaceAll("\\\\", "/");
 	}
 
 	@Override
 	public SyncActionFuture<String> retrieveFileContents(String file) {
 		LOGGER.debug("Retrieving file contents for file '{}'", file);
 
-		return new NoProgressSyncActionFuture<>(file + " content retrieval", perform(() -> {
-			try (ByteArrayOutputStream temp = new ByteArrayOutputStream()) {
-				ftpClient.retrieveFile(file, temp);
-				logFtpCommand(ftpClient, "downloadFile", file);
-
-				String fileContents = temp.toString("UTF-8");
-
-				LOGGER.debug("File contents retrieved: {}", fileContents);
-
-				return fileContents;
-			}
-		}));
+		return new NoProgressSyncActionFuture<>(file + " content retrieval",
+				perform(ftp -> ftpRetrieveFileContents(ftp, file)));
 	}
 
-	private byte[] retrieveByteFileContents(String file) throws IOException {
-		LOGGER.debug("Retrieving byte file contents for file '{}'", file);
-
+	/**
+	 * @return empty if the file does not exist
+	 * @throws IOException if the file exists but could not be read, which must not look like an empty file
+	 */
+	private static String ftpRetrieveFileContents(FTPClient ftp, String file) throws IOException {
 		try (ByteArrayOutputStream temp = new ByteArrayOutputStream()) {
-			ftpClient.retrieveFile(file, temp);
-			logFtpCommand(ftpClient, "downloadFile", file);
+			boolean success = ftp.retrieveFile(file, temp);
+			logFtpCommand(ftp, "downloadFile", file);
+			if (!success) {
+				String reply = ftp.getReplyString();
+				if (!ftpFileExists(ftp, file)) {
+					return "";
+				}
+				throw new IOException("Could not retrieve file " + file + ": " + reply);
+			}
+
+			String fileContents = temp.toString("UTF-8");
 
-			byte[] bytes = temp.toByteArray();
-			LOGGER.debug("File contents retrieved: {}", bytes);
+			LOGGER.debug("File contents retrieved: {}", fileContents);
 
-			return bytes;
+			return fileContents;
 		}
 	}
 
@@ -210,8 +174,8 @@ public class FTPSyncClient implements SyncClient {
 	public SyncActionFuture<Void> setFileContents(String file, String contents) {
 		LOGGER.debug("Setting file({}) contents: {}", file, contents);
 
-		return new NoProgressSyncActionFuture<>(file + " set content", perform(() -> {
-			ftpStoreFile(file, IOUtils.toInputStream(contents, "UTF-8"));
+		return new NoProgressSyncActionFuture<>(file + " set content", performVoid(ftp -> {
+			ftpStoreFile(ftp, file, IOUtils.toInputStream(contents, "UTF-8"));
 		}));
 	}
 
@@ -219,9 +183,9 @@ public class FTPSyncClient implements SyncClient {
 	public SyncActionFuture<Void> deleteFile(String file) {
 		LOGGER.debug("Deleting file: {}", file);
 
-		return new NoProgressSyncActionFuture<>(file + " deletion", perform(() -> {
-			ftpClient.deleteFile(file);
-			logFtpCommand(ftpClient, "deleteFile", file);
+		return new NoProgressSyncActionFuture<>(file + " deletion", performVoid(ftp -> {
+			ftp.deleteFile(file);
+			logFtpCommand(ftp, "deleteFile", file);
 		}));
 	}
 
@@ -229,106 +193,496 @@ public class FTPSyncClient implements SyncClient {
 	public SyncActionFuture<Void> uploadFiles(Collection<Path> filePaths) {
 		LOGGER.debug("Uploading files: {}", filePaths);
 
-		Map<String, byte[]> md5s = retrieveMd5s();
+		SyncManifest manifest = retrieveManifestOrEmpty();
+		startUploadJournal(manifest);
+		String generation = RemoteGenerations.newGeneration();
 
 		List<Path> filesToUpload = filePaths.stream()
-				.filter(filePath -> {
-					Path relativeToBase = appConfig.getSyncPath().relativize(filePath);
-					byte[] remoteMd5 = md5s.get(relativeToBase.toString());
-					return hasEqualMd5(filePath, remoteMd5);
-				})
+				.filter(filePath -> differsFromManifest(filePath, manifest))
+				.filter(not(this::isAlreadyUploaded))
 				.collect(Collectors.toList());
 
 		long totalFileSize = getTotalFileSize(filesToUpload);
 
-		Future<Void> uploadResult = perform(() -> {
+		Future<Void> uploadResult = transferPool.transferAll(filesToUpload, FTPSyncClient::getFileSize,
+						(ftp, filePath, resume) -> uploadJournaledFile(ftp, filePath, resume, generation))
+				.thenCompose(unused -> performVoid(ftp -> {
+					ftpCommitGeneration(ftp, generation, createManifest(filePaths, manifest));
+					transferJournal.finishBatch();
+				}))
+				.thenRun(hashCache::save)
+				.thenRun(requestCost::save);
 
-			filesToUpload.forEach(rethrow(this::uploadFile));
+		return new FTPTransferSyncActionFuture<>(uploadResult, progressListener, "server file upload", totalFileSize);
+	}
 
-			storeMd5s(filePaths);
-		});
+	private void startUploadJournal(SyncManifest manifest) {
+		try {
+			transferJournal.startBatch(manifest.getDigest());
+		} catch (IOException e) {
+			LOGGER.warn("Could not start transfer journal, an interrupted upload will start over: {}", e.getMessage());
+			LogUtil.stacktrace(LOGGER, e);
+		}
+	}
 
+	private boolean isAlreadyUploaded(Path filePath) {
+		try {
+			byte[] hash = hashCache.getHash(filePath);
+			if (transferJournal.getUploaded(toManifestPath(filePath)).filter(entry -> entry.hasHash(hash)).isPresent()) {
+				LOGGER.debug("File '{}' was already uploaded before the last interruption, skipping upload.", filePath);
+				return true;
+			}
+		} catch (IOException e) {
+			LogUtil.stacktrace(LOGGER, e);
+		}
+		return false;
+	}
 
-		return new FTPTransferSyncActionFuture<>(uploadResult, progressListener, "server file upload", totalFileSize);
+	private void uploadJournaledFile(FTPClient ftp, Path filePath, boolean resume, String generation) throws IOException {
+		uploadFile(ftp, filePath, resume, toObjectPath(toManifestPath(filePath), generation));
+		transferJournal.markUploaded(createManifestEntry(filePath, generation));
 	}
 
-	private long getTotalFileSize(Collection<Path> filePaths) {
-		return filePaths.stream()
-				.mapToLong(filePath -> {
-					try {
-						return Files.size(filePath);
-					} catch (IOException e) {
-						LOGGER.warn("Error while calculating file sizes. Progress may not be accurate.");
-						LogUtil.stacktrace(LOGGER, e);
-						return 0L;
+	@Override
+	public SyncActionFuture<Void> uploadStreams(Collection<StreamedUpload> uploads, Collection<String> keptPaths) {
+		LOGGER.debug("Uploading streams: {}, keeping: {}", uploads, keptPaths);
+
+		SyncManifest manifest = retrieveManifestOrEmpty();
+		startUploadJournal(manifest);
+		String generation = RemoteGenerations.newGeneration();
+
+		Map<String, ManifestEntry> newEntries = new ConcurrentHashMap<>();
+		for (String keptPath : keptPaths) {
+			Optional<ManifestEntry> keptEntry = manifest.getEntry(keptPath);
+			if (!keptEntry.isPresent()) {
+				CompletableFuture<Void> failed = new CompletableFuture<>();
+				failed.completeExceptionally(new IOException("Cannot keep " + keptPath + ", it is not in the sync manifest"));
+				return new NoProgressSyncActionFuture<>("server file upload", failed);
+			}
+			newEntries.put(keptPath, keptEntry.get());
+		}
+
+		// the compressed size from the last upload is a better estimate than the uncompressed size
+		ToLongFunction<StreamedUpload> estimatedSize = upload -> manifest.getEntry(upload.getPath())
+				.map(ManifestEntry::getSize)
+				.orElse(upload.getSourceSize());
+		long totalFileSize = uploads.stream().mapToLong(estimatedSize).sum();
+
+		StageThroughput hashStage = new StageThroughput("hash");
+		StageThroughput compressStage = new StageThroughput("compress");
+		StageThroughput uploadStage = new StageThroughput("upload");
+
+		Future<Void> uploadResult = transferPool.transferAll(uploads, estimatedSize, (ftp, upload, resume) -> {
+					Optional<ManifestEntry> unchangedEntry = findUnchangedEntry(upload, manifest, hashStage);
+					if (unchangedEntry.isPresent()) {
+						LOGGER.debug("Source of '{}' unchanged, skipping upload.", upload.getPath());
+						newEntries.put(upload.getPath(), unchangedEntry.get());
+						progressListener.bytesSkipped(estimatedSize.applyAsLong(upload));
+						return;
 					}
+					ManifestEntry entry = uploadStream(ftp, upload, resume, generation, compressStage, uploadStage);
+					transferJournal.markUploaded(entry);
+					newEntries.put(entry.getPath(), entry);
 				})
+				.thenCompose(unused -> performVoid(ftp -> {
+					SyncManifest newManifest = new SyncManifest();
+					newEntries.values().forEach(newManifest::putEntry);
+					ftpCommitGeneration(ftp, generation, newManifest);
+					transferJournal.finishBatch();
+				}))
+				.thenRun(hashCache::save)
+				.thenRun(requestCost::save)
+				.whenComplete((unused, e) -> logStageThroughput(hashStage, compressStage, uploadStage));
+
+		return new FTPTransferSyncActionFuture<>(uploadResult, progressListener, "server file upload", totalFileSize);
+	}
+
+	private Optional<ManifestEntry> findUnchangedEntry(StreamedUpload upload, SyncManifest manifest, StageThroughput hashStage)
+			throws IOException {
+		long hashStart = System.nanoTime();
+		byte[] sourceHash = upload.getSourceHash();
+		hashStage.record(upload.getSourceSize(), System.nanoTime() - hashStart);
+
+		return Stream.of(manifest.getEntry(upload.getPath()), transferJournal.getUploaded(upload.getPath()))
+				.filter(Optional::isPresent)
+				.map(Optional::get)
+				.filter(entry -> entry.hasSourceHash(sourceHash))
+				.findFirst();
+	}
+
+	private static void logStageThroughput(StageThroughput... stages) {
+		for (StageThroughput stage : stages) {
+			LOGGER.info("Throughput of {}", stage);
+		}
+	}
+
+	/**
+	 * The content is written by a separate thread into a bounded pipe, which is sent directly into the FTP data connection. Hash and
+	 * size are computed while writing. As the content is the same for every attempt, a resumed upload writes it again but skips the
+	 * bytes that are already on the server.
+	 * <p>
+	 * The writing threads compress the content, so there are only as many as configured compression threads. The data connection
+	 * is opened once a writing thread started, instead of staying open without data while the upload waits for one.
+	 * <p>
+	 * The time either side waits on the pipe is not counted for its stage, so the throughput shows which one is the bottleneck.
+	 */
+	private ManifestEntry uploadStream(FTPClient ftp, StreamedUpload upload, boolean resume, String generation,
+			StageThroughput compressStage, StageThroughput uploadStage) throws IOException {
+		long requestStart = System.nanoTime();
+		String ftpFileName = toObjectPath(upload.getPath(), generation);
+		long offset = resume ? FTPRemoteListing.getFileSize(ftp, ftpFileName) : 0;
+
+		MessageDigest md5 = DigestUtils.getMd5Digest();
+		PipedInputStream pipeIn = new PipedInputStream(STREAM_PIPE_SIZE);
+		PipedOutputStream pipeOut = new PipedOutputStream(pipeIn);
+		CompletableFuture<Void> writeStarted = new CompletableFuture<>();
+		Future<Long> writtenBytes = streamWriteExecutor.submit(() -> {
+			writeStarted.complete(null);
+			long writeStart = System.nanoTime();
+			WaitTimingOutputStream timedPipeOut = new WaitTimingOutputStream(pipeOut);
+			try (CountingOutputStream out = new CountingOutputStream(new DigestOutputStream(timedPipeOut, md5))) {
+				upload.writeTo(out);
+				return out.getByteCount();
+			} finally {
+				compressStage.record(upload.getSourceSize(), System.nanoTime() - writeStart - timedPipeOut.getWaitNanos());
+			}
+		});
+
+		long writerWaitStart = System.nanoTime();
+		writeStarted.join();
+		long writerWaitNanos = System.nanoTime() - writerWaitStart;
+
+		long uploadStart = System.nanoTime();
+		WaitTimingInputStream timedPipeIn = new WaitTimingInputStream(pipeIn);
+		try (InputStream in = timedPipeIn) {
+			if (offset > 0) {
+				LOGGER.info("Resuming upload of {} at byte {}", ftpFileName, offset);
+				try {
+					IOUtils.skipFully(in, offset);
+				} catch (EOFException e) {
+					ftp.deleteFile(ftpFileName);
+					throw new IOException("Remote file " + ftpFileName + " is bigger than its content, starting over", e);
+				}
+				ftpAppendFile(ftp, ftpFileName, in);
+			} else {
+				ftpStoreFile(ftp, ftpFileName, in);
+			}
+		} finally {
+			uploadStage.record(timedPipeIn.getByteCount(), System.nanoTime() - uploadStart - timedPipeIn.getWaitNanos());
+		}
+
+		long size;
+		try {
+			size = AsyncUtil.getResult(writtenBytes);
+		} catch (ExecutionException e) {
+			throw new IOException("Could not write content of " + upload.getPath(), e.getCause());
+		}
+
+		long remoteSize = FTPRemoteListing.getFileSize(ftp, ftpFileName);
+		if (remoteSize != size) {
+			throw new IOException("Uploaded file " + ftpFileName + " has " + remoteSize + " bytes instead of " + size);
+		}
+		byte[] hash = md5.digest();
+		if (offset > 0) {
+			ftpVerifyResumedUpload(ftp, ftpFileName, hash);
+		}
+		LOGGER.debug("Uploaded stream: {}", ftpFileName);
+		if (offset == 0) {
+			requestCost.record(size, System.nanoTime() - requestStart - writerWaitNanos - timedPipeIn.getWaitNanos());
+		}
+
+		return new ManifestEntry(upload.getPath(), size, System.currentTimeMillis(), hash, upload.getSourceHash(),
+				upload.getChunkTimestamps(), upload.getMembers(), generation);
+	}
+
+	private static long getFileSize(Path filePath) {
+		try {
+			return Files.size(filePath);
+		} catch (IOException e) {
+			LOGGER.warn("Error while calculating file sizes. Progress may not be accurate.");
+			LogUtil.stacktrace(LOGGER, e);
+			return 0L;
+		}
+	}
+
+	private static long getTotalFileSize(Collection<Path> filePaths) {
+		return filePaths.stream()
+				.mapToLong(FTPSyncClient::getFileSize)
 				.sum();
 	}
 
-	private void uploadFile(Path filePath) throws IOException {
+	/**
+	 * When resuming, the bytes already on the server are kept and only the rest of the file is appended. The transfer is checked
+	 * by comparing the remote size afterwards and, if it was resumed, the remote hash. A mismatch fails this attempt and the next one
+	 * starts over.
+	 */
+	private void uploadFile(FTPClient ftp, Path filePath, boolean resume, String ftpFileName) throws IOException {
 		LOGGER.debug("Uploading file {}...", filePath);
-		Path relativeToBase = appConfig.getBaseServerPath().relativize(filePath);
-		String ftpFileName = toFtpPath(relativeToBase);
+		long requestStart = System.nanoTime();
+		long localSize = Files.size(filePath);
 
+		long offset = resume ? FTPRemoteListing.getFileSize(ftp, ftpFileName) : 0;
 		try (InputStream zipFile = Files.newInputStream(filePath)) {
-			ftpStoreFile(ftpFileName, zipFile);
+			if (offset > 0 && offset < localSize) {
+				LOGGER.info("Resuming upload of {} at byte {}", ftpFileName, offset);
+				IOUtils.skipFully(zipFile, offset);
+				ftpAppendFile(ftp, ftpFileName, zipFile);
+			} else {
+				ftpStoreFile(ftp, ftpFileName, zipFile);
+			}
+		}
+
+		long remoteSize = FTPRemoteListing.getFileSize(ftp, ftpFileName);
+		if (remoteSize != localSize) {
+			throw new IOException("Uploaded file " + ftpFileName + " has " + remoteSize + " bytes instead of " + localSize);
+		}
+		if (offset > 0 && offset < localSize) {
+			ftpVerifyResumedUpload(ftp, ftpFileName, hashCache.getHash(filePath));
 		}
 		LOGGER.debug("Uploaded file: {}", ftpFileName);
+		if (offset == 0) {
+			requestCost.record(localSize, System.nanoTime() - requestStart);
+		}
+	}
+
+	/**
+	 * The bytes a resumed upload kept were written by an earlier attempt, whose content may have differed if the source changed in
+	 * between. Matching sizes do not show that, so the whole remote file is compared with the hash of the content.
+	 */
+	private static void ftpVerifyResumedUpload(FTPClient ftp, String ftpFileName, byte[] expectedHash) throws IOException {
+		if (!Arrays.equals(ftpRetrieveMd5(ftp, ftpFileName), expectedHash)) {
+			ftp.deleteFile(ftpFileName);
+			logFtpCommand(ftp, "deleteFile", ftpFileName);
+			throw new IOException("Resumed upload of " + ftpFileName + " does not match its hash, starting over");
+		}
+	}
+
+	/**
+	 * Lets the server compute the MD5 if it supports XMD5, reads the file back otherwise.
+	 */
+	private static byte[] ftpRetrieveMd5(FTPClient ftp, String file) throws IOException {
+		int reply = ftp.sendCommand("XMD5", file);
+		logFtpCommand(ftp, "XMD5", file);
+		if (FTPReply.isPositiveCompletion(reply)) {
+			Matcher hash = MD5_HEX.matcher(ftp.getReplyString());
+			if (hash.find()) {
+				try {
+					return Hex.decodeHex(hash.group().toCharArray());
+				} catch (DecoderException e) {
+					LogUtil.stacktrace(LOGGER, e);
+				}
+			}
+		}
+
+		MessageDigest md5 = DigestUtils.getMd5Digest();
+		try (OutputStream out = new DigestOutputStream(NullOutputStream.NULL_OUTPUT_STREAM, md5)) {
+			ftp.setRestartOffset(0);
+			boolean success = ftp.retrieveFile(file, out);
+			logFtpCommand(ftp, "retrieveFile", file);
+			if (!success) {
+				throw new IOException("Could not read back file " + file + ": " + ftp.getReplyString());
+			}
+		}
+		return md5.digest();
 	}
 
 	@Override
 	public SyncActionFuture<Boolean> doesFileExist(String file) {
 		LOGGER.debug("Checking file existence: {}", file);
 
-		return new NoProgressSyncActionFuture<>(file + " existance check", perform(() -> ftpFileExists(file)));
+		return new NoProgressSyncActionFuture<>(file + " existance check", perform(ftp -> ftpFileExists(ftp, file)));
 	}
 
-	private boolean ftpFileExists(String file) throws IOException {
-		FTPFile[] ftpFiles = ftpClient.listFiles(file);
-		logFtpCommand(ftpClient, "listFiles", file);
+	private static boolean ftpFileExists(FTPClient ftp, String file) throws IOException {
+		FTPFile[] ftpFiles = ftp.listFiles(file);
+		logFtpCommand(ftp, "listFiles", file);
 
 		return ftpFiles.length > 0;
 	}
 
 	@Override
-	public SyncActionFuture<List<Path>> downloadFiles(Collection<String> fileNames) {
+	public SyncActionFuture<List<Path>> downloadFiles(Collection<String> fileNames, SyncManifest manifest) {
 		LOGGER.debug("Downloading files {}", fileNames);
 
-		Map<String, byte[]> md5s = retrieveMd5s();
+		Map<String, RemoteEntry> remoteListing = getRemoteListing(fileNames.stream()
+				.filter(fileName -> !manifest.getEntry(fromRemoteSyncPath(fileName)).isPresent())
+				.collect(Collectors.toList()));
 
 		List<String> filesToDownload = fileNames.stream()
-				.filter(remoteFileName -> {
-					Path localPath = toLocalPath(remoteFileName);
-					Path relativeToBase = appConfig.getSyncPath().relativize(localPath);
-					byte[] remoteMd5 = md5s.get(relativeToBase.toString());
-					return hasEqualMd5(localPath, remoteMd5);
-				})
+				.filter(remoteFileName -> differsFromRemote(toLocalPath(remoteFileName), remoteListing.get(remoteFileName), manifest))
 				.collect(Collectors.toList());
 
-		LOGGER.debug("Retrieving total file size of remote files ");
-		long totalFileSize = getTotalRemoteFileSize(filesToDownload);
+		ToLongFunction<String> remoteSize = fileName -> getRemoteFileSize(fileName, manifest, remoteListing);
+		long totalFileSize = filesToDownload.stream()
+				.mapToLong(remoteSize)
+				.sum();
 		LOGGER.debug("Total file size of remote files: {}", totalFileSize);
 
-		Future<List<Path>> downloadResult = perform(() -> {
-			filesToDownload.stream()
-					.map(rethrow(this::downloadFile))
-					.collect(Collectors.toList());
+		Future<List<Path>> downloadResult = transferPool
+				.transferAll(filesToDownload, remoteSize, (ftp, fileName, resume) -> downloadFile(ftp, fileName, resume, manifest))
+				.thenRun(hashCache::save)
+				.thenApply(unused -> fileNames.stream()
+						.map(this::toLocalPath)
+						.collect(Collectors.toList()));
 
-			return fileNames.stream()
-					.map(this::toLocalPath)
-					.collect(Collectors.toList());
-		});
+		return new FTPTransferSyncActionFuture<>(downloadResult, progressListener, "server file download", totalFileSize);
+	}
+
+	@Override
+	public SyncActionFuture<Void> downloadStreams(Collection<StreamedDownload> downloads, SyncManifest manifest) {
+		LOGGER.debug("Downloading streams {}", downloads);
+
+		List<String> unlistedFileNames = downloads.stream()
+				.filter(download -> !manifest.getEntry(download.getPath()).isPresent())
+				.map(download -> toRemoteSyncPath(download.getPath()))
+				.collect(Collectors.toList());
+		Map<String, RemoteEntry> remoteListing = getRemoteListing(unlistedFileNames);
+
+		ToLongFunction<StreamedDownload> remoteSize =
+				download -> getRemoteFileSize(toRemoteSyncPath(download.getPath()), manifest, remoteListing);
+		long totalFileSize = downloads.stream().mapToLong(remoteSize).sum();
+
+		StageThroughput downloadStage = new StageThroughput("download");
+		StageThroughput extractStage = new StageThroughput("extract");
+
+		Future<Void> downloadResult = transferPool.transferAll(downloads, remoteSize, (ftp, download, resume) -> {
+					byte[] localSourceHash = download.getLocalSourceHash();
+					if (manifest.getEntry(download.getPath()).filter(entry -> entry.hasSourceHash(localSourceHash)).isPresent()) {
+						LOGGER.debug("Local source of '{}' unchanged, skipping download.", download.getPath());
+						progressListener.bytesSkipped(remoteSize.applyAsLong(download));
+						return;
+					}
+					downloadStream(ftp, download, manifest, downloadStage, extractStage);
+				})
+				.thenRun(hashCache::save)
+				.whenComplete((unused, e) -> logStageThroughput(downloadStage, extractStage));
 
 		return new FTPTransferSyncActionFuture<>(downloadResult, progressListener, "server file download", totalFileSize);
 	}
 
-	private boolean hasEqualMd5(Path localFile, byte[] md5) {
+	/**
+	 * The download is written into a bounded pipe, which a separate thread reads the content from while it is hashed. The content
+	 * reader may have already processed part of the content when the download fails, so every attempt starts over from the first byte.
+	 * A failed download ends the content with an error instead of a regular end, and the next attempt only starts once the content
+	 * reader of this one stopped, they would write the same files otherwise.
+	 * <p>
+	 * The time either side waits on the pipe is not counted for its stage, so the throughput shows which one is the bottleneck.
+	 */
+	private void downloadStream(FTPClient ftp, StreamedDownload download, SyncManifest manifest, StageThroughput downloadStage,
+			StageThroughput extractStage) throws IOException {
+		String ftpFileName = toObjectPath(download.getPath(), manifest);
+
+		MessageDigest md5 = DigestUtils.getMd5Digest();
+		PipedOutputStream pipeOut = new PipedOutputStream();
+		PipedInputStream pipeIn = new PipedInputStream(pipeOut, STREAM_PIPE_SIZE);
+		AtomicBoolean downloadComplete = new AtomicBoolean();
+		Future<Void> readResult = streamExecutor.submit(() -> {
+			long readStart = System.nanoTime();
+			WaitTimingInputStream timedPipeIn = new WaitTimingInputStream(pipeIn);
+			InputStream checkedPipeIn = new ProxyInputStream(timedPipeIn) {
+				@Override
+				protected void afterRead(int n) throws IOException {
+					if (n == IOUtils.EOF && !downloadComplete.get()) {
+						throw new IOException("Download of " + ftpFileName + " failed");
+					}
+				}
+			};
+			try (InputStream in = new DigestInputStream(checkedPipeIn, md5)) {
+				download.readFrom(in);
+				// the content reader does not have to read until the end, but the hash has to include every byte
+				IOUtils.copy(in, NullOutputStream.NULL_OUTPUT_STREAM);
+			} finally {
+				extractStage.record(timedPipeIn.getByteCount(), System.nanoTime() - readStart - timedPipeIn.getWaitNanos());
+			}
+			return null;
+		});
+
+		boolean success = false;
+		long downloadStart = System.nanoTime();
+		WaitTimingOutputStream timedPipeOut = new WaitTimingOutputStream(pipeOut);
+		try (CountingOutputStream out = new CountingOutputStream(timedPipeOut)) {
+			ftp.setRestartOffset(0);
+			success = ftp.retrieveFile(ftpFileName, out);
+			logFtpCommand(ftp, "retrieveFile", ftpFileName);
+			downloadStage.record(out.getByteCount(), System.nanoTime() - downloadStart - timedPipeOut.getWaitNanos());
+			downloadComplete.set(success);
+		} finally {
+			if (!success) {
+				awaitStopped(readResult);
+			}
+		}
+		if (!success) {
+			throw new IOException("Could not retrieve file " + ftpFileName + ": " + ftp.getReplyString());
+		}
+
+		try {
+			AsyncUtil.getResult(readResult);
+		} catch (ExecutionException e) {
+			throw new IOException("Could not read content of " + download.getPath(), e.getCause());
+		}
+
+		Optional<ManifestEntry> entry = manifest.getEntry(download.getPath());
+		if (entry.isPresent() && !entry.get().hasHash(md5.digest())) {
+			throw new IOException("Downloaded file " + ftpFileName + " does not match the hash in the manifest");
+		}
+		LOGGER.debug("Downloaded stream: {}", ftpFileName);
+	}
+
+	/**
+	 * Waits for a content reader whose download failed, its own failure follows from that and is not reported.
+	 */
+	private static void awaitStopped(Future<?> readResult) {
+		try {
+			AsyncUtil.getResult(readResult);
+		} catch (ExecutionException e) {
+			LOGGER.debug("Content reader stopped: {}", e.getCause().getMessage());
+		}
+	}
+
+	private String toManifestPath(Path localFile) {
+		return toFtpPath(appConfig.getSyncPath().relativize(localFile));
+	}
+
+	/**
+	 * Files uploaded in a generation are not in the listing of the sync directory, their size is taken from the manifest.
+	 */
+	private long getRemoteFileSize(String remoteFileName, SyncManifest manifest, Map<String, RemoteEntry> remoteListing) {
+		Optional<ManifestEntry> manifestEntry = manifest.getEntry(fromRemoteSyncPath(remoteFileName));
+		if (manifestEntry.isPresent()) {
+			return manifestEntry.get().getSize();
+		}
+		RemoteEntry entry = remoteListing.get(remoteFileName);
+		return entry == null ? 0L : entry.getSize();
+	}
+
+	/**
+	 * Checks the size from the remote listing first, only when it matches the local file it has to be hashed.
+	 */
+	private boolean differsFromRemote(Path localFile, RemoteEntry remoteEntry, SyncManifest manifest) {
 		try {
-			Path relativeToBase = appConfig.getSyncPath().relativize(localFile);
+			if (remoteEntry != null && Files.exists(localFile) && Files.size(localFile) != remoteEntry.getSize()) {
+				LOGGER.debug("Remote size differs for file '{}', downloading...", localFile);
+				return true;
+			}
+		} catch (IOException e) {
+			LogUtil.stacktrace(LOGGER, e);
+		}
+		return differsFromManifest(localFile, manifest);
+	}
+
+	private boolean differsFromManifest(Path localFile, SyncManifest manifest) {
+		Optional<ManifestEntry> entry = manifest.getEntry(toManifestPath(localFile));
+		if (!entry.isPresent() || !Files.exists(localFile)) {
+			LOGGER.debug("File '{}' is missing on one side, uploading/downloading...", localFile);
+			return true;
+		}
+		try {
+			if (Files.size(localFile) != entry.get().getSize()) {
+				LOGGER.debug("Differing sizes for file '{}', uploading/downloading...", localFile);
+				return true;
+			}
 			LOGGER.debug("Comparing MD5s for file '{}'...", localFile);
-			byte[] localMd5 = computeMd5(localFile);
-			if (Arrays.equals(md5, localMd5)) {
+			if (entry.get().hasHash(hashCache.getHash(localFile))) {
 				LOGGER.debug("Equal MD5s, skipping upload/download.");
 				return false;
 			}
@@ -344,229 +698,407 @@ public class FTPSyncClient implements SyncClient {
 		return Paths.get(appConfig.getBaseServerPath().toString(), remoteFileName.replaceAll("/", "\\\\"));
 	}
 
-	private long getTotalRemoteFileSize(Collection<String> fileNames) {
+	/**
+	 * Reuses the listing of the last {@link #findServerFiles(SyncManifest)} if it contains all requested files, lists the remote files again
+	 * otherwise.
+	 */
+	private Map<String, RemoteEntry> getRemoteListing(Collection<String> fileNames) {
+		Map<String, RemoteEntry> remoteListing = lastRemoteListing;
+		if (remoteListing.keySet().containsAll(fileNames)) {
+			return remoteListing;
+		}
+
 		try {
-			Future<Long> fileSizeResult = perform(() -> {
-				return fileNames.stream()
-						.map(rethrow((String fileName) -> {
-							FTPFile[] ftpFiles = ftpClient.listFiles(fileName);
-							if (ftpFiles.length != 1 || !ftpFiles[0].isFile()) {
-								return 0L;
-							} else {
-								return ftpFiles[0].getSize();
-							}
-						}))
-						.mapToLong(Long::valueOf)
-						.sum();
-			});
-			return AsyncUtil.getResult(fileSizeResult);
+			return AsyncUtil.getResult(perform(this::ftpListServerFiles));
 		} catch (ExecutionException e) {
-			LOGGER.warn("Error while calculating download file size, progress will not be available.");
+			LOGGER.warn("Error while listing remote files, progress will not be available.");
 			LogUtil.stacktrace(LOGGER, e);
-			return 0;
+			return Collections.emptyMap();
 		}
 	}
 
-	private Map<String, byte[]> retrieveMd5s() {
+	private String getRemoteSyncDirectory() {
+		return toFtpPath(appConfig.getBaseServerPath().relativize(appConfig.getSyncPath()));
+	}
+
+	private String toRemoteSyncPath(String manifestPath) {
+		return getRemoteSyncDirectory() + '/' + manifestPath;
+	}
+
+	private String fromRemoteSyncPath(String remoteFileName) {
+		return StringUtils.removeStart(remoteFileName, getRemoteSyncDirectory() + '/');
+	}
+
+	/**
+	 * @param generation empty for files uploaded by an earlier version directly into the sync directory
+	 */
+	private String toObjectPath(String manifestPath, String generation) {
+		return RemoteGenerations.getObjectPath(getRemoteSyncDirectory(), manifestPath, generation);
+	}
+
+	private String toObjectPath(String manifestPath, SyncManifest manifest) {
+		return toObjectPath(manifestPath, manifest.getEntry(manifestPath).map(ManifestEntry::getGeneration).orElse(""));
+	}
+
+	private Map<String, RemoteEntry> ftpListServerFiles(FTPClient ftp) throws IOException {
+		String serverFilesDirectory = getRemoteSyncDirectory();
+		Map<String, RemoteEntry> remoteListing = FTPRemoteListing.listRecursively(ftp, serverFilesDirectory);
+		remoteDirectories.addListing(serverFilesDirectory, remoteListing.values());
+		lastRemoteListing = remoteListing;
+		return remoteListing;
+	}
+
+	@Override
+	public SyncActionFuture<SyncManifest> retrieveManifest() {
+		return new NoProgressSyncActionFuture<>("sync manifest retrieval", perform(FTPSyncClient::ftpRetrieveManifest));
+	}
+
+	private SyncManifest retrieveManifestOrEmpty() {
 		try {
-			Future<Path> md5FileFuture = perform(() -> downloadFile(MD5_FILE));
-
-			Path md5File = AsyncUtil.getResult(md5FileFuture);
-			Path md5TempPath = appConfig.getBaseServerPath().resolve(MD5_TEMP_PATH);
-
-			ZipUtil.unpack(md5File.toFile(), md5TempPath.toFile());
-
-			return Files.walk(md5TempPath)
-					.collect(
-							HashMap<String, byte[]>::new,
-							(map, path) -> {
-								try {
-									Path relativeToBase = md5TempPath.relativize(path);
-									String fileName = relativeToBase.getFileName().toString().replaceAll("\\.md5$", "");
-									if (relativeToBase.getParent() != null) {
-										fileName = relativeToBase.getParent().resolve(fileName).toString();
-									}
-									byte[] md5 = Files.readAllBytes(path);
-									map.put(fileName, md5);
-								} catch (IOException ignored) {
-								}
-							},
-							HashMap::putAll
-					);
-		} catch (IOException | ExecutionException | ZipException e) {
-			LOGGER.warn("Error while creating MD5 table");
+			return AsyncUtil.getResult(perform(FTPSyncClient::ftpRetrieveManifest));
+		} catch (ExecutionException e) {
+			LOGGER.warn("Error while retrieving the sync manifest");
 			LogUtil.stacktrace(LOGGER, e);
-			return Collections.emptyMap();
+			return new SyncManifest();
 		}
 	}
 
+	/**
+	 * Reads the manifest of the generation HEAD points to, or the manifest in the sync directory if the server files were never
+	 * uploaded in a generation.
+	 */
+	private static SyncManifest ftpRetrieveManifest(FTPClient ftp) throws IOException {
+		Optional<String> head = RemoteGenerations.ftpRetrieveHead(ftp);
+		return RemoteGenerations.ftpRetrieveManifest(ftp, head.map(RemoteGenerations::getManifestFile).orElse(MANIFEST_FILE));
+	}
 
-	private void storeMd5s(Collection<Path> filePaths) throws IOException {
-		Path md5TempPath = appConfig.getBaseServerPath().resolve(MD5_TEMP_PATH);
-		filePaths.forEach(filePath -> {
-			try {
-				Path dirRelativeToBase = appConfig.getSyncPath().relativize(filePath.getParent());
-				Path md5FilePath = md5TempPath.resolve(dirRelativeToBase).resolve(filePath.getFileName() + ".md5");
+	/**
+	 * Publishes the generation by storing its manifest and then pointing HEAD to it. The new HEAD is stored under a temporary name
+	 * and renamed, so readers see either the previous generation or the new one, but never a partial upload. An upload that may no
+	 * longer publish does not even store the manifest.
+	 */
+	private void ftpCommitGeneration(FTPClient ftp, String generation, SyncManifest manifest) throws IOException {
+		ftpCheckPublish(ftp);
+		ftpStoreManifest(ftp, RemoteGenerations.getManifestFile(generation), manifest);
+		ftpPublishGeneration(ftp, generation);
+		generationCollector.collectInBackground();
+	}
 
-				Files.createDirectories(md5FilePath.getParent());
+	private void ftpCheckPublish(FTPClient ftp) throws IOException {
+		PublishGuard guard = publishGuard;
+		if (guard != null) {
+			guard.checkPublish(ftpRetrieveFileContents(ftp, guard.getGuardFile()));
+		}
+	}
 
-				Files.write(md5FilePath, computeMd5(filePath));
-			} catch (IOException e) {
-				LOGGER.warn("Error while computing md5.");
-				LogUtil.stacktrace(LOGGER, e);
+	private void ftpPublishGeneration(FTPClient ftp, String generation) throws IOException {
+		String headFile = RemoteGenerations.HEAD_FILE;
+		ftpReplaceFile(ftp, headFile, headFile + '.' + generation, IOUtils.toInputStream(generation, "UTF-8"));
+		RemoteGenerations.ftpAppendHeadLog(ftp, generation);
+		LOGGER.info("Published generation {}", generation);
+	}
+
+	/**
+	 * Stores the file under the temporary name and renames it over the file, so readers see either the previous content or the new
+	 * one, never a partial upload.
+	 */
+	private void ftpReplaceFile(FTPClient ftp, String file, String temporaryFile, InputStream content) throws IOException {
+		ftpStoreFile(ftp, temporaryFile, content);
+		if (!ftpRename(ftp, temporaryFile, file)) {
+			// some servers cannot rename onto an existing file
+			ftp.deleteFile(file);
+			logFtpCommand(ftp, "deleteFile", file);
+			if (!ftpRename(ftp, temporaryFile, file)) {
+				throw new IOException("Could not replace file " + file + ": " + ftp.getReplyString());
 			}
-		});
+		}
+	}
 
-		OnlyContentZipEntrySource[] zipEntries = Files.walk(md5TempPath)
-				.filter(not(Files::isDirectory))
-				.map(file -> {
-					Path relativeToBase = md5TempPath.relativize(file);
-					return new OnlyContentZipEntrySource(relativeToBase.toString(), file.toFile());
-				})
-				.toArray(OnlyContentZipEntrySource[]::new);
+	@Override
+	public void setPublishGuard(PublishGuard publishGuard) {
+		this.publishGuard = publishGuard;
+	}
 
-		Path md5File = appConfig.getBaseServerPath().resolve(MD5_FILE);
-		ZipUtil.pack(zipEntries, md5File.toFile());
+	/**
+	 * Points HEAD to the newest published generation before the current one that is still kept. Nothing is deleted, the generation
+	 * that was rolled back stays on the server until it is too old to be kept.
+	 */
+	@Override
+	public SyncActionFuture<Optional<String>> rollBack() {
+		return new NoProgressSyncActionFuture<>("rollback", perform(ftp -> {
+			Optional<String> head = RemoteGenerations.ftpRetrieveHead(ftp);
+			if (!head.isPresent()) {
+				return Optional.<String>empty();
+			}
+			Set<String> published = new HashSet<>(RemoteGenerations.ftpRetrievePublished(ftp));
+			for (String generation : RemoteGenerations.ftpListGenerations(ftp)) {
+				if (generation.compareTo(head.get()) < 0 && published.contains(generation)
+						&& RemoteGenerations.ftpIsComplete(ftp, generation)) {
+					ftpPublishGeneration(ftp, generation);
+					return Optional.of(generation);
+				}
+			}
+			return Optional.<String>empty();
+		}));
+	}
 
-		ftpStoreFile(MD5_FILE, Files.newInputStream(md5File));
+	private static boolean ftpRename(FTPClient ftp, String from, String to) throws IOException {
+		boolean renamed = ftp.rename(from, to);
+		logFtpCommand(ftp, "rename", from, to);
+		return renamed;
 	}
 
+	private ManifestEntry createManifestEntry(Path filePath, String generation) throws IOException {
+		long lastModified = Files.getLastModifiedTime(filePath).toMillis();
+		return new ManifestEntry(toManifestPath(filePath), Files.size(filePath), lastModified, hashCache.getHash(filePath),
+				new byte[0], Collections.emptyMap(), Collections.emptyList(), generation);
+	}
 
-	private Path downloadFile(String remoteFileName) throws IOException {
+	/**
+	 * Files that were not uploaded again keep the entry of the generation they were uploaded in.
+	 */
+	private SyncManifest createManifest(Collection<Path> filePaths, SyncManifest previousManifest) throws IOException {
+		SyncManifest manifest = new SyncManifest();
+		for (Path filePath : filePaths) {
+			String path = toManifestPath(filePath);
+			byte[] hash = hashCache.getHash(filePath);
+			ManifestEntry entry = Stream.of(transferJournal.getUploaded(path), previousManifest.getEntry(path))
+					.filter(Optional::isPresent)
+					.map(Optional::get)
+					.filter(uploadedEntry -> uploadedEntry.hasHash(hash))
+					.findFirst()
+					.orElseThrow(() -> new IOException(filePath + " changed while it was uploaded"));
+			manifest.putEntry(entry);
+		}
+		return manifest;
+	}
+
+	private void ftpStoreManifest(FTPClient ftp, String manifestFile, SyncManifest manifest) throws IOException {
+		remoteDirectories.createParentDirectories(ftp, manifestFile);
+
+		OutputStream manifestStream = ftp.storeFileStream(manifestFile);
+		logFtpCommand(ftp, "storeFileStream", manifestFile);
+		if (manifestStream == null) {
+			throw new IOException("Could not open sync manifest for writing: " + ftp.getReplyString());
+		}
+
+		try (OutputStream out = manifestStream) {
+			manifest.write(out);
+		}
+		if (!ftp.completePendingCommand()) {
+			throw new IOException("Could not store sync manifest: " + ftp.getReplyString());
+		}
+		logFtpCommand(ftp, "completePendingCommand");
+	}
+
+	/**
+	 * When resuming, the partially downloaded local file is kept and only the rest is requested from the server. The result is
+	 * checked against the hash in the manifest, a mismatch deletes the local file so the next attempt starts over.
+	 */
+	private void downloadFile(FTPClient ftp, String remoteFileName, boolean resume, SyncManifest manifest) throws IOException {
 		Path localPath = toLocalPath(remoteFileName);
+		String objectPath = toObjectPath(fromRemoteSyncPath(remoteFileName), manifest);
 
-		ftpRetrieveFile(remoteFileName, localPath);
+		long offset = (resume && Files.exists(localPath)) ? Files.size(localPath) : 0;
+		if (offset > 0) {
+			LOGGER.info("Resuming download of {} at byte {}", remoteFileName, offset);
+		}
+		if (!ftpRetrieveFile(ftp, objectPath, localPath, offset)) {
+			if (offset > 0) {
+				// the server may not support resuming, start over next time
+				Files.deleteIfExists(localPath);
+			}
+			throw new IOException("Could not retrieve file " + remoteFileName + ": " + ftp.getReplyString());
+		}
 
-		return localPath;
+		Optional<ManifestEntry> entry = manifest.getEntry(fromRemoteSyncPath(remoteFileName));
+		if (entry.isPresent() && !entry.get().hasHash(hashCache.getHash(localPath))) {
+			Files.deleteIfExists(localPath);
+			throw new IOException("Downloaded file " + remoteFileName + " does not match the hash in the manifest");
+		}
 	}
 
-	private void ftpRetrieveFile(String remoteFileName, Path path) throws IOException {
+	private static boolean ftpRetrieveFile(FTPClient ftp, String remoteFileName, Path path, long offset) throws IOException {
 		Path parent = path.getParent();
 		if (parent != null) {
 			Files.createDirectories(parent);
 		}
-		try (FileOutputStream fileStream = new FileOutputStream(path.toFile())) {
-			ftpClient.retrieveFile(remoteFileName, fileStream);
-			logFtpCommand(ftpClient, "retrieveFile", remoteFileName);
+		try (FileOutputStream fileStream = new FileOutputStream(path.toFile(), offset > 0)) {
+			ftp.setRestartOffset(offset);
+			boolean success = ftp.retrieveFile(remoteFileName, fileStream);
+			logFtpCommand(ftp, "retrieveFile", remoteFileName, offset);
+			return success;
 		}
 	}
 
+	/**
+	 * The files in the manifest are returned with their path in the sync directory, even if they were uploaded in a generation. Only
+	 * without a manifest the sync directory is listed.
+	 */
 	@Override
-	public SyncActionFuture<Set<String>> findServerFiles() {
-		Future<Set<String>> findServerFilesResult = perform(() -> {
-			String serverFilesDirectory = toFtpPath(appConfig.getBaseServerPath().relativize(appConfig.getSyncPath()));
-			return listFilesRecursively(serverFilesDirectory).keySet();
+	public SyncActionFuture<Set<String>> findServerFiles(SyncManifest manifest) {
+		Future<Set<String>> findServerFilesResult = perform(ftp -> {
+			if (!manifest.isEmpty()) {
+				return manifest.getEntries().stream()
+						.map(entry -> toRemoteSyncPath(entry.getPath()))
+						.collect(Collectors.toSet());
+			}
+			return ftpListServerFiles(ftp).values().stream()
+					.filter(RemoteEntry::isFile)
+					.map(RemoteEntry::getPath)
+					.filter(path -> !path.endsWith(".md5"))
+					.collect(Collectors.toSet());
 		});
 
 		return new NoProgressSyncActionFuture<>("list server files", findServerFilesResult);
 	}
 
-	private void ftpStoreFile(String file, InputStream is) throws IOException {
-		Path filePath = Paths.get(file);
-		ftpCreateParentDirs(filePath);
+	private void ftpStoreFile(FTPClient ftp, String file, InputStream is) throws IOException {
+		remoteDirectories.createParentDirectories(ftp, file);
 
-		ftpClient.storeFile(file, is);
-		logFtpCommand(ftpClient, "ftpStoreFile", file);
+		boolean success = ftp.storeFile(file, is);
+		logFtpCommand(ftp, "ftpStoreFile", file);
+		if (!success) {
+			throw new IOException("Could not store file " + file + ": " + ftp.getReplyString());
+		}
 	}
 
-	private void ftpCreateParentDirs(Path filePath) throws IOException {
-		Path parent = filePath.getParent();
-		if (parent != null) {
-			if (!ftpFileExists(toFtpPath(parent))) {
-				ftpCreateParentDirs(parent);
-				ftpCreateDir(parent);
-			}
+	private static void ftpAppendFile(FTPClient ftp, String file, InputStream is) throws IOException {
+		boolean success = ftp.appendFile(file, is);
+		logFtpCommand(ftp, "appendFile", file);
+		if (!success) {
+			throw new IOException("Could not append to file " + file + ": " + ftp.getReplyString());
 		}
 	}
 
-	private void ftpCreateDir(Path dir) throws IOException {
-		ftpClient.makeDirectory(toFtpPath(dir));
-		logFtpCommand(ftpClient, "makeDirectory", dir);
+	@Override
+	public SyncActionFuture<Set<String>> findStoredChunks() {
+		return new NoProgressSyncActionFuture<>("list stored chunks", perform(this::ftpFindStoredChunks));
 	}
 
-	private Map<String, FTPFile> listFilesRecursively(String directory) throws IOException {
-		FTPFile[] listFiles = ftpClient.listFiles(directory);
-		List<FTPFile> ftpFiles = Arrays.asList(listFiles);
-
-		Map<String, FTPFile> fileMap = new HashMap<>();
+	private Set<String> ftpFindStoredChunks(FTPClient ftp) throws IOException {
+		Map<String, RemoteEntry> listing = FTPRemoteListing.listRecursively(ftp, CHUNK_DIRECTORY);
+		remoteDirectories.addListing(CHUNK_DIRECTORY, listing.values());
+		return listing.values().stream()
+				.filter(RemoteEntry::isFile)
+				.map(entry -> StringUtils.substringAfterLast(entry.getPath(), "/"))
+				.filter(name -> !name.endsWith(PARTIAL_CHUNK_EXTENSION))
+				.collect(Collectors.toSet());
+	}
 
-		ftpFiles.stream()
-				.filter(FTPFile::isFile)
-				.filter(file -> !file.getName().endsWith(".md5"))
-				.forEach(file -> {
-					fileMap.put(directory + '/' + file.getName(), file);
-				});
+	@Override
+	public SyncActionFuture<ChunkIndex> retrieveIndex() {
+		return new NoProgressSyncActionFuture<>("chunk index retrieval", perform(FTPSyncClient::ftpRetrieveChunkIndex));
+	}
 
-		ftpFiles.stream()
-				.filter(FTPFile::isDirectory)
-				.map(rethrow((FTPFile dir) -> listFilesRecursively(directory + '/' + dir.getName())))
-				.forEach(fileMap::putAll);
+	/**
+	 * @return an empty index if there is none
+	 */
+	static ChunkIndex ftpRetrieveChunkIndex(FTPClient ftp) throws IOException {
+		InputStream indexStream = ftp.retrieveFileStream(CHUNK_INDEX_FILE);
+		logFtpCommand(ftp, "retrieveFileStream", CHUNK_INDEX_FILE);
+		if (indexStream == null) {
+			LOGGER.debug("No chunk index found");
+			return new ChunkIndex();
+		}
 
-		return fileMap;
+		ChunkIndex index;
+		try (InputStream in = indexStream) {
+			index = ChunkIndex.read(in);
+		}
+		ftp.completePendingCommand();
+		logFtpCommand(ftp, "completePendingCommand");
+		return index;
 	}
 
-	private <R> Future<R> retry(FTPAction<R> action) {
-		return executor.submit(() -> {
-			for (int i = 1; i <= MAX_RETRIES; ++i) {
-				try {
-					if (i > 1) {
-						LOGGER.debug("Trying action again after failure...");
-					}
-					return action.perform();
-				} catch (IOException e) {
-					LOGGER.warn("Error during FTP action: {}", e.getMessage());
-					LogUtil.stacktrace(LOGGER, e);
-					try {
-						ftpClient.disconnect();
-					} catch (IOException e1) {
-						LOGGER.warn("Error while disconnecting: {}", e1.getMessage());
-						LogUtil.stacktrace(LOGGER, e1);
-					}
+	/**
+	 * Chunks the index does not refer to are deleted in the background afterwards, so the chunks that were found stored when the
+	 * upload started are checked again before the index is replaced.
+	 */
+	@Override
+	public SyncActionFuture<Void> storeGeneration(ChunkIndex index, Collection<ChunkRef> missingChunks, ChunkSource source) {
+		LOGGER.debug("Storing {} chunks", missingChunks.size());
+
+		long totalSize = missingChunks.stream().mapToLong(ChunkRef::getLength).sum();
+		Future<Void> storeResult = transferPool
+				.transferAll(missingChunks, ChunkRef::getLength, (ftp, chunk, resume) -> ftpStoreChunk(ftp, chunk, source))
+				.thenCompose(unused -> performVoid(ftp -> {
+					ByteArrayOutputStream serializedIndex = new ByteArrayOutputStream();
+					index.write(serializedIndex);
+					ftpCheckChunksStored(ftp, index);
+					ftpCheckPublish(ftp);
+					ftpReplaceFile(ftp, CHUNK_INDEX_FILE, PARTIAL_CHUNK_INDEX_FILE,
+							new ByteArrayInputStream(serializedIndex.toByteArray()));
+					chunkCollector.collectInBackground();
+				}));
+
+		return new FTPTransferSyncActionFuture<>(storeResult, progressListener, "server file upload", totalSize);
+	}
 
-					tryConnect();
+	private void ftpCheckChunksStored(FTPClient ftp, ChunkIndex index) throws IOException {
+		Set<String> storedChunks = ftpFindStoredChunks(ftp);
+		for (IndexedFile file : index.getFiles()) {
+			for (ChunkRef chunk : file.getChunks()) {
+				if (!storedChunks.contains(chunk.getHash())) {
+					throw new IOException("Chunk " + chunk.getHash() + " of " + file.getPath() + " was deleted during the upload");
 				}
 			}
-
-			LOGGER.error("Could not perform FTP action, 3 retries all failed.");
-			throw new FTPException("Could not perform FTP action.");
-		});
-	}
-
-	private Future<Void> retry(FTPVoidAction action) {
-		return retry(() -> {
-			action.perform();
-			return (Void) null;
-		});
+		}
 	}
 
-	private <R> Future<R> perform(FTPAction<R> action) {
-		tryConnect();
+	/**
+	 * Chunks are stored under a temporary name first and renamed once they are complete, so an interrupted upload never leaves a
+	 * partial chunk under its hash. The source is read again for the upload, if its content changed since it was chunked the upload
+	 * fails instead of storing different content under the hash.
+	 */
+	private void ftpStoreChunk(FTPClient ftp, ChunkRef chunk, ChunkSource source) throws IOException {
+		String chunkFile = getChunkFile(chunk);
+		String partialChunkFile = chunkFile + PARTIAL_CHUNK_EXTENSION;
+		byte[] data = source.read(chunk);
+		if (!DigestUtils.sha256Hex(data).equals(chunk.getHash())) {
+			throw new IOException("Chunk " + chunk.getHash() + " changed since it was chunked");
+		}
+		ftpStoreFile(ftp, partialChunkFile, new ByteArrayInputStream(data));
 
-		return retry(action);
+		boolean renamed = ftp.rename(partialChunkFile, chunkFile);
+		logFtpCommand(ftp, "rename", partialChunkFile, chunkFile);
+		if (!renamed) {
+			throw new IOException("Could not rename chunk " + partialChunkFile + ": " + ftp.getReplyString());
+		}
 	}
 
-	private Future<Void> perform(FTPVoidAction action) {
-		tryConnect();
+	@Override
+	public SyncActionFuture<Void> retrieveChunks(Collection<ChunkRef> chunks, ChunkSink sink) {
+		LOGGER.debug("Retrieving {} chunks", chunks.size());
+
+		long totalSize = chunks.stream().mapToLong(ChunkRef::getLength).sum();
+		Future<Void> retrieveResult = transferPool.transferAll(chunks, ChunkRef::getLength, (ftp, chunk, resume) -> {
+			String chunkFile = getChunkFile(chunk);
+			ByteArrayOutputStream data = new ByteArrayOutputStream(chunk.getLength());
+			boolean success = ftp.retrieveFile(chunkFile, data);
+			logFtpCommand(ftp, "retrieveFile", chunkFile);
+			if (!success) {
+				throw new IOException("Could not retrieve chunk " + chunkFile + ": " + ftp.getReplyString());
+			}
+			if (!DigestUtils.sha256Hex(data.toByteArray()).equals(chunk.getHash())) {
+				throw new IOException("Retrieved chunk " + chunkFile + " does not match its hash");
+			}
+			sink.write(chunk, data.toByteArray());
+		});
 
-		return retry(action);
+		return new FTPTransferSyncActionFuture<>(retrieveResult, progressListener, "server file download", totalSize);
 	}
 
-	private long getFileSize(String fileName) {
-		Future<Long> fileSizeResult = perform(() -> {
-			long fileSize = 0;
-			FTPFile[] files = ftpClient.listFiles(fileName);
-			if (files.length != 1 || !files[0].isFile()) {
-				throw new FTPException("Could not get size of file " + fileName);
-			}
-			return files[0].getSize();
-		});
+	private static String getChunkFile(ChunkRef chunk) {
+		return CHUNK_DIRECTORY + '/' + chunk.getHash().substring(0, 2) + '/' + chunk.getHash();
+	}
 
-		try {
-			return AsyncUtil.getResult(fileSizeResult);
-		} catch (ExecutionException e) {
-			throw new FTPException(e);
-		}
+	private <R> CompletableFuture<R> perform(FTPAction<R> action) {
+		return CompletableFuture.supplyAsync(() -> controlConnection.retry(action), executor);
+	}
 
+	private CompletableFuture<Void> performVoid(FTPVoidAction action) {
+		return CompletableFuture.runAsync(() -> controlConnection.retryVoid(action), executor);
 	}
 
 }
@@ -0,0 +1,14 @@
+package name.azzurite.mcserver.ftp;
+
+import java.io.IOException;
+
+import org.apache.commons.net.ftp.FTPClient;
+
+@FunctionalInterface
+interface FTPTransfer<T> {
+
+	/**
+	 * @param resume whether a previous attempt to transfer this item failed, so the transfer may continue where that attempt stopped
+	 */
+	void transfer(FTPClient ftp, T item, boolean resume) throws IOException;
+}
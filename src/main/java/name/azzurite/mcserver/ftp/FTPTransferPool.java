@@ -0,0 +1,115 @@
+package name.azzurite.mcserver.ftp;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.function.ToLongFunction;
+
+import name.azzurite.mcserver.config.AppConfig;
+import name.azzurite.mcserver.util.AsyncUtil;
+import org.apache.commons.net.io.CopyStreamListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of independent FTP connections that transfer a batch of items in parallel.
+ * <p>
+ * All items of a batch are put into one queue ordered by size, largest first. Every connection takes the next item as soon as it is
+ * done with its current one, so no connection sits idle while another one still has work queued up, and the big items do not end up
+ * at the end of the batch where they would be transferred by a single connection.
+ * <p>
+ * A worker borrows a connection for as long as it works on the batch. Batches that run at the same time share the connections, a
+ * worker of a later batch waits until one is returned, so no connection is ever used by two threads.
+ */
+class FTPTransferPool {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(FTPTransferPool.class);
+
+	private final BlockingQueue<FTPConnection> idleConnections = new LinkedBlockingQueue<>();
+
+	private final int connectionCount;
+
+	private final ExecutorService executor;
+
+	FTPTransferPool(AppConfig appConfig, CopyStreamListener progressListener, int connectionCount) {
+		this.connectionCount = connectionCount;
+		for (int i = 1; i <= connectionCount; ++i) {
+			idleConnections.add(new FTPConnection(appConfig, progressListener, "transfer connection " + i));
+		}
+		executor = Executors.newFixedThreadPool(connectionCount, AsyncUtil.lowPriorityThreads());
+	}
+
+	<T> CompletableFuture<Void> transferAll(Collection<T> items, ToLongFunction<T> sizeOf, FTPTransfer<T> transfer) {
+		if (items.isEmpty()) {
+			return CompletableFuture.completedFuture(null);
+		}
+
+		// the size may have to be looked up on disk, so it is only determined once per item and not on every comparison
+		BlockingQueue<QueuedItem<T>> queue = new PriorityBlockingQueue<>(items.size(),
+				Comparator.comparingLong((QueuedItem<T> queued) -> queued.size).reversed());
+		for (T item : items) {
+			queue.add(new QueuedItem<>(item, sizeOf.applyAsLong(item)));
+		}
+
+		int workerCount = Math.min(connectionCount, items.size());
+		LOGGER.debug("Transferring {} items over {} connections", items.size(), workerCount);
+
+		CompletableFuture<?>[] workers = new CompletableFuture<?>[workerCount];
+		for (int i = 0; i < workerCount; ++i) {
+			workers[i] = CompletableFuture.runAsync(() -> work(queue, transfer), executor);
+		}
+
+		return CompletableFuture.allOf(workers);
+	}
+
+	private <T> void work(BlockingQueue<QueuedItem<T>> queue, FTPTransfer<T> transfer) {
+		FTPConnection connection = borrowConnection();
+		try {
+			QueuedItem<T> queued;
+			while ((queued = queue.poll()) != null) {
+				T current = queued.item;
+				boolean[] attempted = {false};
+				try {
+					connection.retryVoid(ftp -> {
+						boolean resume = attempted[0];
+						attempted[0] = true;
+						transfer.transfer(ftp, current, resume);
+					});
+				} catch (FTPException e) {
+					// the batch has failed, so the other connections should not start any new transfers
+					queue.clear();
+					throw e;
+				}
+			}
+		} finally {
+			idleConnections.add(connection);
+		}
+	}
+
+	private FTPConnection borrowConnection() {
+		while (true) {
+			try {
+				return idleConnections.take();
+			} catch (InterruptedException ignored) {
+				// the batch cannot be transferred without a connection, so keep waiting for one
+			}
+		}
+	}
+
+	private static final class QueuedItem<T> {
+
+		private final T item;
+
+		private final long size;
+
+		QueuedItem(T item, long size) {
+			this.item = item;
+			this.size = size;
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package name.azzurite.mcserver.ftp;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.apache.commons.net.io.CopyStreamEvent;
 import org.apache.commons.net.io.CopyStreamListener;
 import org.slf4j.Logger;
@@ -9,7 +11,7 @@ class FTPTransferProgressListener implements CopyStreamListener {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(FTPTransferProgressListener.class);
 
-	private long currentTransferredBytes = Long.MIN_VALUE;
+	private final AtomicLong currentTransferredBytes = new AtomicLong(Long.MIN_VALUE);
 
 	/**
 	 * Only valid when used as a difference of different invocations, to get the amount of bytes transfered between two different points in time.
@@ -17,7 +19,14 @@ class FTPTransferProgressListener implements CopyStreamListener {
 	 * @return
 	 */
 	public long getCurrentTransferredBytes() {
-		return currentTransferredBytes;
+		return currentTransferredBytes.get();
+	}
+
+	/**
+	 * Counts the bytes of a transfer that turned out to be unnecessary as done, so the progress of the whole batch stays accurate.
+	 */
+	void bytesSkipped(long bytes) {
+		currentTransferredBytes.addAndGet(bytes);
 	}
 
 	@Override
@@ -27,6 +36,6 @@ class FTPTransferProgressListener implements CopyStreamListener {
 
 	@Override
 	public void bytesTransferred(long totalBytesTransferred, int bytesTransferred, long streamSize) {
-		currentTransferredBytes += bytesTransferred;
+		currentTransferredBytes.addAndGet(bytesTransferred);
 	}
 }
@@ -2,8 +2,10 @@ package name.azzurite.mcserver.ftp;
 
 import java.io.IOException;
 
+import org.apache.commons.net.ftp.FTPClient;
+
 @FunctionalInterface
 interface FTPVoidAction {
 
-	void perform() throws IOException;
+	void perform(FTPClient ftp) throws IOException;
 }
@@ -0,0 +1,181 @@
+package name.azzurite.mcserver.ftp;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import name.azzurite.mcserver.config.AppConfig;
+import name.azzurite.mcserver.sync.ManifestEntry;
+import name.azzurite.mcserver.sync.SyncManifest;
+import name.azzurite.mcserver.util.LogUtil;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.io.CopyStreamListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static name.azzurite.mcserver.ftp.FTPConnection.*;
+
+/**
+ * Deletes the files on the server that no kept generation refers to anymore. Runs on its own connection after a generation was
+ * published, so the next download or upload does not have to wait for it.
+ * <p>
+ * The newest complete generations that were published are kept, together with the one HEAD points to, which is older after a
+ * rollback. The manifests of all other published generations are deleted first, so they cannot be rolled back to while their files
+ * are deleted. Files they share with a kept generation stay. Generations that were never published are only deleted if they are
+ * older than every kept one, newer ones may still be uploading.
+ */
+class GenerationCollector {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(GenerationCollector.class);
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+	private final AtomicBoolean collectionPending = new AtomicBoolean();
+
+	private final FTPConnection connection;
+
+	private final RemoteDirectoryCache remoteDirectories;
+
+	private final String legacyDirectory;
+
+	private final int keepGenerations;
+
+	/**
+	 * @param legacyDirectory the sync directory earlier versions uploaded the files into, its files are deleted like the ones of a
+	 * generation
+	 */
+	GenerationCollector(AppConfig appConfig, CopyStreamListener progressListener, RemoteDirectoryCache remoteDirectories,
+			String legacyDirectory) {
+		connection = new FTPConnection(appConfig, progressListener, "garbage collection connection");
+		this.remoteDirectories = remoteDirectories;
+		this.legacyDirectory = legacyDirectory;
+		keepGenerations = appConfig.getRemoteKeepGenerations();
+	}
+
+	/**
+	 * Starts a collection unless one is already waiting to start, which will see the latest generation as well.
+	 */
+	void collectInBackground() {
+		if (!collectionPending.compareAndSet(false, true)) {
+			return;
+		}
+		executor.execute(() -> {
+			collectionPending.set(false);
+			try {
+				connection.retryVoid(this::collect);
+			} catch (FTPException e) {
+				LOGGER.warn("Could not delete old generations, trying again after the next upload: {}", e.getMessage());
+				LogUtil.stacktrace(LOGGER, e);
+			}
+		});
+	}
+
+	private void collect(FTPClient ftp) throws IOException {
+		Optional<String> head = RemoteGenerations.ftpRetrieveHead(ftp);
+		if (!head.isPresent()) {
+			return;
+		}
+
+		List<String> generations = RemoteGenerations.ftpListGenerations(ftp);
+		Set<String> headLog = new HashSet<>(RemoteGenerations.ftpRetrievePublished(ftp));
+		Set<String> publishedGenerations = new HashSet<>();
+		for (String generation : generations) {
+			if (headLog.contains(generation) && RemoteGenerations.ftpIsComplete(ftp, generation)) {
+				publishedGenerations.add(generation);
+			}
+		}
+		TreeSet<String> keptGenerations = generations.stream()
+				.filter(publishedGenerations::contains)
+				.limit(keepGenerations)
+				.collect(Collectors.toCollection(TreeSet::new));
+		keptGenerations.add(head.get());
+
+		Set<String> referencedFiles = new HashSet<>();
+		for (String generation : keptGenerations) {
+			String manifestFile = RemoteGenerations.getManifestFile(generation);
+			SyncManifest manifest = RemoteGenerations.ftpRetrieveManifest(ftp, manifestFile);
+			if (manifest.isEmpty()) {
+				LOGGER.warn("Could not read the manifest of generation {}, not deleting anything.", generation);
+				return;
+			}
+			referencedFiles.add(manifestFile);
+			for (ManifestEntry entry : manifest.getEntries()) {
+				referencedFiles.add(RemoteGenerations.getObjectPath(legacyDirectory, entry.getPath(), entry.getGeneration()));
+			}
+		}
+
+		List<String> collectedGenerations = generations.stream()
+				.filter(generation -> !keptGenerations.contains(generation))
+				.filter(generation -> publishedGenerations.contains(generation) || generation.compareTo(keptGenerations.first()) < 0)
+				.collect(Collectors.toList());
+		for (String generation : collectedGenerations) {
+			if (publishedGenerations.contains(generation)) {
+				String manifestFile = RemoteGenerations.getManifestFile(generation);
+				ftp.deleteFile(manifestFile);
+				logFtpCommand(ftp, "deleteFile", manifestFile);
+				LOGGER.info("Generation {} is not kept anymore", generation);
+			}
+		}
+
+		List<String> collectedDirectories = collectedGenerations.stream()
+				.map(RemoteGenerations::getDirectory)
+				.collect(Collectors.toList());
+		collectedDirectories.add(legacyDirectory);
+		int deletedFiles = 0;
+		for (String directory : collectedDirectories) {
+			deletedFiles += deleteUnreferencedFiles(ftp, directory, referencedFiles);
+		}
+		LOGGER.info("Deleted {} files no kept generation refers to, keeping {} generations", deletedFiles, keptGenerations.size());
+	}
+
+	/**
+	 * Also removes the directories that are empty afterwards.
+	 *
+	 * @return the number of deleted files
+	 */
+	private int deleteUnreferencedFiles(FTPClient ftp, String directory, Set<String> referencedFiles) throws IOException {
+		Map<String, RemoteEntry> listing = FTPRemoteListing.listRecursively(ftp, directory);
+		int deletedFiles = 0;
+		for (RemoteEntry entry : listing.values()) {
+			if (entry.isFile() && !referencedFiles.contains(entry.getPath())) {
+				ftp.deleteFile(entry.getPath());
+				logFtpCommand(ftp, "deleteFile", entry.getPath());
+				++deletedFiles;
+			}
+		}
+
+		Set<String> referencedDirectories = new HashSet<>();
+		for (String file : referencedFiles) {
+			for (Path parent = Paths.get(file).getParent(); parent != null; parent = parent.getParent()) {
+				referencedDirectories.add(parent.toString().replace('\\', '/'));
+			}
+		}
+		List<String> directories = listing.values().stream()
+				.filter(RemoteEntry::isDirectory)
+				.map(RemoteEntry::getPath)
+				.sorted(Comparator.reverseOrder())
+				.collect(Collectors.toCollection(ArrayList::new));
+		directories.add(directory);
+		// subdirectories sort after their parent, so in reverse order they are removed first
+		for (String emptyDirectory : directories) {
+			if (!referencedDirectories.contains(emptyDirectory)) {
+				ftp.removeDirectory(emptyDirectory);
+				logFtpCommand(ftp, "removeDirectory", emptyDirectory);
+				remoteDirectories.forget(emptyDirectory);
+			}
+		}
+		return deletedFiles;
+	}
+}
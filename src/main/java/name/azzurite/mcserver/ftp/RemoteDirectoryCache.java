@@ -0,0 +1,79 @@
+package name.azzurite.mcserver.ftp;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static name.azzurite.mcserver.ftp.FTPConnection.*;
+
+/**
+ * Remembers which remote directories are known to exist during this session, so creating the parent directories of a file only
+ * costs round trips for directories that are actually new. Shared by all connections.
+ */
+class RemoteDirectoryCache {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(RemoteDirectoryCache.class);
+
+	private final Set<String> knownDirectories = ConcurrentHashMap.newKeySet();
+
+	private static String toFtpPath(Path path) {
+		return path.toString().replace('\\', '/');
+	}
+
+	/**
+	 * Adds the directories of a remote listing, together with the listed directory and all of its parents. An empty listing is
+	 * ignored, as the listed directory might not exist at all.
+	 */
+	void addListing(String listedDirectory, Collection<RemoteEntry> entries) {
+		if (entries.isEmpty()) {
+			return;
+		}
+		for (Path dir = Paths.get(listedDirectory); dir != null; dir = dir.getParent()) {
+			knownDirectories.add(toFtpPath(dir));
+		}
+		entries.stream()
+				.filter(RemoteEntry::isDirectory)
+				.map(RemoteEntry::getPath)
+				.forEach(knownDirectories::add);
+	}
+
+	/**
+	 * Forgets the removed directory and all directories in it, so they are created again when needed.
+	 */
+	void forget(String directory) {
+		knownDirectories.removeIf(knownDirectory -> knownDirectory.equals(directory) || knownDirectory.startsWith(directory + '/'));
+	}
+
+	void createParentDirectories(FTPClient ftp, String file) throws IOException {
+		Path parent = Paths.get(file).getParent();
+		if (parent != null) {
+			createDirectory(ftp, parent);
+		}
+	}
+
+	private void createDirectory(FTPClient ftp, Path dir) throws IOException {
+		String ftpDir = toFtpPath(dir);
+		if (knownDirectories.contains(ftpDir)) {
+			return;
+		}
+
+		Path parent = dir.getParent();
+		if (parent != null) {
+			createDirectory(ftp, parent);
+		}
+
+		// fails if the directory already exists, which is just as fine
+		boolean created = ftp.makeDirectory(ftpDir);
+		logFtpCommand(ftp, "makeDirectory", ftpDir);
+		LOGGER.debug("Remote directory {} {}", ftpDir, created ? "created" : "already exists");
+
+		knownDirectories.add(ftpDir);
+	}
+}
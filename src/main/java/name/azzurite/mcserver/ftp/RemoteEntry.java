@@ -0,0 +1,56 @@
+package name.azzurite.mcserver.ftp;
+
+import java.util.Calendar;
+
+import org.apache.commons.net.ftp.FTPFile;
+
+public class RemoteEntry {
+
+	private final String path;
+
+	private final long size;
+
+	private final long modifyTime;
+
+	private final Type type;
+
+	RemoteEntry(String path, FTPFile file) {
+		this.path = path;
+		size = file.getSize();
+		Calendar timestamp = file.getTimestamp();
+		modifyTime = timestamp == null ? -1 : timestamp.getTimeInMillis();
+		type = file.isDirectory() ? Type.DIRECTORY : Type.FILE;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the modification time in milliseconds, or -1 if the server did not report it
+	 */
+	public long getModifyTime() {
+		return modifyTime;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public boolean isFile() {
+		return type == Type.FILE;
+	}
+
+	public boolean isDirectory() {
+		return type == Type.DIRECTORY;
+	}
+
+	public enum Type {
+		FILE,
+		DIRECTORY
+	}
+}
@@ -0,0 +1,212 @@
+package name.azzurite.mcserver.ftp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import name.azzurite.mcserver.sync.ManifestFormatException;
+import name.azzurite.mcserver.sync.SyncManifest;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.net.ftp.FTPClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static name.azzurite.mcserver.ftp.FTPConnection.*;
+
+/**
+ * The generations of the server files on the server.
+ * <p>
+ * Every save uploads its changed files into a new directory in {@code MinecraftServerSync/generations}, files that did not change
+ * stay in the generation they were uploaded in. A generation is complete once its manifest is stored, and it is published by
+ * pointing HEAD to it. Generation ids start with the time they were created in, so they sort from the oldest to the newest.
+ * <p>
+ * A complete generation is not necessarily published: the upload may have been fenced out by another host after storing the
+ * manifest, or replacing HEAD may have failed. Every generation HEAD pointed to is therefore appended to the HEAD log, and only
+ * generations in it are rolled back to, used when HEAD is missing, or kept.
+ */
+final class RemoteGenerations {
+
+	static final String HEAD_FILE = "MinecraftServerSync/HEAD";
+
+	static final String HEAD_LOG_FILE = HEAD_FILE + ".log";
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(RemoteGenerations.class);
+
+	private static final String GENERATIONS_DIRECTORY = "MinecraftServerSync/generations";
+
+	private static final String MANIFEST_FILE_NAME = "manifest";
+
+	private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+
+	private static final Random RANDOM = new Random();
+
+	private RemoteGenerations() {}
+
+	static String newGeneration() {
+		return TIME_FORMAT.format(Instant.now()) + '-' + String.format("%04x", RANDOM.nextInt(0x10000));
+	}
+
+	static String getDirectory(String generation) {
+		return GENERATIONS_DIRECTORY + '/' + generation;
+	}
+
+	static String getManifestFile(String generation) {
+		return getDirectory(generation) + '/' + MANIFEST_FILE_NAME;
+	}
+
+	/**
+	 * @param legacyDirectory the sync directory earlier versions uploaded the files into
+	 * @param generation empty for files uploaded by an earlier version
+	 */
+	static String getObjectPath(String legacyDirectory, String manifestPath, String generation) {
+		return generation.isEmpty() ? legacyDirectory + '/' + manifestPath : getDirectory(generation) + '/' + manifestPath;
+	}
+
+	/**
+	 * HEAD is only missing for a moment if the server cannot replace it by renaming, then the generation it pointed to last is used.
+	 *
+	 * @return the generation HEAD points to, empty if the server files were never uploaded in a generation
+	 */
+	static Optional<String> ftpRetrieveHead(FTPClient ftp) throws IOException {
+		ByteArrayOutputStream head = new ByteArrayOutputStream();
+		boolean found = ftp.retrieveFile(HEAD_FILE, head);
+		logFtpCommand(ftp, "retrieveFile", HEAD_FILE);
+		String generation = head.toString("UTF-8").trim();
+		if (found && !generation.isEmpty()) {
+			return Optional.of(generation);
+		}
+
+		List<String> published = ftpRetrievePublished(ftp);
+		for (int i = published.size() - 1; i >= 0; --i) {
+			String candidate = published.get(i);
+			if (ftpIsComplete(ftp, candidate)) {
+				LOGGER.warn("No HEAD found, using the last published generation {}", candidate);
+				return Optional.of(candidate);
+			}
+		}
+		return Optional.empty();
+	}
+
+	/**
+	 * Servers the files were uploaded to before there was a HEAD log have every complete generation treated as published.
+	 *
+	 * @return every generation HEAD pointed to, in the order they were published
+	 */
+	static List<String> ftpRetrievePublished(FTPClient ftp) throws IOException {
+		Optional<List<String>> headLog = ftpRetrieveHeadLog(ftp);
+		return headLog.isPresent() ? headLog.get() : ftpListCompleteGenerations(ftp);
+	}
+
+	/**
+	 * Records that HEAD now points to the generation.
+	 */
+	static void ftpAppendHeadLog(FTPClient ftp, String generation) throws IOException {
+		List<String> entries = new ArrayList<>();
+		if (!ftpRetrieveHeadLog(ftp).isPresent()) {
+			entries.addAll(ftpListCompleteGenerations(ftp));
+			entries.remove(generation);
+		}
+		entries.add(generation);
+
+		String appended = entries.stream().map(entry -> entry + '\n').collect(Collectors.joining());
+		boolean success = ftp.appendFile(HEAD_LOG_FILE, IOUtils.toInputStream(appended, StandardCharsets.UTF_8));
+		logFtpCommand(ftp, "appendFile", HEAD_LOG_FILE);
+		if (!success) {
+			throw new IOException("Could not append to file " + HEAD_LOG_FILE + ": " + ftp.getReplyString());
+		}
+	}
+
+	/**
+	 * An interrupted append may leave a partial last line, which does not name a complete generation.
+	 *
+	 * @return empty if there is no HEAD log yet
+	 */
+	private static Optional<List<String>> ftpRetrieveHeadLog(FTPClient ftp) throws IOException {
+		ByteArrayOutputStream headLog = new ByteArrayOutputStream();
+		boolean found = ftp.retrieveFile(HEAD_LOG_FILE, headLog);
+		logFtpCommand(ftp, "retrieveFile", HEAD_LOG_FILE);
+		if (!found) {
+			if (FTPRemoteListing.getFileSize(ftp, HEAD_LOG_FILE) >= 0) {
+				throw new IOException("Could not retrieve file " + HEAD_LOG_FILE + ": " + ftp.getReplyString());
+			}
+			return Optional.empty();
+		}
+		return Optional.of(Arrays.stream(headLog.toString("UTF-8").split("\n"))
+				.map(String::trim)
+				.filter(entry -> !entry.isEmpty())
+				.collect(Collectors.toList()));
+	}
+
+	/**
+	 * @return the complete generations, the oldest first
+	 */
+	private static List<String> ftpListCompleteGenerations(FTPClient ftp) throws IOException {
+		List<String> completeGenerations = new ArrayList<>();
+		for (String generation : ftpListGenerations(ftp)) {
+			if (ftpIsComplete(ftp, generation)) {
+				completeGenerations.add(0, generation);
+			}
+		}
+		return completeGenerations;
+	}
+
+	/**
+	 * @return every generation on the server, complete or not, the newest first
+	 */
+	static List<String> ftpListGenerations(FTPClient ftp) throws IOException {
+		String[] names = ftp.listNames(GENERATIONS_DIRECTORY);
+		logFtpCommand(ftp, "listNames", GENERATIONS_DIRECTORY);
+		if (names == null) {
+			return Collections.emptyList();
+		}
+		// depending on the server, the names are returned with or without the listed directory
+		return Arrays.stream(names)
+				.map(name -> StringUtils.substringAfterLast('/' + name, "/"))
+				.filter(name -> !name.isEmpty() && !name.startsWith("."))
+				.sorted(Comparator.reverseOrder())
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * A generation only has a manifest once all of its files are uploaded.
+	 */
+	static boolean ftpIsComplete(FTPClient ftp, String generation) throws IOException {
+		return FTPRemoteListing.getFileSize(ftp, getManifestFile(generation)) >= 0;
+	}
+
+	/**
+	 * @return an empty manifest if the file does not exist or cannot be read
+	 */
+	static SyncManifest ftpRetrieveManifest(FTPClient ftp, String manifestFile) throws IOException {
+		InputStream manifestStream = ftp.retrieveFileStream(manifestFile);
+		logFtpCommand(ftp, "retrieveFileStream", manifestFile);
+		if (manifestStream == null) {
+			LOGGER.debug("No sync manifest found");
+			return new SyncManifest();
+		}
+
+		SyncManifest manifest;
+		try (InputStream in = manifestStream) {
+			manifest = SyncManifest.read(in);
+		} catch (ManifestFormatException e) {
+			LOGGER.warn("Sync manifest could not be read, all files will be transferred: {}", e.getMessage());
+			manifest = new SyncManifest();
+		}
+		ftp.completePendingCommand();
+		logFtpCommand(ftp, "completePendingCommand");
+		return manifest;
+	}
+}
@@ -0,0 +1,170 @@
+package name.azzurite.mcserver.ftp;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import name.azzurite.mcserver.sync.ManifestEntry;
+import name.azzurite.mcserver.util.LogUtil;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records every file of an upload batch as soon as it is completely on the server, so a retried batch or a restarted app only uploads
+ * what is still missing.
+ * <p>
+ * The journal belongs to the remote manifest the batch started from. If the manifest changed in the meantime, someone else saved the
+ * server files and the recorded uploads may have been overwritten, so the journal starts over.
+ */
+class TransferJournal {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(TransferJournal.class);
+
+	private static final String BASE_PREFIX = "base ";
+
+	private static final String NO_HASH = "-";
+
+	private static final String NO_CHUNKS = "-";
+
+	private static final String NO_MEMBERS = "-";
+
+	private static final String NO_GENERATION = "-";
+
+	private static final int FIELD_COUNT = 8;
+
+	private final Path journalFile;
+
+	private final Map<String, ManifestEntry> uploadedEntries = new ConcurrentHashMap<>();
+
+	private String base = "";
+
+	TransferJournal(Path journalFile) {
+		this.journalFile = journalFile;
+		load();
+	}
+
+	private static String toHex(byte[] hash) {
+		return hash.length == 0 ? NO_HASH : Hex.encodeHexString(hash);
+	}
+
+	private static byte[] fromHex(String hex) throws DecoderException {
+		return NO_HASH.equals(hex) ? new byte[0] : Hex.decodeHex(hex.toCharArray());
+	}
+
+	private static String toChunkList(Map<Integer, Integer> chunkTimestamps) {
+		if (chunkTimestamps.isEmpty()) {
+			return NO_CHUNKS;
+		}
+		return chunkTimestamps.entrySet().stream()
+				.map(chunk -> chunk.getKey() + ":" + chunk.getValue())
+				.collect(Collectors.joining(","));
+	}
+
+	private static Map<Integer, Integer> fromChunkList(String chunkList) {
+		Map<Integer, Integer> chunkTimestamps = new TreeMap<>();
+		if (!NO_CHUNKS.equals(chunkList)) {
+			for (String chunk : chunkList.split(",")) {
+				String[] indexAndTimestamp = chunk.split(":", 2);
+				chunkTimestamps.put(Integer.parseInt(indexAndTimestamp[0]), Integer.parseInt(indexAndTimestamp[1]));
+			}
+		}
+		return chunkTimestamps;
+	}
+
+	private static String toMemberList(List<String> members) {
+		if (members.isEmpty()) {
+			return NO_MEMBERS;
+		}
+		return members.stream()
+				.map(member -> Hex.encodeHexString(member.getBytes(StandardCharsets.UTF_8)))
+				.collect(Collectors.joining(","));
+	}
+
+	private static List<String> fromMemberList(String memberList) throws DecoderException {
+		List<String> members = new ArrayList<>();
+		if (!NO_MEMBERS.equals(memberList)) {
+			for (String member : memberList.split(",")) {
+				members.add(new String(Hex.decodeHex(member.toCharArray()), StandardCharsets.UTF_8));
+			}
+		}
+		return members;
+	}
+
+	private void load() {
+		if (!Files.exists(journalFile)) {
+			return;
+		}
+		try {
+			List<String> lines = Files.readAllLines(journalFile, StandardCharsets.UTF_8);
+			for (String line : lines) {
+				if (line.startsWith(BASE_PREFIX)) {
+					base = line.substring(BASE_PREFIX.length());
+					continue;
+				}
+				String[] fields = line.split(" ", FIELD_COUNT);
+				if (fields.length == FIELD_COUNT) {
+					String generation = NO_GENERATION.equals(fields[6]) ? "" : fields[6];
+					ManifestEntry entry = new ManifestEntry(fields[7], Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+							fromHex(fields[0]), fromHex(fields[1]), fromChunkList(fields[4]), fromMemberList(fields[5]), generation);
+					uploadedEntries.put(entry.getPath(), entry);
+				}
+			}
+			LOGGER.debug("Transfer journal contains {} finished uploads", uploadedEntries.size());
+		} catch (IOException | DecoderException | RuntimeException e) {
+			LOGGER.warn("Could not read transfer journal, starting over.");
+			LogUtil.stacktrace(LOGGER, e);
+			base = "";
+			uploadedEntries.clear();
+		}
+	}
+
+	/**
+	 * Starts a new journal if the previous one was written against a different remote manifest.
+	 */
+	synchronized void startBatch(byte[] manifestDigest) throws IOException {
+		String newBase = Hex.encodeHexString(manifestDigest);
+		if (newBase.equals(base)) {
+			if (!uploadedEntries.isEmpty()) {
+				LOGGER.info("Continuing interrupted upload, {} files are already uploaded.", uploadedEntries.size());
+			}
+			return;
+		}
+
+		base = newBase;
+		uploadedEntries.clear();
+		Files.createDirectories(journalFile.getParent());
+		Files.write(journalFile, (BASE_PREFIX + base + '\n').getBytes(StandardCharsets.UTF_8));
+	}
+
+	Optional<ManifestEntry> getUploaded(String path) {
+		return Optional.ofNullable(uploadedEntries.get(path));
+	}
+
+	synchronized void markUploaded(ManifestEntry entry) throws IOException {
+		try (BufferedWriter writer = Files.newBufferedWriter(journalFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+				StandardOpenOption.APPEND)) {
+			writer.write(toHex(entry.getHash()) + ' ' + toHex(entry.getSourceHash()) + ' ' + entry.getSize() + ' '
+					+ entry.getLastModified() + ' ' + toChunkList(entry.getChunkTimestamps()) + ' ' + toMemberList(entry.getMembers()) + ' '
+					+ (entry.getGeneration().isEmpty() ? NO_GENERATION : entry.getGeneration()) + ' ' + entry.getPath() + '\n');
+		}
+		uploadedEntries.put(entry.getPath(), entry);
+	}
+
+	synchronized void finishBatch() throws IOException {
+		base = "";
+		uploadedEntries.clear();
+		Files.deleteIfExists(journalFile);
+	}
+}
@@ -0,0 +1,102 @@
+package name.azzurite.mcserver.server;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import name.azzurite.mcserver.config.AppConfig;
+import name.azzurite.mcserver.console.LocalConsole;
+import name.azzurite.mcserver.sync.ServerSynchronizer;
+import name.azzurite.mcserver.util.LogUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Uploads the server files at an interval while the server runs. Every upload only transfers the files changed since the last one,
+ * so the upload when the server stops only has to transfer the changes of the last few minutes.
+ * <p>
+ * Saving is turned off during an upload, so the server does not write the files while they are read. It keeps the changes in memory
+ * and saves them once saving is turned on again.
+ * <p>
+ * The upload runs on low priority threads, like the compression and transfer threads of every upload, so the server is preferred
+ * while it runs.
+ */
+class BackgroundSync {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(BackgroundSync.class);
+
+	/**
+	 * The log line of the server thread after saving, as printed by vanilla, Forge ({@code [Server thread/INFO] [logger]: }) and
+	 * Spigot ({@code [12:00:00 INFO]: }). Chat messages are printed with the name of the player in front of the text, so they do not
+	 * match.
+	 */
+	private static final Pattern SAVED_OUTPUT =
+			Pattern.compile("\\[[^\\]]*(?:\\] \\[Server thread/INFO\\](?: \\[[^\\]]*\\])?| INFO\\]): Saved the game\\s*");
+
+	private static final long SAVE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+	private final ServerSynchronizer sync;
+
+	private final LocalConsole console;
+
+	private final int intervalMinutes;
+
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "background sync");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		return thread;
+	});
+
+	BackgroundSync(AppConfig appConfig, ServerSynchronizer sync, LocalConsole console) {
+		this.sync = sync;
+		this.console = console;
+		intervalMinutes = appConfig.getBackgroundSyncMinutes();
+	}
+
+	void start() {
+		if (intervalMinutes == 0) {
+			return;
+		}
+		LOGGER.info("Uploading the changed server files every {} minutes", intervalMinutes);
+		executor.scheduleWithFixedDelay(this::upload, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Waits for a running upload to finish, the upload after the server stopped would have to transfer its files otherwise.
+	 */
+	void stop() {
+		executor.shutdown();
+		while (true) {
+			try {
+				if (executor.awaitTermination(1, TimeUnit.SECONDS)) {
+					break;
+				}
+			} catch (InterruptedException ignored) {
+				// the upload has to finish before the server files are uploaded for the last time
+			}
+		}
+	}
+
+	private void upload() {
+		LOGGER.info("Uploading the changed server files in the background...");
+		console.send("save-off");
+		try {
+			if (!console.sendAndAwait("save-all flush", SAVED_OUTPUT, SAVE_TIMEOUT_MILLIS)) {
+				LOGGER.warn("The server did not save in time, skipping the background upload.");
+				return;
+			}
+			sync.saveFiles();
+		} catch (IOException | ExecutionException | RuntimeException e) {
+			LOGGER.warn("Background upload failed, trying again in {} minutes: {}", intervalMinutes, e.getMessage());
+			LogUtil.stacktrace(LOGGER, e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			console.send("save-on");
+		}
+	}
+}
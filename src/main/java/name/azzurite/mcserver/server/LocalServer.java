@@ -28,6 +28,7 @@ public class LocalServer implements Server {
 		this.sync = sync;
 		this.console = console;
 
+		sync.startTrackingLocalFiles();
 		startLocal();
 		listenForUnexpectedTerminate();
 	}
@@ -56,10 +56,6 @@ public class LocalServerService extends Service<Void> {
 		return localServerStatus;
 	}
 
-	public void startDeleteServerIp() {
-		startNewTask(() -> new ServerSyncTask(ServerSynchronizer::deleteServerIp, SyncingLocalServer.SyncingLocalServerStatus.RETRIEVING_FILES));
-	}
-
 	public void startDownloadServerFiles() {
 		startNewTask(() -> new ServerSyncTask(ServerSynchronizer::retrieveFiles, SyncingLocalServer.SyncingLocalServerStatus.RETRIEVING_FILES));
 	}
@@ -68,8 +64,13 @@ public class LocalServerService extends Service<Void> {
 		startNewTask(() -> new ServerSyncTask(ServerSynchronizer::saveFiles, SyncingLocalServer.SyncingLocalServerStatus.SAVING_FILES));
 	}
 
-	public void startRemoveUploadInProgressFlag() {
-		startNewTask(() -> new ServerSyncTask(ServerSynchronizer::removeUploadInProgressFlag, SyncingLocalServer.SyncingLocalServerStatus
+	public void startRestoreBackup() {
+		startNewTask(() -> new ServerSyncTask(ServerSynchronizer::restoreLatestBackup, SyncingLocalServer.SyncingLocalServerStatus
+				.RETRIEVING_FILES));
+	}
+
+	public void startRollBack() {
+		startNewTask(() -> new ServerSyncTask(ServerSynchronizer::rollBackLastSave, SyncingLocalServer.SyncingLocalServerStatus
 				.RETRIEVING_FILES));
 	}
 
@@ -31,6 +31,8 @@ public class SyncingLocalServer implements Server {
 
 	private final LocalConsole console;
 
+	private final BackgroundSync backgroundSync;
+
 	private final List<Runnable> onCloseCallbacks = new ArrayList<>();
 
 	private ObjectProperty<SyncingLocalServerStatus> status = new SimpleObjectProperty<>(SyncingLocalServerStatus.OFFLINE);
@@ -39,12 +41,13 @@ public class SyncingLocalServer implements Server {
 		this.appConfig = appConfig;
 		this.sync = sync;
 		this.console = console;
+		backgroundSync = new BackgroundSync(appConfig, sync, console);
 
-		if (sync.getServerIp().isPresent()) {
-			localServer = null;
-		} else {
+		if (sync.getHostLease().acquire(retrieveExternalIP())) {
 			localServer = createLocalServer();
 			localServer.addOnCloseCallback(rethrow(this::close));
+		} else {
+			localServer = null;
 		}
 	}
 
@@ -80,14 +83,17 @@ public class SyncingLocalServer implements Server {
 		}
 		status.set(SyncingLocalServerStatus.SAVING_FILES);
 
+		backgroundSync.stop();
 		localServer.close();
 
 		try {
 			sync.saveFiles();
-			sync.deleteServerIp();
+			sync.getHostLease().release();
 		} catch (ExecutionException e) {
 			throw new IOException(e);
 		} finally {
+			sync.stopTrackingLocalFiles();
+			sync.getHostLease().stopRenewing();
 			status.set(SyncingLocalServerStatus.OFFLINE);
 			onCloseCallbacks.forEach(Runnable::run);
 		}
@@ -96,12 +102,19 @@ public class SyncingLocalServer implements Server {
 	@SuppressWarnings("UseOfSystemOutOrSystemErr")
 	private LocalServer createLocalServer() throws IOException, ExecutionException {
 		status.set(SyncingLocalServerStatus.RETRIEVING_FILES);
-		sync.setServerIp(retrieveExternalIP());
-		sync.retrieveFiles();
+		try {
+			sync.retrieveFiles();
+		} catch (IOException | ExecutionException | RuntimeException e) {
+			status.set(SyncingLocalServerStatus.OFFLINE);
+			sync.getHostLease().release();
+			throw e;
+		}
 
 		status.set(SyncingLocalServerStatus.RUNNING);
 
-		return new LocalServer(appConfig, sync, console);
+		LocalServer server = new LocalServer(appConfig, sync, console);
+		backgroundSync.start();
+		return server;
 	}
 
 
@@ -0,0 +1,209 @@
+package name.azzurite.mcserver.sync;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import name.azzurite.mcserver.util.LogUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps copies of the local server files as snapshot directories, one per backup, named after the time they were taken.
+ * <p>
+ * A file that has the same size and modification time as in the previous snapshot is hard linked to it instead of being copied, so
+ * a snapshot only costs as much as the files that changed. The snapshot files are never modified, the server files are always copied
+ * into and out of the snapshots.
+ */
+class BackupSnapshots {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(BackupSnapshots.class);
+
+	private static final DateTimeFormatter SNAPSHOT_NAME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+
+	private static final String INCOMPLETE_SNAPSHOT_EXTENSION = ".tmp";
+
+	private final Path snapshotsPath;
+
+	private final Path basePath;
+
+	private final int keptSnapshots;
+
+	private final int keptDays;
+
+	private boolean hardLinksSupported = true;
+
+	/**
+	 * @param keptSnapshots how many snapshots are kept at most
+	 * @param keptDays after how many days a snapshot is deleted, 0 to keep snapshots regardless of their age. The latest snapshot is
+	 * always kept.
+	 */
+	BackupSnapshots(Path snapshotsPath, Path basePath, int keptSnapshots, int keptDays) {
+		this.snapshotsPath = snapshotsPath;
+		this.basePath = basePath;
+		this.keptSnapshots = keptSnapshots;
+		this.keptDays = keptDays;
+	}
+
+	private static boolean isSameFile(Path file, Path otherFile) throws IOException {
+		if (!Files.exists(otherFile)) {
+			return false;
+		}
+		BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+		BasicFileAttributes otherAttributes = Files.readAttributes(otherFile, BasicFileAttributes.class);
+		return attributes.size() == otherAttributes.size()
+				&& attributes.lastModifiedTime().toMillis() == otherAttributes.lastModifiedTime().toMillis();
+	}
+
+	private static void deleteSnapshot(Path snapshot) {
+		try (Stream<Path> files = Files.walk(snapshot)) {
+			for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+				Files.delete(file);
+			}
+		} catch (IOException e) {
+			LOGGER.warn("Could not delete backup snapshot {}", snapshot);
+			LogUtil.stacktrace(LOGGER, e);
+		}
+	}
+
+	/**
+	 * @return the complete snapshots, oldest first
+	 */
+	List<Path> getSnapshots() throws IOException {
+		if (!Files.exists(snapshotsPath)) {
+			return Collections.emptyList();
+		}
+		try (Stream<Path> snapshots = Files.list(snapshotsPath)) {
+			return snapshots
+					.filter(Files::isDirectory)
+					.filter(snapshot -> !snapshot.getFileName().toString().endsWith(INCOMPLETE_SNAPSHOT_EXTENSION))
+					.sorted()
+					.collect(Collectors.toList());
+		}
+	}
+
+	Optional<Path> getLatestSnapshot() throws IOException {
+		List<Path> snapshots = getSnapshots();
+		return snapshots.isEmpty() ? Optional.empty() : Optional.of(snapshots.get(snapshots.size() - 1));
+	}
+
+	/**
+	 * Takes a snapshot of the given server files and deletes the snapshots that are no longer kept.
+	 *
+	 * @return the new snapshot
+	 */
+	Path createSnapshot(Collection<Path> serverFiles) throws IOException {
+		Optional<Path> previousSnapshot = getLatestSnapshot();
+		String name = LocalDateTime.now().format(SNAPSHOT_NAME_FORMAT);
+		Path incompleteSnapshot = snapshotsPath.resolve(name + INCOMPLETE_SNAPSHOT_EXTENSION);
+		if (Files.exists(incompleteSnapshot)) {
+			deleteSnapshot(incompleteSnapshot);
+		}
+
+		Files.createDirectories(incompleteSnapshot);
+		int linkedFiles = 0;
+		for (Path serverFile : serverFiles) {
+			Path relativePath = basePath.relativize(serverFile);
+			Path snapshotFile = incompleteSnapshot.resolve(relativePath);
+			Files.createDirectories(snapshotFile.getParent());
+			Optional<Path> previousFile = previousSnapshot.map(snapshot -> snapshot.resolve(relativePath));
+			if (previousFile.isPresent() && isSameFile(serverFile, previousFile.get()) && link(snapshotFile, previousFile.get())) {
+				++linkedFiles;
+			} else {
+				Files.copy(serverFile, snapshotFile, StandardCopyOption.COPY_ATTRIBUTES);
+			}
+		}
+
+		Path snapshot = snapshotsPath.resolve(name);
+		Files.move(incompleteSnapshot, snapshot, StandardCopyOption.ATOMIC_MOVE);
+		LOGGER.debug("Snapshot {}: {} files unchanged, {} files copied", name, linkedFiles, serverFiles.size() - linkedFiles);
+
+		deleteOldSnapshots();
+		return snapshot;
+	}
+
+	private boolean link(Path link, Path existingFile) throws IOException {
+		if (!hardLinksSupported) {
+			return false;
+		}
+		try {
+			Files.createLink(link, existingFile);
+			return true;
+		} catch (FileAlreadyExistsException e) {
+			throw e;
+		} catch (UnsupportedOperationException | FileSystemException e) {
+			LOGGER.warn("Hard links are not supported for backups, copying every file instead: {}", e.getMessage());
+			LogUtil.stacktrace(LOGGER, e);
+			hardLinksSupported = false;
+			return false;
+		}
+	}
+
+	private void deleteOldSnapshots() throws IOException {
+		List<Path> snapshots = getSnapshots();
+		Instant oldestKept = Instant.now().minus(keptDays, ChronoUnit.DAYS);
+		for (int i = 0; i < snapshots.size() - 1; ++i) {
+			Path snapshot = snapshots.get(i);
+			boolean tooMany = snapshots.size() - i > keptSnapshots;
+			if (tooMany || (keptDays > 0 && getSnapshotTime(snapshot).map(oldestKept::isAfter).orElse(false))) {
+				LOGGER.debug("Deleting old backup snapshot {}", snapshot);
+				deleteSnapshot(snapshot);
+			}
+		}
+	}
+
+	private static Optional<Instant> getSnapshotTime(Path snapshot) {
+		try {
+			LocalDateTime time = LocalDateTime.parse(snapshot.getFileName().toString(), SNAPSHOT_NAME_FORMAT);
+			return Optional.of(time.atZone(ZoneId.systemDefault()).toInstant());
+		} catch (DateTimeParseException e) {
+			return Optional.empty();
+		}
+	}
+
+	/**
+	 * Makes the server files equal to the snapshot. Only files that differ from the snapshot are copied, files that are not in the
+	 * snapshot are deleted.
+	 */
+	void restore(Path snapshot, Collection<Path> serverFiles) throws IOException {
+		Set<Path> snapshotFiles = new HashSet<>();
+		try (Stream<Path> files = Files.walk(snapshot)) {
+			for (Path snapshotFile : files.filter(Files::isRegularFile).collect(Collectors.toList())) {
+				Path relativePath = snapshot.relativize(snapshotFile);
+				snapshotFiles.add(relativePath);
+				Path serverFile = basePath.resolve(relativePath.toString());
+				if (Files.exists(serverFile) && isSameFile(snapshotFile, serverFile)) {
+					continue;
+				}
+				Files.createDirectories(serverFile.getParent());
+				Path tempFile = serverFile.resolveSibling(serverFile.getFileName() + INCOMPLETE_SNAPSHOT_EXTENSION);
+				Files.copy(snapshotFile, tempFile, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+				Files.move(tempFile, serverFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+		}
+		for (Path serverFile : serverFiles) {
+			if (!snapshotFiles.contains(basePath.relativize(serverFile))) {
+				Files.deleteIfExists(serverFile);
+			}
+		}
+	}
+}
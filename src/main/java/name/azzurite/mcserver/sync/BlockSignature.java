@@ -0,0 +1,283 @@
+package name.azzurite.mcserver.sync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * The rsync style signature of a file: a weak rolling checksum and an MD5 for every full block. Stored next to the base of a big
+ * file as {@code <file>.sig}, so a new version can be described by a {@link FileDelta} against it without having the base locally.
+ */
+class BlockSignature {
+
+	static final String SIGNATURE_EXTENSION = ".sig";
+
+	static final int BLOCK_SIZE = 8192;
+
+	private static final int MAGIC = 0x4D535347; // "MSSG"
+
+	private static final int VERSION = 1;
+
+	private static final int CHECKSUM_MODULO_MASK = 0xFFFF;
+
+	private final int blockSize;
+
+	private final int[] weakChecksums;
+
+	private final byte[][] strongChecksums;
+
+	private final Map<Integer, List<Integer>> blocksByWeakChecksum = new HashMap<>();
+
+	private BlockSignature(int blockSize, int[] weakChecksums, byte[][] strongChecksums) {
+		this.blockSize = blockSize;
+		this.weakChecksums = weakChecksums;
+		this.strongChecksums = strongChecksums;
+		for (int i = 0; i < weakChecksums.length; ++i) {
+			blocksByWeakChecksum.computeIfAbsent(weakChecksums[i], unused -> new ArrayList<>()).add(i);
+		}
+	}
+
+	static BlockSignature compute(Path file) throws IOException {
+		List<Integer> weakChecksums = new ArrayList<>();
+		List<byte[]> strongChecksums = new ArrayList<>();
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+			byte[] block = new byte[BLOCK_SIZE];
+			while (IOUtils.read(in, block) == BLOCK_SIZE) {
+				weakChecksums.add(weakChecksum(block, 0, BLOCK_SIZE));
+				strongChecksums.add(DigestUtils.md5(block));
+			}
+		}
+		return new BlockSignature(BLOCK_SIZE, weakChecksums.stream().mapToInt(Integer::intValue).toArray(),
+				strongChecksums.toArray(new byte[0][]));
+	}
+
+	static BlockSignature read(InputStream inputStream) throws IOException {
+		try {
+			return readBlocks(new DataInputStream(new BufferedInputStream(inputStream)));
+		} catch (EOFException e) {
+			throw new ManifestFormatException("Block signature is truncated", e);
+		}
+	}
+
+	private static BlockSignature readBlocks(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+			throw new ManifestFormatException("Not a block signature");
+		}
+		int blockSize = in.readInt();
+		int blockCount = in.readInt();
+		if (blockSize <= 0 || blockCount < 0) {
+			throw new ManifestFormatException("Invalid block signature with " + blockCount + " blocks of " + blockSize + " bytes");
+		}
+		int[] weakChecksums = new int[blockCount];
+		byte[][] strongChecksums = new byte[blockCount][];
+		for (int i = 0; i < blockCount; ++i) {
+			weakChecksums[i] = in.readInt();
+			strongChecksums[i] = new byte[in.readUnsignedByte()];
+			in.readFully(strongChecksums[i]);
+		}
+		return new BlockSignature(blockSize, weakChecksums, strongChecksums);
+	}
+
+	void write(OutputStream outputStream) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(blockSize);
+		out.writeInt(weakChecksums.length);
+		for (int i = 0; i < weakChecksums.length; ++i) {
+			out.writeInt(weakChecksums[i]);
+			out.writeByte(strongChecksums[i].length);
+			out.write(strongChecksums[i]);
+		}
+		out.flush();
+	}
+
+	static int weakChecksum(byte[] data, int offset, int length) {
+		int a = 0;
+		int b = 0;
+		for (int i = 0; i < length; ++i) {
+			int value = data[offset + i] & 0xFF;
+			a += value;
+			b += (length - i) * value;
+		}
+		return (a & CHECKSUM_MODULO_MASK) | ((b & CHECKSUM_MODULO_MASK) << 16);
+	}
+
+	/**
+	 * @return the checksum of the window moved by one byte, {@code removed} leaving it and {@code added} entering it
+	 */
+	static int rollWeakChecksum(int checksum, int length, byte removed, byte added) {
+		int removedValue = removed & 0xFF;
+		int a = ((checksum & CHECKSUM_MODULO_MASK) - removedValue + (added & 0xFF)) & CHECKSUM_MODULO_MASK;
+		int b = ((checksum >>> 16) - length * removedValue + a) & CHECKSUM_MODULO_MASK;
+		return a | (b << 16);
+	}
+
+	int getBlockSize() {
+		return blockSize;
+	}
+
+	int getBlockCount() {
+		return weakChecksums.length;
+	}
+
+	/**
+	 * @return the index of a block with the same content as the window, or -1 if there is none
+	 */
+	int findBlock(int weakChecksum, byte[] data, int offset) {
+		List<Integer> candidates = blocksByWeakChecksum.get(weakChecksum);
+		if (candidates == null) {
+			return -1;
+		}
+		MessageDigest md5 = DigestUtils.getMd5Digest();
+		md5.update(data, offset, blockSize);
+		byte[] strongChecksum = md5.digest();
+		for (int candidate : candidates) {
+			if (Arrays.equals(strongChecksums[candidate], strongChecksum)) {
+				return candidate;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Searches the given file for the content of the wanted blocks at any position, like the receiving side of rsync does.
+	 *
+	 * @return the offset in the file for every wanted block that was found
+	 */
+	Map<Integer, Long> locateBlocks(Path file, Collection<Integer> wantedBlocks) throws IOException {
+		Set<Integer> missing = new HashSet<>(wantedBlocks);
+		Map<Integer, Long> found = new TreeMap<>();
+		if (missing.isEmpty()) {
+			return found;
+		}
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+			new RollingScanner(this, in) {
+				@Override
+				boolean onWindow(long windowOffset, int block) {
+					if (block >= 0 && missing.remove(block)) {
+						found.put(block, windowOffset);
+					}
+					return missing.isEmpty();
+				}
+			}.scan();
+		}
+		return found;
+	}
+
+	/**
+	 * Moves a window of one block over a stream and reports every position, jumping over the whole window when it matched a block.
+	 */
+	abstract static class RollingScanner {
+
+		private static final int BUFFER_BLOCKS = 128;
+
+		private final BlockSignature signature;
+
+		private final InputStream in;
+
+		private final byte[] buffer;
+
+		private int filled;
+
+		private int windowStart;
+
+		private long bufferOffset;
+
+		RollingScanner(BlockSignature signature, InputStream in) {
+			this.signature = signature;
+			this.in = in;
+			buffer = new byte[signature.getBlockSize() * BUFFER_BLOCKS];
+		}
+
+		/**
+		 * @param block the index of the block the window matches, or -1
+		 * @return whether to stop scanning
+		 */
+		abstract boolean onWindow(long windowOffset, int block) throws IOException;
+
+		/**
+		 * Called before bytes in front of the window are dropped from the buffer.
+		 */
+		void onDiscard(byte[] data, int length) throws IOException {}
+
+		byte[] getBuffer() {
+			return buffer;
+		}
+
+		int getWindowStart() {
+			return windowStart;
+		}
+
+		void scan() throws IOException {
+			int blockSize = signature.getBlockSize();
+			boolean endOfStream = false;
+			boolean checksumValid = false;
+			int checksum = 0;
+			while (true) {
+				if (!endOfStream && filled - windowStart <= blockSize) {
+					onDiscard(buffer, windowStart);
+					System.arraycopy(buffer, windowStart, buffer, 0, filled - windowStart);
+					bufferOffset += windowStart;
+					filled -= windowStart;
+					windowStart = 0;
+					int read = IOUtils.read(in, buffer, filled, buffer.length - filled);
+					endOfStream = read < buffer.length - filled;
+					filled += read;
+				}
+				if (filled - windowStart < blockSize) {
+					onEnd(buffer, filled);
+					return;
+				}
+				if (signature.getBlockCount() == 0) {
+					windowStart = filled;
+					continue;
+				}
+
+				if (!checksumValid) {
+					checksum = weakChecksum(buffer, windowStart, blockSize);
+					checksumValid = true;
+				}
+				int block = signature.findBlock(checksum, buffer, windowStart);
+				if (onWindow(bufferOffset + windowStart, block)) {
+					return;
+				}
+				if (block >= 0) {
+					windowStart += blockSize;
+					checksumValid = false;
+				} else if (windowStart + blockSize < filled) {
+					checksum = rollWeakChecksum(checksum, blockSize, buffer[windowStart], buffer[windowStart + blockSize]);
+					++windowStart;
+				} else {
+					++windowStart;
+					checksumValid = false;
+				}
+			}
+		}
+
+		/**
+		 * Called at the end of the stream, the bytes up to {@code end} are the last ones of the stream.
+		 */
+		void onEnd(byte[] data, int end) throws IOException {}
+	}
+}
@@ -0,0 +1,22 @@
+package name.azzurite.mcserver.sync;
+
+import java.util.concurrent.Future;
+
+/**
+ * A sync action that consists of another sync action plus some work before or after it. The progress of the whole action is the
+ * progress of the inner one, which is usually the transfer that takes up most of the time.
+ */
+public class ComposedSyncActionFuture<R> extends SyncActionFuture<R> {
+
+	private final SyncActionFuture<?> progressSource;
+
+	public ComposedSyncActionFuture(Future<R> future, SyncActionFuture<?> progressSource) {
+		super(future);
+		this.progressSource = progressSource;
+	}
+
+	@Override
+	public SyncActionProgress getProgress() {
+		return progressSource.getProgress();
+	}
+}
@@ -0,0 +1,286 @@
+package name.azzurite.mcserver.sync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+
+/**
+ * Describes the current content of a big file as blocks of its base, identified by the {@link BlockSignature} of the base, and the
+ * literal bytes that are not in the base. Stored next to the base as {@code <file>.delta}.
+ * <p>
+ * Like a {@link RegionPatch}, the delta is always against the base, so only the base and the latest delta are needed to restore the
+ * file. The blocks can come from any local file that contains them, usually the previous version of the file.
+ */
+final class FileDelta {
+
+	static final String DELTA_EXTENSION = ".delta";
+
+	private static final int MAGIC = 0x4D535344; // "MSSD"
+
+	private static final int VERSION = 1;
+
+	private static final int END = 0;
+
+	private static final int COPY = 1;
+
+	private static final int LITERAL = 2;
+
+	private FileDelta() {}
+
+	/**
+	 * Supplies the content of the blocks of the base.
+	 */
+	@FunctionalInterface
+	interface BlockSource {
+
+		void copyBlocks(int firstBlock, int blockCount, int blockSize, OutputStream out) throws IOException;
+	}
+
+	/**
+	 * @return the blocks of the base itself
+	 */
+	static BlockSource fromBase(FileChannel base) {
+		return (firstBlock, blockCount, blockSize, out) -> {
+			for (int block = firstBlock; block < firstBlock + blockCount; ++block) {
+				copy(base, (long) block * blockSize, blockSize, out);
+			}
+		};
+	}
+
+	/**
+	 * @param blockOffsets the position of every block in the file, as found by {@link BlockSignature#locateBlocks(Path, Collection)}
+	 * @return the blocks of the base found in a different file
+	 */
+	static BlockSource fromLocatedBlocks(FileChannel file, Map<Integer, Long> blockOffsets) {
+		return (firstBlock, blockCount, blockSize, out) -> {
+			for (int block = firstBlock; block < firstBlock + blockCount; ++block) {
+				Long offset = blockOffsets.get(block);
+				if (offset == null) {
+					throw new IOException("Block " + block + " was not found in the local file");
+				}
+				copy(file, offset, blockSize, out);
+			}
+		};
+	}
+
+	private static void copy(FileChannel channel, long position, int length, OutputStream out) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of file while copying a block");
+			}
+		}
+		out.write(buffer.array());
+	}
+
+	/**
+	 * Writes the delta from the base with the given signature to the current content of the file.
+	 */
+	static void write(Path file, BlockSignature base, OutputStream outputStream) throws IOException {
+		DeflaterOutputStream compressed = new DeflaterOutputStream(outputStream, new Deflater(Deflater.BEST_SPEED));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(compressed));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(base.getBlockSize());
+		try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+			DeltaWriter writer = new DeltaWriter(base, in, out);
+			writer.scan();
+			writer.flushCopy();
+			out.writeByte(END);
+			out.writeLong(writer.contentLength);
+		}
+		out.flush();
+		compressed.finish();
+	}
+
+	/**
+	 * @return the size of the delta from the base to the file, without writing it anywhere
+	 */
+	static long getSize(Path file, BlockSignature base) throws IOException {
+		CountingOutputStream counter = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+		write(file, base, counter);
+		return counter.getByteCount();
+	}
+
+	/**
+	 * @return the blocks of the base the delta copies
+	 */
+	static Set<Integer> readReferencedBlocks(Path deltaFile) throws IOException {
+		Set<Integer> blocks = new TreeSet<>();
+		try (DataInputStream in = openDelta(deltaFile)) {
+			in.readInt();
+			for (int operation = in.readUnsignedByte(); operation != END; operation = in.readUnsignedByte()) {
+				if (operation == COPY) {
+					int firstBlock = readCount(in);
+					int blockCount = readCount(in);
+					for (int block = firstBlock; block < firstBlock + blockCount; ++block) {
+						blocks.add(block);
+					}
+				} else {
+					IOUtils.skipFully(in, readLiteralLength(in, operation));
+				}
+			}
+		} catch (EOFException | ZipException e) {
+			throw new ManifestFormatException("Delta " + deltaFile + " is truncated or corrupt", e);
+		}
+		return blocks;
+	}
+
+	/**
+	 * Writes the content described by the delta to {@code out}.
+	 */
+	static void apply(Path deltaFile, BlockSource source, OutputStream out) throws IOException {
+		try (DataInputStream in = openDelta(deltaFile)) {
+			int blockSize = in.readInt();
+			if (blockSize <= 0) {
+				throw new ManifestFormatException("Invalid block size " + blockSize + " in delta " + deltaFile);
+			}
+			long written = 0;
+			for (int operation = in.readUnsignedByte(); operation != END; operation = in.readUnsignedByte()) {
+				if (operation == COPY) {
+					int firstBlock = readCount(in);
+					int blockCount = readCount(in);
+					source.copyBlocks(firstBlock, blockCount, blockSize, out);
+					written += (long) blockCount * blockSize;
+				} else {
+					int length = readLiteralLength(in, operation);
+					if (IOUtils.copyLarge(in, out, 0, length) != length) {
+						throw new EOFException("Literal of " + length + " bytes is incomplete");
+					}
+					written += length;
+				}
+			}
+			// reading past the end makes the inflater check the trailer of the compressed stream
+			if (in.readLong() != written || in.read() != -1) {
+				throw new ManifestFormatException("Delta " + deltaFile + " is incomplete");
+			}
+		} catch (EOFException | ZipException e) {
+			throw new ManifestFormatException("Delta " + deltaFile + " is truncated or corrupt", e);
+		}
+	}
+
+	private static DataInputStream openDelta(Path deltaFile) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(Files.newInputStream(deltaFile))));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new ManifestFormatException("Not a file delta: " + deltaFile);
+			}
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		return in;
+	}
+
+	private static int readLiteralLength(DataInputStream in, int operation) throws IOException {
+		if (operation != LITERAL) {
+			throw new ManifestFormatException("Unknown delta operation " + operation);
+		}
+		return readCount(in);
+	}
+
+	private static int readCount(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if (count < 0) {
+			throw new ManifestFormatException("Invalid delta count " + count);
+		}
+		return count;
+	}
+
+	/**
+	 * Emits the bytes between matched blocks as literals and merges consecutive blocks into a single copy.
+	 */
+	private static class DeltaWriter extends BlockSignature.RollingScanner {
+
+		private final DataOutputStream out;
+
+		private final int blockSize;
+
+		private int literalStart;
+
+		private int copyStart = -1;
+
+		private int copyCount;
+
+		private long contentLength;
+
+		DeltaWriter(BlockSignature signature, InputStream in, DataOutputStream out) {
+			super(signature, in);
+			this.out = out;
+			blockSize = signature.getBlockSize();
+		}
+
+		@Override
+		boolean onWindow(long windowOffset, int block) throws IOException {
+			if (block < 0) {
+				return false;
+			}
+			int windowStart = getWindowStart();
+			writeLiteral(getBuffer(), windowStart);
+			if (copyStart >= 0 && block == copyStart + copyCount) {
+				++copyCount;
+			} else {
+				flushCopy();
+				copyStart = block;
+				copyCount = 1;
+			}
+			literalStart = windowStart + blockSize;
+			return false;
+		}
+
+		@Override
+		void onDiscard(byte[] data, int length) throws IOException {
+			writeLiteral(data, length);
+			literalStart = 0;
+		}
+
+		@Override
+		void onEnd(byte[] data, int end) throws IOException {
+			writeLiteral(data, end);
+		}
+
+		private void writeLiteral(byte[] data, int end) throws IOException {
+			if (end <= literalStart) {
+				return;
+			}
+			flushCopy();
+			out.writeByte(LITERAL);
+			out.writeInt(end - literalStart);
+			out.write(data, literalStart, end - literalStart);
+			contentLength += end - literalStart;
+			literalStart = end;
+		}
+
+		void flushCopy() throws IOException {
+			if (copyStart < 0) {
+				return;
+			}
+			out.writeByte(COPY);
+			out.writeInt(copyStart);
+			out.writeInt(copyCount);
+			contentLength += (long) copyCount * blockSize;
+			copyStart = -1;
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package name.azzurite.mcserver.sync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import name.azzurite.mcserver.util.LogUtil;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers the MD5 of local files together with the size, modification time and file key (inode) they had when they were hashed.
+ * A file is only read again when one of those changed.
+ */
+public class HashCache {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(HashCache.class);
+
+	private static final int MAGIC = 0x4D535348; // "MSSH"
+
+	private static final int VERSION = 1;
+
+	private final Path basePath;
+
+	private final Path cacheFile;
+
+	private final Map<String, CachedHash> hashes = new ConcurrentHashMap<>();
+
+	private HashCache(Path basePath, Path cacheFile) {
+		this.basePath = basePath;
+		this.cacheFile = cacheFile;
+	}
+
+	public static HashCache load(Path basePath, Path cacheFile) {
+		HashCache hashCache = new HashCache(basePath, cacheFile);
+		if (!Files.exists(cacheFile)) {
+			return hashCache;
+		}
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cacheFile)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				LOGGER.warn("Unknown hash cache format, starting with an empty hash cache.");
+				return hashCache;
+			}
+			int entryCount = in.readInt();
+			for (int i = 0; i < entryCount; ++i) {
+				String path = in.readUTF();
+				FileStat stat = new FileStat(in.readLong(), in.readLong(), in.readUTF());
+				byte[] hash = new byte[in.readUnsignedByte()];
+				in.readFully(hash);
+				hashCache.hashes.put(path, new CachedHash(stat, hash));
+			}
+			LOGGER.debug("Loaded {} cached hashes", entryCount);
+		} catch (IOException e) {
+			LOGGER.warn("Error while loading hash cache, starting with an empty hash cache.");
+			LogUtil.stacktrace(LOGGER, e);
+			hashCache.hashes.clear();
+		}
+		return hashCache;
+	}
+
+	private static FileStat stat(Path file) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+		Object fileKey = attributes.fileKey();
+		return new FileStat(attributes.size(), attributes.lastModifiedTime().toMillis(), fileKey == null ? "" : fileKey.toString());
+	}
+
+	private String toKey(Path file) {
+		return basePath.relativize(file).toString().replace('\\', '/');
+	}
+
+	/**
+	 * @return the MD5 of the file, only reading the file if it changed since it was last hashed, or an empty array if the file does
+	 * not exist
+	 */
+	public byte[] getHash(Path file) throws IOException {
+		FileStat stat;
+		try {
+			stat = stat(file);
+		} catch (NoSuchFileException e) {
+			return new byte[0];
+		}
+
+		String key = toKey(file);
+		CachedHash cached = hashes.get(key);
+		if (cached != null && cached.stat.equals(stat)) {
+			return cached.hash.clone();
+		}
+
+		byte[] hash;
+		try (InputStream in = Files.newInputStream(file)) {
+			hash = DigestUtils.md5(in);
+		}
+		if (stat.equals(statAfterHashing(file))) {
+			hashes.put(key, new CachedHash(stat, hash));
+		} else {
+			// written while it was read, the hash may mix both versions and must not be cached under either stat
+			LOGGER.debug("File {} changed while it was hashed, not caching its hash", file);
+			hashes.remove(key);
+		}
+		return hash.clone();
+	}
+
+	private static FileStat statAfterHashing(Path file) throws IOException {
+		try {
+			return stat(file);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return whether the file still has the same size, modification time and file key as when it was last hashed
+	 */
+	public boolean isUnchanged(Path file) {
+		CachedHash cached = hashes.get(toKey(file));
+		if (cached == null) {
+			return false;
+		}
+		try {
+			return cached.stat.equals(stat(file));
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	public void invalidate(Path file) {
+		hashes.remove(toKey(file));
+	}
+
+	public synchronized void save() {
+		hashes.keySet().removeIf(path -> !Files.exists(basePath.resolve(path)));
+
+		Path tempFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+		try {
+			Files.createDirectories(cacheFile.getParent());
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+				Map<String, CachedHash> snapshot = new HashMap<>(hashes);
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(snapshot.size());
+				for (Map.Entry<String, CachedHash> entry : snapshot.entrySet()) {
+					FileStat stat = entry.getValue().stat;
+					out.writeUTF(entry.getKey());
+					out.writeLong(stat.size);
+					out.writeLong(stat.lastModified);
+					out.writeUTF(stat.fileKey);
+					out.writeByte(entry.getValue().hash.length);
+					out.write(entry.getValue().hash);
+				}
+			}
+			Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			LOGGER.warn("Could not save hash cache: {}", e.getMessage());
+			LogUtil.stacktrace(LOGGER, e);
+		}
+	}
+
+	private static class FileStat {
+
+		private final long size;
+
+		private final long lastModified;
+
+		private final String fileKey;
+
+		FileStat(long size, long lastModified, String fileKey) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.fileKey = fileKey;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof FileStat)) {
+				return false;
+			}
+			FileStat other = (FileStat) o;
+			return size == other.size && lastModified == other.lastModified && fileKey.equals(other.fileKey);
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(size) * 31 + Long.hashCode(lastModified);
+		}
+	}
+
+	private static class CachedHash {
+
+		private final FileStat stat;
+
+		private final byte[] hash;
+
+		CachedHash(FileStat stat, byte[] hash) {
+			this.stat = stat;
+			this.hash = hash;
+		}
+	}
+}
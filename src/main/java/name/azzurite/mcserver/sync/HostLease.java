@@ -0,0 +1,282 @@
+package name.azzurite.mcserver.sync;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import name.azzurite.mcserver.util.AsyncUtil;
+import name.azzurite.mcserver.util.LogUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The right to host the server, stored on the sync server as the owner, the address players connect to, the time it expires and a
+ * fencing token.
+ * <p>
+ * The host renews the lease in the background while the server runs. If the host crashes, the lease expires and someone else can
+ * take over without anyone having to set the server offline by hand. Every new host increases the fencing token, so a host that was
+ * stuck for longer than the lease and lost it to someone else does not publish its server files over the ones of the new host.
+ * <p>
+ * FTP cannot replace a file only if it did not change, so a new lease is read back after a moment to check that nobody else wrote
+ * theirs at the same time. Two hosts that still both believe to own it find out at their next renewal at the latest.
+ */
+public class HostLease implements PublishGuard {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(HostLease.class);
+
+	private static final String LEASE_FILE = "MinecraftServerSync/lease";
+
+	private static final String OWNER_PROPERTY = "owner";
+
+	private static final String ADDRESS_PROPERTY = "address";
+
+	private static final String EXPIRES_PROPERTY = "expires";
+
+	private static final String TOKEN_PROPERTY = "token";
+
+	/** the clocks of the hosts may differ, an expired lease is only taken over after this margin */
+	private static final long CLOCK_SKEW_MILLIS = 30000L;
+
+	private static final long SETTLE_MILLIS = 2000L;
+
+	private static final int RENEWALS_PER_DURATION = 3;
+
+	private final SyncClient syncClient;
+
+	private final long durationMillis;
+
+	private final String ownerId = UUID.randomUUID().toString();
+
+	private final ScheduledExecutorService heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "host lease heartbeat");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private volatile Lease heldLease;
+
+	private ScheduledFuture<?> heartbeat;
+
+	public HostLease(SyncClient syncClient, int durationSeconds) {
+		this.syncClient = syncClient;
+		durationMillis = TimeUnit.SECONDS.toMillis(durationSeconds);
+	}
+
+	/**
+	 * @return the lease of the current host, which may be this one, empty if nobody hosts the server
+	 */
+	public Optional<Lease> retrieveActive() throws ExecutionException {
+		return Lease.parse(AsyncUtil.getResult(syncClient.retrieveFileContents(LEASE_FILE)))
+				.filter(lease -> lease.isActive(System.currentTimeMillis()));
+	}
+
+	/**
+	 * Takes the lease if nobody else holds an active one and starts renewing it.
+	 *
+	 * @param address where players connect to the server of this host
+	 * @return false if someone else holds the lease
+	 */
+	public synchronized boolean acquire(String address) throws ExecutionException {
+		Optional<Lease> current = Lease.parse(AsyncUtil.getResult(syncClient.retrieveFileContents(LEASE_FILE)));
+		if (current.isPresent() && current.get().isActive(System.currentTimeMillis()) && !current.get().isOwnedBy(ownerId)) {
+			LOGGER.info("The server is hosted by {} until {}", current.get().getAddress(),
+					Instant.ofEpochMilli(current.get().getExpires()));
+			return false;
+		}
+
+		long token = current.map(Lease::getToken).orElse(0L) + 1;
+		Lease lease = new Lease(ownerId, address, System.currentTimeMillis() + durationMillis, token);
+		write(lease);
+		AsyncUtil.threadSleep(SETTLE_MILLIS);
+		if (!isStillHeld(lease)) {
+			LOGGER.info("Someone else took the host lease at the same time");
+			return false;
+		}
+
+		LOGGER.info("Acquired host lease with fencing token {}", token);
+		heldLease = lease;
+		long renewalMillis = durationMillis / RENEWALS_PER_DURATION;
+		heartbeat = heartbeatExecutor.scheduleWithFixedDelay(this::renew, renewalMillis, renewalMillis, TimeUnit.MILLISECONDS);
+		return true;
+	}
+
+	/**
+	 * The lease is only given up when someone else's lease is read back. If the lease could not be read, it is kept and the next
+	 * renewal tries again, a short outage of the sync server must not keep the host from uploading its server files.
+	 */
+	private void renew() {
+		Lease lease = heldLease;
+		if (lease == null) {
+			return;
+		}
+		try {
+			Optional<Lease> current = Lease.parse(AsyncUtil.getResult(syncClient.retrieveFileContents(LEASE_FILE)));
+			if (current.isPresent() && !isSameLease(current.get(), lease)) {
+				LOGGER.error("Lost the host lease, the server files of this host will not be uploaded");
+				heldLease = null;
+				return;
+			}
+			Lease renewed = lease.renew(System.currentTimeMillis() + durationMillis);
+			write(renewed);
+			heldLease = renewed;
+			LOGGER.debug("Renewed host lease until {}", Instant.ofEpochMilli(renewed.getExpires()));
+		} catch (ExecutionException | RuntimeException e) {
+			LOGGER.warn("Could not renew host lease, trying again: {}", e.getMessage());
+			LogUtil.stacktrace(LOGGER, e);
+		}
+	}
+
+	private boolean isStillHeld(Lease lease) throws ExecutionException {
+		Optional<Lease> current = Lease.parse(AsyncUtil.getResult(syncClient.retrieveFileContents(LEASE_FILE)));
+		return current.filter(currentLease -> isSameLease(currentLease, lease)).isPresent();
+	}
+
+	private boolean isSameLease(Lease currentLease, Lease lease) {
+		return currentLease.isOwnedBy(ownerId) && currentLease.getToken() == lease.getToken();
+	}
+
+	private void write(Lease lease) throws ExecutionException {
+		AsyncUtil.getResult(syncClient.setFileContents(LEASE_FILE, lease.format()));
+	}
+
+	/**
+	 * Stops renewing the lease. It expires on its own unless it is released.
+	 */
+	public synchronized void stopRenewing() {
+		if (heartbeat != null) {
+			heartbeat.cancel(false);
+			heartbeat = null;
+		}
+	}
+
+	/**
+	 * Expires the lease if this host still holds it, so someone else can host the server right away. The lease is overwritten
+	 * instead of deleted, so the next host continues with its fencing token.
+	 */
+	public synchronized void release() throws ExecutionException {
+		stopRenewing();
+		Lease lease = heldLease;
+		heldLease = null;
+		if (lease != null && isStillHeld(lease)) {
+			LOGGER.info("Releasing host lease");
+			write(lease.expire());
+		}
+	}
+
+	@Override
+	public String getGuardFile() {
+		return LEASE_FILE;
+	}
+
+	/**
+	 * Without holding the lease, the server files may only be published while nobody hosts the server.
+	 */
+	@Override
+	public void checkPublish(String guardFileContents) throws IOException {
+		Optional<Lease> current = Lease.parse(guardFileContents);
+		Lease lease = heldLease;
+		if (lease == null) {
+			if (current.isPresent() && current.get().isActive(System.currentTimeMillis())) {
+				throw new IOException("The server is hosted by " + current.get().getAddress() + ", not publishing the server files");
+			}
+			return;
+		}
+		if (!current.isPresent() || !current.get().isOwnedBy(ownerId) || current.get().getToken() != lease.getToken()) {
+			throw new IOException("The host lease with fencing token " + lease.getToken() + " was lost, not publishing the server files");
+		}
+	}
+
+	public static final class Lease {
+
+		private final String owner;
+
+		private final String address;
+
+		private final long expires;
+
+		private final long token;
+
+		private Lease(String owner, String address, long expires, long token) {
+			this.owner = owner;
+			this.address = address;
+			this.expires = expires;
+			this.token = token;
+		}
+
+		private static Optional<Lease> parse(String contents) {
+			if (contents == null || contents.trim().isEmpty()) {
+				return Optional.empty();
+			}
+			try {
+				Properties properties = new Properties();
+				properties.load(new StringReader(contents));
+				return Optional.of(new Lease(properties.getProperty(OWNER_PROPERTY, ""), properties.getProperty(ADDRESS_PROPERTY, ""),
+						Long.parseLong(properties.getProperty(EXPIRES_PROPERTY, "0")),
+						Long.parseLong(properties.getProperty(TOKEN_PROPERTY, "0"))));
+			} catch (IOException | NumberFormatException e) {
+				LOGGER.warn("Could not read host lease: {}", e.getMessage());
+				LogUtil.stacktrace(LOGGER, e);
+				return Optional.empty();
+			}
+		}
+
+		private String format() {
+			Properties properties = new Properties();
+			properties.setProperty(OWNER_PROPERTY, owner);
+			properties.setProperty(ADDRESS_PROPERTY, address);
+			properties.setProperty(EXPIRES_PROPERTY, String.valueOf(expires));
+			properties.setProperty(TOKEN_PROPERTY, String.valueOf(token));
+			StringWriter out = new StringWriter();
+			try {
+				properties.store(out, null);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			return out.toString();
+		}
+
+		private Lease renew(long newExpires) {
+			return new Lease(owner, address, newExpires, token);
+		}
+
+		private Lease expire() {
+			return renew(0L);
+		}
+
+		private boolean isOwnedBy(String ownerId) {
+			return owner.equals(ownerId);
+		}
+
+		boolean isActive(long now) {
+			return now <= getTakeOverTime();
+		}
+
+		public String getAddress() {
+			return address;
+		}
+
+		public long getExpires() {
+			return expires;
+		}
+
+		/**
+		 * @return when someone else takes over if the lease is not renewed, in milliseconds since the epoch
+		 */
+		public long getTakeOverTime() {
+			return expires + CLOCK_SKEW_MILLIS;
+		}
+
+		public long getToken() {
+			return token;
+		}
+	}
+}
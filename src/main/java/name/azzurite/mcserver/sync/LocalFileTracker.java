@@ -0,0 +1,222 @@
+package name.azzurite.mcserver.sync;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import name.azzurite.mcserver.util.LogUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the local server files and which of them changed since the last upload while the server runs, so an upload neither
+ * has to walk the whole server directory nor look at the files that did not change.
+ * <p>
+ * A watch service only reports the direct children of a directory, so every directory is watched. If the watch service lost events,
+ * the server directory is walked again and every file is looked at during the next upload.
+ */
+class LocalFileTracker {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(LocalFileTracker.class);
+
+	private final Path basePath;
+
+	private final Collection<String> ignoredFiles;
+
+	private final Set<Path> files = new HashSet<>();
+
+	private final Set<Path> changedFiles = new HashSet<>();
+
+	private final Map<WatchKey, Path> directories = new HashMap<>();
+
+	private WatchService watchService;
+
+	private boolean eventsLost;
+
+	/**
+	 * @param ignoredFiles files and directories directly in the base path that are not server files
+	 */
+	LocalFileTracker(Path basePath, Collection<String> ignoredFiles) {
+		this.basePath = basePath;
+		this.ignoredFiles = new HashSet<>(ignoredFiles);
+	}
+
+	synchronized void start() throws IOException {
+		if (watchService != null) {
+			return;
+		}
+		LOGGER.debug("Tracking changes of local server files");
+		watchService = basePath.getFileSystem().newWatchService();
+		files.clear();
+		changedFiles.clear();
+		eventsLost = false;
+		watchTree(basePath, false);
+
+		WatchService startedWatchService = watchService;
+		Thread watchThread = new Thread(() -> processEvents(startedWatchService), "local file tracker");
+		watchThread.setDaemon(true);
+		watchThread.start();
+	}
+
+	synchronized void stop() {
+		if (watchService == null) {
+			return;
+		}
+		LOGGER.debug("Stopped tracking changes of local server files");
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			LOGGER.warn("Could not close watch service: {}", e.getMessage());
+			LogUtil.stacktrace(LOGGER, e);
+		}
+		watchService = null;
+		directories.clear();
+		files.clear();
+		changedFiles.clear();
+	}
+
+	synchronized boolean isTracking() {
+		return watchService != null;
+	}
+
+	/**
+	 * The changes are forgotten, call {@link #markAllChanged()} if they could not be uploaded.
+	 *
+	 * @return the files changed since the last call, empty if every file has to be looked at
+	 */
+	synchronized Optional<Set<Path>> takeChangedFiles() throws IOException {
+		if (eventsLost) {
+			LOGGER.info("Changes of local server files were lost, looking at every file.");
+			files.clear();
+			changedFiles.clear();
+			eventsLost = false;
+			watchTree(basePath, false);
+			return Optional.empty();
+		}
+		Set<Path> changed = new HashSet<>(changedFiles);
+		changedFiles.clear();
+		LOGGER.debug("{} of {} local server files changed", changed.size(), files.size());
+		return Optional.of(changed);
+	}
+
+	synchronized List<Path> getFiles() {
+		return new ArrayList<>(files);
+	}
+
+	synchronized void markAllChanged() {
+		eventsLost = true;
+	}
+
+	/**
+	 * Watches the directory and every directory below it and remembers the files in them.
+	 *
+	 * @param changed whether the files are new since the last upload
+	 */
+	private void watchTree(Path directory, boolean changed) throws IOException {
+		Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				if (isIgnored(dir)) {
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				if (!directories.containsValue(dir)) {
+					WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+							StandardWatchEventKinds.ENTRY_MODIFY);
+					directories.put(key, dir);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (!isIgnored(file)) {
+					files.add(file);
+					if (changed) {
+						changedFiles.add(file);
+					}
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException exc) {
+				// deleted while walking, its delete event follows
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private boolean isIgnored(Path path) {
+		Path relativePath = basePath.relativize(path);
+		return relativePath.getNameCount() > 0 && ignoredFiles.contains(relativePath.getName(0).toString());
+	}
+
+	private void processEvents(WatchService watchService) {
+		while (true) {
+			WatchKey key;
+			try {
+				key = watchService.take();
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+			synchronized (this) {
+				if (this.watchService != watchService) {
+					return;
+				}
+				Path directory = directories.get(key);
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						LOGGER.warn("Too many local server files changed at once, looking at every file during the next upload.");
+						eventsLost = true;
+					} else if (directory != null) {
+						processEvent(event.kind(), directory.resolve((Path) event.context()));
+					}
+				}
+				if (!key.reset()) {
+					directories.remove(key);
+				}
+			}
+		}
+	}
+
+	private void processEvent(WatchEvent.Kind<?> kind, Path path) {
+		if (isIgnored(path)) {
+			return;
+		}
+		if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+			files.removeIf(file -> file.startsWith(path));
+			changedFiles.removeIf(file -> file.startsWith(path));
+		} else if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+			if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+				try {
+					watchTree(path, true);
+				} catch (IOException e) {
+					LOGGER.warn("Could not watch new directory {}, looking at every file during the next upload: {}", path,
+							e.getMessage());
+					LogUtil.stacktrace(LOGGER, e);
+					eventsLost = true;
+				}
+			}
+		} else if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+			files.add(path);
+			changedFiles.add(path);
+		}
+	}
+}
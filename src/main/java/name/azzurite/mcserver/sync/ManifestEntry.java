@@ -0,0 +1,98 @@
+package name.azzurite.mcserver.sync;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class ManifestEntry {
+
+	private final String path;
+
+	private final long size;
+
+	private final long lastModified;
+
+	private final byte[] hash;
+
+	private final byte[] sourceHash;
+
+	private final Map<Integer, Integer> chunkTimestamps;
+
+	private final List<String> members;
+
+	private final String generation;
+
+	/**
+	 * @param sourceHash the hash of the uncompressed content this file was created from, so it can be skipped without compressing the
+	 * content again, empty if unknown
+	 * @param chunkTimestamps for region files and region patches, the timestamp of every chunk they contain by its index in the region
+	 * @param members for bundles of small files, the path of every file in the bundle relative to the base server path, with '/' as
+	 * separator
+	 * @param generation the generation the file was uploaded in, empty if it was uploaded by an earlier version directly into the sync
+	 * directory
+	 */
+	public ManifestEntry(String path, long size, long lastModified, byte[] hash, byte[] sourceHash,
+			Map<Integer, Integer> chunkTimestamps, Collection<String> members, String generation) {
+		this.path = path;
+		this.size = size;
+		this.lastModified = lastModified;
+		this.hash = hash.clone();
+		this.sourceHash = sourceHash.clone();
+		this.chunkTimestamps = Collections.unmodifiableMap(new TreeMap<>(chunkTimestamps));
+		this.members = Collections.unmodifiableList(new ArrayList<>(members));
+		this.generation = generation;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public byte[] getHash() {
+		return hash.clone();
+	}
+
+	public boolean hasHash(byte[] otherHash) {
+		return Arrays.equals(hash, otherHash);
+	}
+
+	public byte[] getSourceHash() {
+		return sourceHash.clone();
+	}
+
+	public boolean hasSourceHash(byte[] otherSourceHash) {
+		return sourceHash.length > 0 && Arrays.equals(sourceHash, otherSourceHash);
+	}
+
+	public Map<Integer, Integer> getChunkTimestamps() {
+		return chunkTimestamps;
+	}
+
+	public boolean hasChunkTimestamps() {
+		return !chunkTimestamps.isEmpty();
+	}
+
+	public List<String> getMembers() {
+		return members;
+	}
+
+	public String getGeneration() {
+		return generation;
+	}
+
+	@Override
+	public String toString() {
+		return path + " (" + size + " bytes)";
+	}
+}
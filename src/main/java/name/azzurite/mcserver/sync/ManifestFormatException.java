@@ -0,0 +1,16 @@
+package name.azzurite.mcserver.sync;
+
+import java.io.IOException;
+
+public class ManifestFormatException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public ManifestFormatException(String message) {
+		super(message);
+	}
+
+	public ManifestFormatException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
@@ -0,0 +1,17 @@
+package name.azzurite.mcserver.sync;
+
+import java.io.IOException;
+
+/**
+ * Checked right before a new generation of the server files is published, with the current content of a remote file.
+ */
+public interface PublishGuard {
+
+	String getGuardFile();
+
+	/**
+	 * @param guardFileContents empty if the guard file does not exist
+	 * @throws IOException if the generation must not be published
+	 */
+	void checkPublish(String guardFileContents) throws IOException;
+}
@@ -0,0 +1,126 @@
+package name.azzurite.mcserver.sync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * A region file with the data of its chunks decompressed, stored in place of the region as {@code r.x.z.mca.raw}.
+ * <p>
+ * Every chunk of a region is compressed on its own, so compressing the region again cannot make use of the blocks, biomes and
+ * palettes the chunks have in common. Compressed as a whole with a long window, the decompressed chunks are a lot smaller than the
+ * region. When the region is restored, the chunks are compressed again the way Minecraft compresses them. The region is not byte for
+ * byte the same, but it contains the same chunks with the same timestamps, which is all that is compared to find changed regions.
+ */
+final class RawRegion {
+
+	static final String RAW_EXTENSION = ".raw";
+
+	private static final int MAGIC = 0x4D535352; // "MSSR"
+
+	private static final int VERSION = 1;
+
+	private static final int GZIP = 1;
+
+	private static final int ZLIB = 2;
+
+	private RawRegion() {}
+
+	/**
+	 * Writes the chunks of the region, decompressing the ones compressed with gzip or zlib. Chunks with any other compression are
+	 * written as they are.
+	 */
+	static void write(Path regionFile, OutputStream outputStream) throws IOException {
+		Map<Integer, Integer> timestamps = RegionFile.readChunkTimestamps(regionFile);
+		Map<Integer, byte[]> chunks = RegionFile.readChunks(regionFile, timestamps.keySet());
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(chunks.size());
+		for (Map.Entry<Integer, byte[]> chunk : chunks.entrySet()) {
+			byte[] data = chunk.getValue();
+			int compressionType = (data.length > 0) ? (data[0] & 0xFF) : 0;
+			byte[] content = (compressionType == GZIP || compressionType == ZLIB) ? decompress(data, compressionType) : null;
+
+			out.writeShort(chunk.getKey());
+			out.writeInt(timestamps.get(chunk.getKey()));
+			out.writeBoolean(content != null);
+			if (content != null) {
+				out.writeByte(compressionType);
+				out.writeInt(content.length);
+				out.write(content);
+			} else {
+				out.writeInt(data.length);
+				out.write(data);
+			}
+		}
+		out.flush();
+	}
+
+	private static byte[] decompress(byte[] data, int compressionType) throws IOException {
+		InputStream compressed = new ByteArrayInputStream(data, 1, data.length - 1);
+		try (InputStream in = (compressionType == GZIP) ? new GZIPInputStream(compressed) : new InflaterInputStream(compressed)) {
+			return IOUtils.toByteArray(in);
+		}
+	}
+
+	private static byte[] compress(byte[] content, int compressionType) throws IOException {
+		ByteArrayOutputStream data = new ByteArrayOutputStream(content.length / 4);
+		data.write(compressionType);
+		if (compressionType == GZIP) {
+			try (OutputStream out = new GZIPOutputStream(data)) {
+				out.write(content);
+			}
+		} else {
+			Deflater deflater = new Deflater();
+			try (OutputStream out = new DeflaterOutputStream(data, deflater)) {
+				out.write(content);
+			} finally {
+				deflater.end();
+			}
+		}
+		return data.toByteArray();
+	}
+
+	/**
+	 * Writes the region file with the chunks read from {@code rawFile}, compressed again.
+	 */
+	static void restore(Path rawFile, Path regionFile) throws IOException {
+		Map<Integer, Integer> timestamps = new TreeMap<>();
+		Map<Integer, byte[]> chunks = new TreeMap<>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(rawFile)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not a raw region: " + rawFile);
+			}
+			int chunkCount = in.readInt();
+			for (int i = 0; i < chunkCount; ++i) {
+				int index = in.readUnsignedShort();
+				timestamps.put(index, in.readInt());
+				boolean decompressed = in.readBoolean();
+				int compressionType = decompressed ? in.readUnsignedByte() : 0;
+				byte[] data = new byte[in.readInt()];
+				in.readFully(data);
+				chunks.put(index, decompressed ? compress(data, compressionType) : data);
+			}
+		}
+		RegionFile.write(regionFile, chunks, timestamps);
+	}
+}
@@ -0,0 +1,151 @@
+package name.azzurite.mcserver.sync;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads and writes Anvil region files ({@code r.x.z.mca}).
+ * <p>
+ * A region file starts with two 4 KiB tables of 1024 entries each: the location of every chunk (sector offset and sector count) and
+ * the timestamp of its last save. The chunk data follows in 4 KiB sectors, each chunk starts with its length and compression type.
+ * Minecraft updates the timestamp of a chunk every time it saves it, so comparing the timestamp table is enough to find the chunks
+ * that changed.
+ */
+final class RegionFile {
+
+	static final int CHUNK_COUNT = 1024;
+
+	private static final String REGION_FILE_EXTENSION = ".mca";
+
+	private static final int SECTOR_SIZE = 4096;
+
+	private static final int HEADER_SIZE = 2 * SECTOR_SIZE;
+
+	private static final int MAX_SECTOR_COUNT = 0xFF;
+
+	private RegionFile() {}
+
+	static boolean isRegionFile(Path file) {
+		return file.getFileName().toString().endsWith(REGION_FILE_EXTENSION);
+	}
+
+	/**
+	 * @return the timestamp of every chunk in the region, by its index in the header. Chunks that were never generated are missing.
+	 */
+	static Map<Integer, Integer> readChunkTimestamps(Path regionFile) throws IOException {
+		try (FileChannel channel = FileChannel.open(regionFile, StandardOpenOption.READ)) {
+			ByteBuffer header = readHeader(channel);
+			Map<Integer, Integer> timestamps = new TreeMap<>();
+			for (int i = 0; i < CHUNK_COUNT; ++i) {
+				if (header.getInt(i * 4) != 0) {
+					timestamps.put(i, header.getInt(SECTOR_SIZE + i * 4));
+				}
+			}
+			return timestamps;
+		}
+	}
+
+	/**
+	 * @return the data of the given chunks, including the compression type but without the length. Chunks that do not exist in the
+	 * region are missing.
+	 */
+	static Map<Integer, byte[]> readChunks(Path regionFile, Collection<Integer> chunkIndices) throws IOException {
+		try (FileChannel channel = FileChannel.open(regionFile, StandardOpenOption.READ)) {
+			ByteBuffer header = readHeader(channel);
+			Map<Integer, byte[]> chunks = new TreeMap<>();
+			for (int index : chunkIndices) {
+				int location = header.getInt(index * 4);
+				if (location == 0) {
+					continue;
+				}
+				long position = (long) (location >>> 8) * SECTOR_SIZE;
+				ByteBuffer length = ByteBuffer.allocate(4);
+				readFully(channel, length, position);
+				int chunkLength = length.getInt(0);
+				// a corrupt length must not allocate more than the sectors of the chunk can hold
+				if (chunkLength <= 0 || chunkLength > (location & MAX_SECTOR_COUNT) * SECTOR_SIZE - 4) {
+					throw new IOException("Chunk " + index + " of region " + regionFile + " has an invalid length of " + chunkLength);
+				}
+				ByteBuffer data = ByteBuffer.allocate(chunkLength);
+				readFully(channel, data, position + 4);
+				chunks.put(index, data.array());
+			}
+			return chunks;
+		}
+	}
+
+	/**
+	 * Writes a new region file with the chunks placed one after another. The file is written to a temporary file first, so a failed
+	 * write does not destroy the previous region.
+	 *
+	 * @param chunks the data of every chunk as returned by {@link #readChunks(Path, Collection)}
+	 * @param timestamps the timestamp of every chunk in {@code chunks}
+	 */
+	static void write(Path regionFile, Map<Integer, byte[]> chunks, Map<Integer, Integer> timestamps) throws IOException {
+		int[] locations = new int[CHUNK_COUNT];
+		int nextSector = HEADER_SIZE / SECTOR_SIZE;
+		for (Map.Entry<Integer, byte[]> chunk : chunks.entrySet()) {
+			int sectorCount = getSectorCount(chunk.getValue());
+			if (sectorCount > MAX_SECTOR_COUNT) {
+				throw new IOException("Chunk " + chunk.getKey() + " is too big for region file " + regionFile);
+			}
+			locations[chunk.getKey()] = (nextSector << 8) | sectorCount;
+			nextSector += sectorCount;
+		}
+
+		Path tempFile = regionFile.resolveSibling(regionFile.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+			for (int location : locations) {
+				out.writeInt(location);
+			}
+			for (int i = 0; i < CHUNK_COUNT; ++i) {
+				out.writeInt(chunks.containsKey(i) ? timestamps.getOrDefault(i, 0) : 0);
+			}
+			for (byte[] chunk : chunks.values()) {
+				out.writeInt(chunk.length);
+				out.write(chunk);
+				writePadding(out, getSectorCount(chunk) * SECTOR_SIZE - 4 - chunk.length);
+			}
+		}
+		Files.move(tempFile, regionFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static int getSectorCount(byte[] chunk) {
+		return (chunk.length + 4 + SECTOR_SIZE - 1) / SECTOR_SIZE;
+	}
+
+	private static void writePadding(OutputStream out, int length) throws IOException {
+		out.write(new byte[length]);
+	}
+
+	private static ByteBuffer readHeader(FileChannel channel) throws IOException {
+		if (channel.size() < HEADER_SIZE) {
+			throw new IOException("Region file is too small for a header");
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(channel, header, 0);
+		return header;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		long currentPosition = position;
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, currentPosition);
+			if (read < 0) {
+				throw new IOException("Unexpected end of region file");
+			}
+			currentPosition += read;
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package name.azzurite.mcserver.sync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The chunks of a region file that changed since its base was uploaded, stored next to the base as {@code r.x.z.mca.patch}.
+ * <p>
+ * A patch always contains every chunk that differs from the base, so only the base and the latest patch are needed to restore the
+ * region. Chunks that were removed from the region are stored with a timestamp of 0 and no data.
+ */
+class RegionPatch {
+
+	static final String PATCH_EXTENSION = ".patch";
+
+	private static final int MAGIC = 0x4D535350; // "MSSP"
+
+	private static final int VERSION = 1;
+
+	private static final int REMOVED_TIMESTAMP = 0;
+
+	private final Map<Integer, Integer> timestamps;
+
+	private final Map<Integer, byte[]> chunks;
+
+	RegionPatch(Map<Integer, Integer> timestamps, Map<Integer, byte[]> chunks) {
+		this.timestamps = new TreeMap<>(timestamps);
+		this.chunks = new TreeMap<>(chunks);
+	}
+
+	static RegionPatch read(InputStream inputStream) throws IOException {
+		try {
+			return readChunks(new DataInputStream(new BufferedInputStream(inputStream)));
+		} catch (EOFException e) {
+			throw new ManifestFormatException("Region patch is truncated", e);
+		}
+	}
+
+	private static RegionPatch readChunks(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+			throw new ManifestFormatException("Not a region patch");
+		}
+
+		Map<Integer, Integer> timestamps = new TreeMap<>();
+		Map<Integer, byte[]> chunks = new TreeMap<>();
+		int chunkCount = in.readInt();
+		if (chunkCount < 0 || chunkCount > RegionFile.CHUNK_COUNT) {
+			throw new ManifestFormatException("Invalid region patch chunk count " + chunkCount);
+		}
+		for (int i = 0; i < chunkCount; ++i) {
+			int index = in.readUnsignedShort();
+			int timestamp = in.readInt();
+			int length = in.readInt();
+			if (index >= RegionFile.CHUNK_COUNT || length < 0) {
+				throw new ManifestFormatException("Invalid region patch chunk " + index + " with " + length + " bytes");
+			}
+			byte[] data = new byte[length];
+			in.readFully(data);
+			timestamps.put(index, timestamp);
+			if (timestamp != REMOVED_TIMESTAMP) {
+				chunks.put(index, data);
+			}
+		}
+		return new RegionPatch(timestamps, chunks);
+	}
+
+	/**
+	 * Creates the patch from the current region to the base with the given chunk timestamps.
+	 */
+	static RegionPatch create(Path regionFile, Map<Integer, Integer> baseTimestamps) throws IOException {
+		Map<Integer, Integer> timestamps = getChangedChunks(RegionFile.readChunkTimestamps(regionFile), baseTimestamps);
+		return new RegionPatch(timestamps, RegionFile.readChunks(regionFile, timestamps.keySet()));
+	}
+
+	/**
+	 * @return the current timestamp of every chunk whose timestamp differs from the base, 0 for chunks that no longer exist
+	 */
+	static Map<Integer, Integer> getChangedChunks(Map<Integer, Integer> currentTimestamps, Map<Integer, Integer> baseTimestamps) {
+		Set<Integer> allChunks = new HashSet<>(currentTimestamps.keySet());
+		allChunks.addAll(baseTimestamps.keySet());
+
+		Map<Integer, Integer> changed = new TreeMap<>();
+		for (int index : allChunks) {
+			Integer current = currentTimestamps.get(index);
+			if (!baseTimestamps.containsKey(index) || !baseTimestamps.get(index).equals(current)) {
+				changed.put(index, (current == null) ? REMOVED_TIMESTAMP : current);
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * @return the timestamps of the region after applying the patch to a region with the base timestamps
+	 */
+	static Map<Integer, Integer> applyTimestamps(Map<Integer, Integer> baseTimestamps, Map<Integer, Integer> patchTimestamps) {
+		Map<Integer, Integer> timestamps = new TreeMap<>(baseTimestamps);
+		patchTimestamps.forEach((index, timestamp) -> {
+			if (timestamp == REMOVED_TIMESTAMP) {
+				timestamps.remove(index);
+			} else {
+				timestamps.put(index, timestamp);
+			}
+		});
+		return timestamps;
+	}
+
+	void write(OutputStream outputStream) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(timestamps.size());
+		for (Map.Entry<Integer, Integer> timestamp : timestamps.entrySet()) {
+			byte[] data = chunks.getOrDefault(timestamp.getKey(), new byte[0]);
+			out.writeShort(timestamp.getKey());
+			out.writeInt(timestamp.getValue());
+			out.writeInt(data.length);
+			out.write(data);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Replaces the chunks of the region with the chunks of this patch, keeping all other chunks.
+	 */
+	void applyTo(Path regionFile) throws IOException {
+		Map<Integer, Integer> regionTimestamps = Files.exists(regionFile)
+				? RegionFile.readChunkTimestamps(regionFile)
+				: Collections.emptyMap();
+		Map<Integer, byte[]> regionChunks = Files.exists(regionFile)
+				? RegionFile.readChunks(regionFile, regionTimestamps.keySet())
+				: new TreeMap<>();
+
+		Map<Integer, byte[]> newChunks = new TreeMap<>(regionChunks);
+		timestamps.keySet().forEach(newChunks::remove);
+		newChunks.putAll(chunks);
+		RegionFile.write(regionFile, newChunks, applyTimestamps(regionTimestamps, timestamps));
+	}
+
+	Map<Integer, Integer> getTimestamps() {
+		return Collections.unmodifiableMap(timestamps);
+	}
+}
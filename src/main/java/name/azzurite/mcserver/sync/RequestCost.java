@@ -0,0 +1,147 @@
+package name.azzurite.mcserver.sync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import com.jakewharton.byteunits.BinaryByteUnit;
+import name.azzurite.mcserver.util.LogUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures how long a single transfer takes depending on its size, to find out how much every request costs on its own.
+ * <p>
+ * The duration of a transfer is the fixed cost of the request plus the time the bytes take. Both are estimated with a linear
+ * regression over the recent transfers, older transfers count less so the estimate follows changes of the connection. Files smaller
+ * than the bytes that could be transferred during the fixed cost of a request are cheaper to bundle than to transfer on their own.
+ */
+public class RequestCost {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(RequestCost.class);
+
+	private static final int MAGIC = 0x4D535343; // "MSSC"
+
+	private static final int VERSION = 1;
+
+	private static final double DECAY = 0.99;
+
+	private static final double MIN_SAMPLES = 10;
+
+	private static final long DEFAULT_SMALL_FILE_THRESHOLD = BinaryByteUnit.KIBIBYTES.toBytes(20);
+
+	private static final long MIN_SMALL_FILE_THRESHOLD = BinaryByteUnit.KIBIBYTES.toBytes(4);
+
+	private static final long MAX_SMALL_FILE_THRESHOLD = BinaryByteUnit.KIBIBYTES.toBytes(256);
+
+	private static final double NANOS_IN_MILLI = 1_000_000d;
+
+	private final Path costFile;
+
+	private double samples;
+
+	private double sumBytes;
+
+	private double sumNanos;
+
+	private double sumSquaredBytes;
+
+	private double sumBytesTimesNanos;
+
+	private RequestCost(Path costFile) {
+		this.costFile = costFile;
+	}
+
+	public static RequestCost load(Path costFile) {
+		RequestCost requestCost = new RequestCost(costFile);
+		if (!Files.exists(costFile)) {
+			return requestCost;
+		}
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(costFile)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				LOGGER.warn("Unknown request cost format, measuring the request cost again.");
+				return requestCost;
+			}
+			requestCost.samples = in.readDouble();
+			requestCost.sumBytes = in.readDouble();
+			requestCost.sumNanos = in.readDouble();
+			requestCost.sumSquaredBytes = in.readDouble();
+			requestCost.sumBytesTimesNanos = in.readDouble();
+			LOGGER.debug("Loaded request cost: {}", requestCost);
+		} catch (IOException e) {
+			LOGGER.warn("Error while loading request cost, measuring the request cost again.");
+			LogUtil.stacktrace(LOGGER, e);
+			return new RequestCost(costFile);
+		}
+		return requestCost;
+	}
+
+	/**
+	 * @param nanos how long the request took from its start until the transfer was confirmed, without the time spent waiting for the
+	 * content to be produced
+	 */
+	public synchronized void record(long bytes, long nanos) {
+		samples = samples * DECAY + 1;
+		sumBytes = sumBytes * DECAY + bytes;
+		sumNanos = sumNanos * DECAY + nanos;
+		sumSquaredBytes = sumSquaredBytes * DECAY + (double) bytes * bytes;
+		sumBytesTimesNanos = sumBytesTimesNanos * DECAY + (double) bytes * nanos;
+	}
+
+	private double getNanosPerByte() {
+		double variance = samples * sumSquaredBytes - sumBytes * sumBytes;
+		return (variance > 0) ? (samples * sumBytesTimesNanos - sumBytes * sumNanos) / variance : 0;
+	}
+
+	private double getFixedNanos() {
+		return (sumNanos - getNanosPerByte() * sumBytes) / samples;
+	}
+
+	/**
+	 * @return the size below which files are bundled, a power of two so small changes of the measurement do not move files between
+	 * bundles. Until enough requests are measured, the threshold of earlier versions.
+	 */
+	public synchronized long getSmallFileThreshold() {
+		if (samples < MIN_SAMPLES || getNanosPerByte() <= 0 || getFixedNanos() <= 0) {
+			return DEFAULT_SMALL_FILE_THRESHOLD;
+		}
+		long breakEvenBytes = (long) (getFixedNanos() / getNanosPerByte());
+		long threshold = Math.max(MIN_SMALL_FILE_THRESHOLD, Math.min(MAX_SMALL_FILE_THRESHOLD, breakEvenBytes));
+		return Long.highestOneBit(threshold);
+	}
+
+	public synchronized void save() {
+		Path tempFile = costFile.resolveSibling(costFile.getFileName() + ".tmp");
+		try {
+			Files.createDirectories(costFile.getParent());
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeDouble(samples);
+				out.writeDouble(sumBytes);
+				out.writeDouble(sumNanos);
+				out.writeDouble(sumSquaredBytes);
+				out.writeDouble(sumBytesTimesNanos);
+			}
+			Files.move(tempFile, costFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			LOGGER.warn("Could not save request cost: {}", e.getMessage());
+			LogUtil.stacktrace(LOGGER, e);
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		if (samples < MIN_SAMPLES) {
+			return "not enough requests measured";
+		}
+		return String.format("%.1f ms per request, %.1f ms per MiB", getFixedNanos() / NANOS_IN_MILLI,
+				getNanosPerByte() * BinaryByteUnit.MEBIBYTES.toBytes(1) / NANOS_IN_MILLI);
+	}
+}
@@ -1,6 +1,7 @@
 package name.azzurite.mcserver.sync;
 
 import java.util.Optional;
+import java.util.OptionalLong;
 
 public class ServerInfo {
 
@@ -8,14 +9,27 @@ public class ServerInfo {
 
 	private final String ip;
 
+	private final Long takeOverTime;
+
 	public ServerInfo(ServerStatus serverStatus) {
 		this.serverStatus = serverStatus;
 		ip = null;
+		takeOverTime = null;
 	}
 
 	public ServerInfo(ServerStatus serverStatus, String ip) {
 		this.serverStatus = serverStatus;
 		this.ip = ip;
+		takeOverTime = null;
+	}
+
+	/**
+	 * @param takeOverTime when the remote host loses the server if it does not renew its lease, in milliseconds since the epoch
+	 */
+	public ServerInfo(ServerStatus serverStatus, String ip, long takeOverTime) {
+		this.serverStatus = serverStatus;
+		this.ip = ip;
+		this.takeOverTime = takeOverTime;
 	}
 
 	public ServerStatus getServerStatus() {
@@ -25,4 +39,8 @@ public class ServerInfo {
 	public Optional<String> getIp() {
 		return Optional.ofNullable(ip);
 	}
+
+	public OptionalLong getTakeOverTime() {
+		return (takeOverTime == null) ? OptionalLong.empty() : OptionalLong.of(takeOverTime);
+	}
 }
@@ -3,11 +3,13 @@ package name.azzurite.mcserver.sync;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
 
+import javafx.animation.PauseTransition;
 import javafx.application.Platform;
 import javafx.concurrent.Service;
 import javafx.concurrent.Task;
 import javafx.concurrent.WorkerStateEvent;
 import javafx.event.EventHandler;
+import javafx.util.Duration;
 import name.azzurite.mcserver.server.LocalServerService;
 import name.azzurite.mcserver.server.SyncingLocalServer;
 import name.azzurite.mcserver.util.EventHandlerChain;
@@ -21,12 +23,15 @@ public class ServerInfoService extends Service<ServerInfo> {
 	private final ServerSynchronizer sync;
 	private final LocalServerService serverService;
 	private final EventHandlerChain<WorkerStateEvent> succeededChain;
+	private final PauseTransition leaseExpiryRecheck = new PauseTransition();
 
 	public ServerInfoService(ServerSynchronizer sync, LocalServerService serverService) {
 		this.sync = sync;
 
 		succeededChain = new EventHandlerChain<>();
 		setOnSucceeded(succeededChain);
+		succeededChain.addEventHandler(this::scheduleRecheckOnLeaseExpiry);
+		leaseExpiryRecheck.setOnFinished(event -> recheckServerStatus());
 
 		this.serverService = serverService;
 		serverService.localServerStatusProperty().addListener((event) -> {
@@ -44,6 +49,19 @@ public class ServerInfoService extends Service<ServerInfo> {
 		succeededChain.addEventHandler(eventHandler);
 	}
 
+	/**
+	 * The server status only changes by itself if a remote host stops renewing its lease, so it is checked again when the lease
+	 * expires instead of periodically.
+	 */
+	private void scheduleRecheckOnLeaseExpiry(WorkerStateEvent event) {
+		leaseExpiryRecheck.stop();
+		getValue().getTakeOverTime().ifPresent(takeOverTime -> {
+			long delay = Math.max(0, takeOverTime - System.currentTimeMillis()) + 1000;
+			leaseExpiryRecheck.setDuration(Duration.millis(delay));
+			leaseExpiryRecheck.playFromStart();
+		});
+	}
+
 	public void recheckServerStatus() {
 		if (isRunning()) {
 			cancel();
@@ -66,11 +84,9 @@ public class ServerInfoService extends Service<ServerInfo> {
 				return new ServerInfo(ServerStatus.fromLocalServerStatus(localServerStatus), "localhost");
 			}
 
-			Optional<String> onlineServerIp = sync.getServerIp();
-			if (onlineServerIp.isPresent()) {
-				return new ServerInfo(ServerStatus.REMOTE_ONLINE, onlineServerIp.get());
-			} else if (sync.isUploadInProgress()) {
-				return new ServerInfo(ServerStatus.REMOTE_UPLOADING);
+			Optional<HostLease.Lease> hostLease = sync.getHostLease().retrieveActive();
+			if (hostLease.isPresent()) {
+				return new ServerInfo(ServerStatus.REMOTE_ONLINE, hostLease.get().getAddress(), hostLease.get().getTakeOverTime());
 			} else {
 				return new ServerInfo(ServerStatus.OFFLINE);
 			}
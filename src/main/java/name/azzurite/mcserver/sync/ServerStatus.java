@@ -5,7 +5,6 @@ import name.azzurite.mcserver.server.SyncingLocalServer;
 public enum ServerStatus {
 	OFFLINE,
 	REMOTE_ONLINE,
-	REMOTE_UPLOADING,
 	LOCALLY_ONLINE,
 	LOCALLY_UPLOADING,
 	LOCALLY_DOWNLOADING;
@@ -1,51 +1,71 @@
 package name.azzurite.mcserver.sync;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import com.jakewharton.byteunits.BinaryByteUnit;
+import name.azzurite.mcserver.compression.CompressibilityDetector;
+import name.azzurite.mcserver.compression.CompressionCodec;
+import name.azzurite.mcserver.compression.CompressionCodecs;
+import name.azzurite.mcserver.compression.ServerArchive;
 import name.azzurite.mcserver.config.AppConfig;
 import name.azzurite.mcserver.util.AsyncUtil;
+import name.azzurite.mcserver.util.DiskReadLimiter;
 import name.azzurite.mcserver.util.FilteringSaveFileListVisitor;
 import name.azzurite.mcserver.util.LogUtil;
 import name.azzurite.mcserver.util.OnlyContentZipEntrySource;
 import name.azzurite.mcserver.util.SaveFileListVisitor;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.zeroturnaround.zip.ZipEntrySource;
-import org.zeroturnaround.zip.ZipUtil;
-
-import static name.azzurite.mcserver.util.LambdaExceptionUtil.*;
-import static name.azzurite.mcserver.util.StreamUtil.*;
 
 public class ServerSynchronizer {
 
 	static final Set<String> IGNORE_FILES = new HashSet<>();
 	private static final Logger LOGGER = LoggerFactory.getLogger(ServerSynchronizer.class);
-	private static final String SERVER_IP_FILE = "MinecraftServerSync/runningServer";
-	private static final String SAVE_IN_PROGRESS_FILE_NAME = "MinecraftServerSync/uploadInProgress";
-	private static final long SECONDS_10 = 10000L;
-	private static final Path BACKUP_FILE_ZIP = Paths.get("backup.zip");
 	private static final Path SMALL_FILES_ZIP = Paths.get("smallFilesSync.zip");
-	private static final int SMALL_FILE_THRESHOLD_KB = 20;
+	private static final long LEGACY_SMALL_FILE_THRESHOLD = BinaryByteUnit.KIBIBYTES.toBytes(20);
+	private static final double MAX_PATCHED_CHUNK_RATIO = 0.5;
+	private static final long MIN_DELTA_FILE_SIZE = BinaryByteUnit.MEBIBYTES.toBytes(1);
+	private static final double MAX_DELTA_RATIO = 0.5;
+	private static final String ZIP_EXTENSION = ".zip";
+	private static final String EXTRACT_DIRECTORY = "extract";
 
 	static {
 		IGNORE_FILES.addAll(Arrays.asList("MinecraftServerSync", "logs"));
@@ -53,10 +73,34 @@ public class ServerSynchronizer {
 
 	private final AppConfig appConfig;
 	private final SyncClient syncClient;
+	private final HashCache hashCache;
+	private final RequestCost requestCost;
+	private final BackupSnapshots backups;
+	private final ExecutorService compressionExecutor;
+	private final DiskReadLimiter diskReadLimiter;
+	private final CompressionCodec regionCompression;
+	private final CompressionCodec bigFileCompression;
+	private final CompressionCodec smallFileCompression;
+	private final CompressibilityDetector compressibilityDetector;
+	private final HostLease hostLease;
+	private final LocalFileTracker localFiles;
 
-	public ServerSynchronizer(AppConfig appConfig, SyncClient syncClient) {
+	public ServerSynchronizer(AppConfig appConfig, SyncClient syncClient, HashCache hashCache, RequestCost requestCost) {
 		this.appConfig = appConfig;
 		this.syncClient = syncClient;
+		this.hashCache = hashCache;
+		this.requestCost = requestCost;
+		backups = new BackupSnapshots(appConfig.getBackupSnapshotsPath(), appConfig.getBaseServerPath(),
+				appConfig.getBackupKeepSnapshots(), appConfig.getBackupKeepDays());
+		compressionExecutor = Executors.newFixedThreadPool(appConfig.getCompressionThreadCount(), AsyncUtil.lowPriorityThreads());
+		diskReadLimiter = new DiskReadLimiter(appConfig.getConcurrentDiskReads());
+		regionCompression = CompressionCodecs.parse(appConfig.getRegionCompression());
+		bigFileCompression = CompressionCodecs.parse(appConfig.getBigFileCompression());
+		smallFileCompression = CompressionCodecs.parse(appConfig.getSmallFileCompression());
+		compressibilityDetector = new CompressibilityDetector(appConfig.getCompressionMinGain());
+		hostLease = new HostLease(syncClient, appConfig.getHostLeaseSeconds());
+		syncClient.setPublishGuard(hostLease);
+		localFiles = new LocalFileTracker(appConfig.getBaseServerPath(), IGNORE_FILES);
 	}
 
 	private static List<Path> pathToFileList(Path path) throws IOException {
@@ -107,9 +151,9 @@ public class ServerSynchronizer {
 		}
 	}
 
-	private static boolean isSmallFile(Path file) {
+	private static boolean isSmallFile(Path file, long threshold) {
 		try {
-			return BinaryByteUnit.BYTES.toKibibytes(Files.size(file)) < SMALL_FILE_THRESHOLD_KB;
+			return Files.size(file) < threshold;
 		} catch (IOException e) {
 			LOGGER.warn("Error while calculating file size: {}", e.getMessage());
 			LogUtil.stacktrace(LOGGER, e);
@@ -119,74 +163,274 @@ public class ServerSynchronizer {
 
 	private static List<Path> filterForBigFiles(Collection<Path> localServerFiles) {
 		return localServerFiles.stream()
-				.filter(not(ServerSynchronizer::isSmallFile))
+				.filter(file -> !isSmallFile(file, LEGACY_SMALL_FILE_THRESHOLD))
 				.collect(Collectors.toList());
 	}
 
 	private static List<Path> filterForSmallFiles(Collection<Path> localServerFiles) {
 		return localServerFiles.stream()
-				.filter(ServerSynchronizer::isSmallFile)
+				.filter(file -> isSmallFile(file, LEGACY_SMALL_FILE_THRESHOLD))
 				.collect(Collectors.toList());
 	}
 
-	private void extractFile(Path file) {
-		LOGGER.debug("Extracting file: {}", file);
-		Path relativePath = appConfig.getSyncPath().relativize(file);
-		Path parentBaseDir = appConfig.getBaseServerPath().resolve(relativePath).getParent();
-		ZipUtil.unpack(file.toFile(), parentBaseDir.toFile());
-		LOGGER.debug("Extract finished");
+	/**
+	 * Regions are never bundled, so their changed chunks can still be uploaded as a patch.
+	 */
+	private static boolean isBundled(Path file, long smallFileThreshold) {
+		return !RegionFile.isRegionFile(file) && isSmallFile(file, smallFileThreshold);
 	}
 
-	public Optional<String> getServerIp() throws ExecutionException {
-		String serverIp = AsyncUtil.getResult(syncClient.retrieveFileContents(SERVER_IP_FILE));
-
-		return StringUtils.isEmpty(serverIp) ? Optional.empty() : Optional.of(serverIp);
+	public HostLease getHostLease() {
+		return hostLease;
 	}
 
-	public void setServerIp(String ip) throws IOException, ExecutionException {
-		LOGGER.info("Publishing server IP {}", ip);
-		AsyncUtil.getResult(syncClient.setFileContents(SERVER_IP_FILE, ip));
+	/**
+	 * While the local server files are tracked, uploads only look at the files that changed since the last upload.
+	 */
+	public void startTrackingLocalFiles() throws IOException {
+		localFiles.start();
 	}
 
-	public void deleteServerIp() throws IOException, ExecutionException {
-		LOGGER.info("Depublishing server IP");
-		AsyncUtil.getResult(syncClient.deleteFile(SERVER_IP_FILE));
+	public void stopTrackingLocalFiles() {
+		localFiles.stop();
 	}
 
+	/**
+	 * Downloads the last published generation of the server files. An upload that is still in progress is not published yet, so it
+	 * does not have to be waited for.
+	 * <p>
+	 * The manifest is read once and used for everything, so the files are all taken from the same generation even if another one is
+	 * published during the download.
+	 */
 	public void retrieveFiles() throws ExecutionException, IOException {
-		while (isUploadInProgress()) {
-			LOGGER.info("Someone is still uploading the server files. Waiting for completion...");
-			AsyncUtil.threadSleep(SECONDS_10);
-		}
-
 		backupCurrentFiles();
 
-		Set<String> serverFiles = searchOnlineServerFiles();
+		SyncManifest manifest = appConfig.isDedupStorage() ? new SyncManifest() : AsyncUtil.getResult(syncClient.retrieveManifest());
+		Set<String> serverFiles = searchOnlineServerFiles(manifest);
 
-		if (!serverFiles.isEmpty()) {
-			deleteLocalServerFiles();
+		if (!serverFiles.isEmpty() && appConfig.isDedupStorage()) {
+			deleteLocalFilesMissingOnServer(serverFiles);
 
-			List<Path> downloadedFiles = downloadFiles(serverFiles);
+			downloadFiles(serverFiles, manifest);
+		} else if (!serverFiles.isEmpty()) {
+			Map<Path, RegionPatch> regionPatches = new ConcurrentHashMap<>();
+			if (appConfig.isDownloadStreaming()) {
+				List<String> fileDeltas = new ArrayList<>();
+				Set<String> extractedBases = ConcurrentHashMap.newKeySet();
+				downloadStreams(createStreamedDownloads(serverFiles, manifest, regionPatches, fileDeltas, extractedBases), manifest);
+				applyStreamedFileDeltas(fileDeltas, manifest, extractedBases);
+			} else {
+				Map<String, List<Path>> localFilesByArchive = groupLocalFilesByArchive(manifest);
+				List<Path> downloadedFiles =
+						downloadFiles(reconcileLocalFiles(serverFiles, manifest, localFilesByArchive), manifest);
 
-			extractDownloadedServerFiles(downloadedFiles);
+				extractDownloadedServerFiles(downloadedFiles, manifest, localFilesByArchive, regionPatches);
+			}
+			applyRegionPatches(regionPatches);
 		}
 	}
 
-	private void extractDownloadedServerFiles(Iterable<Path> downloadedFiles) {
+	private void extractDownloadedServerFiles(Iterable<Path> downloadedFiles, SyncManifest manifest,
+			Map<String, List<Path>> localFilesByArchive, Map<Path, RegionPatch> regionPatches) throws IOException {
 		LOGGER.info("Extracting server files...");
-		downloadedFiles.forEach(rethrow(this::extractFile));
+		List<String> fileDeltas = new ArrayList<>();
+		for (Path downloadedFile : downloadedFiles) {
+			String archive = toSyncRelativePath(downloadedFile);
+			if (isRegionPatch(archive)) {
+				if (getRegionBaseEntry(manifest, getRegionBasePath(archive)).isPresent()) {
+					try (InputStream in = Files.newInputStream(downloadedFile)) {
+						regionPatches.put(getRegionFile(archive), RegionPatch.read(in));
+					}
+				}
+			} else if (!isFileDeltaPart(archive)) {
+				try (InputStream in = Files.newInputStream(downloadedFile)) {
+					extractArchive(archive, localFilesByArchive.getOrDefault(archive, Collections.emptyList()), in);
+				}
+				if (getDeltaBaseEntry(manifest, archive).isPresent()) {
+					fileDeltas.add(archive);
+				}
+			}
+		}
+		for (String basePath : fileDeltas) {
+			applyFileDelta(basePath, manifest, true);
+		}
 		LOGGER.info("Server files extracted.");
 	}
 
-	private void deleteLocalServerFiles() throws IOException {
-		LOGGER.info("Deleting previous data...");
-		findLocalServerFiles().forEach(ServerSynchronizer::deleteFile);
-		LOGGER.info("Deleted previous data.");
+	/**
+	 * Rebuilds the files from their deltas. Files whose local copy does not contain all blocks the delta needs are downloaded
+	 * completely and rebuilt from their base.
+	 */
+	private void applyStreamedFileDeltas(Collection<String> basePaths, SyncManifest manifest, Set<String> extractedBases)
+			throws IOException, ExecutionException {
+		if (basePaths.isEmpty()) {
+			return;
+		}
+		LOGGER.info("Rebuilding {} files from their deltas...", basePaths.size());
+		List<String> missingBases = new ArrayList<>();
+		for (String basePath : basePaths) {
+			if (!applyFileDelta(basePath, manifest, extractedBases.contains(basePath))) {
+				missingBases.add(basePath);
+			}
+		}
+		if (!missingBases.isEmpty()) {
+			LOGGER.info("{} local files are too different from their server version, downloading them completely.", missingBases.size());
+			downloadStreams(missingBases.stream()
+					.map(basePath -> createArchiveDownload(basePath, Collections.singletonList(getDeltaTargetFile(basePath))))
+					.collect(Collectors.toList()), manifest);
+			for (String basePath : missingBases) {
+				applyFileDelta(basePath, manifest, true);
+			}
+		}
+		for (String basePath : basePaths) {
+			deleteFile(appConfig.getSyncPath().resolve(getSignaturePath(basePath)));
+			deleteFile(appConfig.getSyncPath().resolve(getDeltaPath(basePath)));
+		}
+		LOGGER.info("Files rebuilt.");
+	}
+
+	/**
+	 * Rebuilds the file from the delta and signature in the sync directory. The blocks are taken from the local file, which is either
+	 * the base itself or a different version that is searched for the blocks.
+	 *
+	 * @return false if the local file does not contain every block the delta needs
+	 */
+	private boolean applyFileDelta(String basePath, SyncManifest manifest, boolean baseExtracted) throws IOException {
+		ManifestEntry base = manifest.getEntry(basePath).orElseThrow(() -> new IOException("No base for delta of " + basePath));
+		Path file = getDeltaTargetFile(basePath);
+		Path deltaFile = appConfig.getSyncPath().resolve(getDeltaPath(basePath));
+		if (!Files.exists(file)) {
+			return false;
+		}
+
+		Map<Integer, Long> blockOffsets = null;
+		if (!baseExtracted && !base.hasSourceHash(hashCache.getHash(file))) {
+			BlockSignature signature;
+			try (InputStream in = Files.newInputStream(appConfig.getSyncPath().resolve(getSignaturePath(basePath)))) {
+				signature = BlockSignature.read(in);
+			}
+			Set<Integer> neededBlocks = FileDelta.readReferencedBlocks(deltaFile);
+			blockOffsets = signature.locateBlocks(file, neededBlocks);
+			if (!blockOffsets.keySet().containsAll(neededBlocks)) {
+				LOGGER.debug("{} of {} needed blocks found in {}", blockOffsets.size(), neededBlocks.size(), file);
+				return false;
+			}
+		}
+
+		LOGGER.debug("Rebuilding {} from its delta", file);
+		Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+		MessageDigest md5 = DigestUtils.getMd5Digest();
+		try (FileChannel localFile = FileChannel.open(file);
+				OutputStream out = new DigestOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)), md5)) {
+			FileDelta.apply(deltaFile,
+					(blockOffsets == null) ? FileDelta.fromBase(localFile) : FileDelta.fromLocatedBlocks(localFile, blockOffsets), out);
+		}
+		byte[] expectedSourceHash = manifest.getEntry(getDeltaPath(basePath)).map(ManifestEntry::getSourceHash).orElse(new byte[0]);
+		if (!Arrays.equals(getFileDeltaSourceHash(base.getSourceHash(), md5.digest()), expectedSourceHash)) {
+			Files.delete(tempFile);
+			throw new IOException("Rebuilt file " + file + " does not match the server version");
+		}
+		Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return true;
+	}
+
+	private void applyRegionPatches(Map<Path, RegionPatch> regionPatches) throws IOException {
+		if (regionPatches.isEmpty()) {
+			return;
+		}
+		LOGGER.info("Applying changed chunks to {} region files...", regionPatches.size());
+		for (Map.Entry<Path, RegionPatch> regionPatch : regionPatches.entrySet()) {
+			LOGGER.debug("Applying {} changed chunks to {}", regionPatch.getValue().getTimestamps().size(), regionPatch.getKey());
+			regionPatch.getValue().applyTo(regionPatch.getKey());
+		}
+		LOGGER.info("Changed chunks applied.");
+	}
+
+	private void deleteLocalFilesMissingOnServer(Collection<String> serverFiles) throws IOException {
+		findLocalServerFiles().stream()
+				.filter(file -> !serverFiles.contains(toBaseRelativePath(file).replace('\\', '/')))
+				.forEach(ServerSynchronizer::deleteFile);
+	}
+
+	/**
+	 * Deletes the local files whose archive no longer exists on the server and compares the remaining ones with the manifest.
+	 *
+	 * @return the server files that have to be downloaded because the local files differ from them
+	 */
+	private List<String> reconcileLocalFiles(Collection<String> serverFiles, SyncManifest manifest,
+			Map<String, List<Path>> localFilesByArchive) throws IOException {
+		Map<String, String> serverFilesByArchive = serverFiles.stream()
+				.collect(Collectors.toMap(serverFile -> toSyncRelativePath(appConfig.getBaseServerPath().resolve(serverFile)),
+						serverFile -> serverFile));
+		serverFilesByArchive.keySet().removeIf(archive -> !isSyncedArchive(archive, manifest));
+		deleteFilesOfRemovedArchives(serverFilesByArchive.keySet(), localFilesByArchive);
+
+		List<String> outdatedServerFiles = new ArrayList<>();
+		for (Map.Entry<String, String> serverFile : serverFilesByArchive.entrySet()) {
+			if (isArchiveUpToDate(serverFile.getKey(), manifest, localFilesByArchive)) {
+				LOGGER.debug("Local files of {} unchanged, skipping download.", serverFile.getKey());
+			} else {
+				outdatedServerFiles.add(serverFile.getValue());
+			}
+		}
+		LOGGER.info("{} of {} server files differ from the local files.", outdatedServerFiles.size(), serverFiles.size());
+		return outdatedServerFiles;
 	}
 
-	private Set<String> searchOnlineServerFiles() throws ExecutionException {
+	private Map<String, List<Path>> groupLocalFilesByArchive(SyncManifest manifest) throws IOException {
+		Map<String, String> bundleMembership = SmallFileBundles.getBundleMembership(manifest);
+		return findLocalServerFiles().stream()
+				.collect(Collectors.groupingBy(localFile -> getArchivePath(localFile, bundleMembership)));
+	}
+
+	/**
+	 * Archives that are not in the manifest are left over from an earlier save, like the single small files archive of earlier
+	 * versions, and must not be extracted.
+	 */
+	private static boolean isSyncedArchive(String archive, SyncManifest manifest) {
+		return manifest.isEmpty() || manifest.getEntry(archive).isPresent();
+	}
+
+	private static void deleteFilesOfRemovedArchives(Collection<String> archives, Map<String, List<Path>> localFilesByArchive) {
+		localFilesByArchive.forEach((archive, localFiles) -> {
+			if (!archives.contains(archive)) {
+				localFiles.forEach(ServerSynchronizer::deleteFile);
+			}
+		});
+	}
+
+	/**
+	 * Region patches and the parts of a file delta are up to date if the file they belong to is.
+	 */
+	private boolean isArchiveUpToDate(String archive, SyncManifest manifest, Map<String, List<Path>> localFilesByArchive)
+			throws IOException {
+		String basePath = archive;
+		if (isRegionPatch(archive)) {
+			basePath = getRegionBasePath(archive);
+		} else if (isFileDeltaPart(archive)) {
+			basePath = getFileDeltaBasePath(archive);
+		}
+
+		Optional<ManifestEntry> regionBase = getRegionBaseEntry(manifest, basePath);
+		if (regionBase.isPresent()) {
+			Path regionFile = getRegionFile(basePath);
+			return Files.exists(regionFile) && RegionPatch.getChangedChunks(readLocalChunkTimestamps(regionFile),
+					getRemoteChunkTimestamps(regionBase.get(), manifest)).isEmpty();
+		}
+		Optional<ManifestEntry> deltaBase = getDeltaBaseEntry(manifest, basePath);
+		if (deltaBase.isPresent()) {
+			Path file = getDeltaTargetFile(basePath);
+			byte[] localSourceHash = getFileDeltaSourceHash(deltaBase.get().getSourceHash(), hashCache.getHash(file));
+			return Files.exists(file)
+					&& manifest.getEntry(getDeltaPath(basePath)).filter(delta -> delta.hasSourceHash(localSourceHash)).isPresent();
+		}
+		byte[] localSourceHash = getArchiveSourceHash(basePath, localFilesByArchive.getOrDefault(basePath, Collections.emptyList()));
+		return manifest.getEntry(basePath).filter(entry -> entry.hasSourceHash(localSourceHash)).isPresent();
+	}
+
+	private Set<String> searchOnlineServerFiles(SyncManifest manifest) throws ExecutionException {
 		LOGGER.info("Searching for online server files...");
-		SyncActionFuture<Set<String>> serverFilesFuture = syncClient.findServerFiles();
+		SyncActionFuture<Set<String>> serverFilesFuture = syncClient.findServerFiles(manifest);
 		Set<String> serverFiles = AsyncUtil.getResult(serverFilesFuture);
 		LOGGER.info("Server files found: {}", serverFiles);
 		return serverFiles;
@@ -194,28 +438,297 @@ public class ServerSynchronizer {
 
 	private void backupCurrentFiles() throws IOException {
 		LOGGER.info("Backing up previous data...");
+		Path snapshot = backups.createSnapshot(findLocalServerFiles());
+		LOGGER.info("Backed up previous data at '{}'.", snapshot);
+	}
 
-		OnlyContentZipEntrySource[] zipEntries = findLocalServerFiles().stream()
-				.map(file -> {
-					Path relativeToBase = appConfig.getBaseServerPath().relativize(file);
-					return new OnlyContentZipEntrySource(relativeToBase.toString(), file.toFile());
-				})
-				.toArray(OnlyContentZipEntrySource[]::new);
-		Path backupZip = appConfig.getBackupPath().resolve(BACKUP_FILE_ZIP);
-		ZipUtil.pack(zipEntries, backupZip.toFile());
+	/**
+	 * Replaces the local server files with the latest backup. The current files are backed up first, so the restore can be undone by
+	 * restoring the backup before the latest one.
+	 */
+	public void restoreLatestBackup() throws IOException {
+		Optional<Path> latestSnapshot = backups.getLatestSnapshot();
+		if (!latestSnapshot.isPresent()) {
+			LOGGER.info("There is no backup to restore.");
+			return;
+		}
+
+		backupCurrentFiles();
+		LOGGER.info("Restoring backup '{}'...", latestSnapshot.get());
+		backups.restore(latestSnapshot.get(), findLocalServerFiles());
+		LOGGER.info("Backup restored.");
+	}
+
+	/**
+	 * Makes the server files of the save before the last one current again on the server and downloads them. The rolled back save
+	 * stays on the server until it is too old to be kept.
+	 */
+	public void rollBackLastSave() throws ExecutionException, IOException {
+		LOGGER.info("Rolling back the last save...");
+		Optional<String> generation = AsyncUtil.getResult(syncClient.rollBack());
+		if (!generation.isPresent()) {
+			LOGGER.info("There is no earlier save on the server to roll back to.");
+			return;
+		}
+		LOGGER.info("Rolled back the server files to generation {}.", generation.get());
+		retrieveFiles();
+	}
+
+	/**
+	 * Local files are only replaced when the archive they belong to is downloaded. Files whose archive no longer exists on the server
+	 * are deleted.
+	 */
+	private List<StreamedDownload> createStreamedDownloads(Collection<String> serverFiles, SyncManifest manifest,
+			Map<Path, RegionPatch> regionPatches, Collection<String> fileDeltas, Set<String> extractedBases) throws IOException {
+		Map<String, List<Path>> localFilesByArchive = groupLocalFilesByArchive(manifest);
+		Set<String> archives = serverFiles.stream()
+				.map(serverFile -> toSyncRelativePath(appConfig.getBaseServerPath().resolve(serverFile)))
+				.filter(archive -> isSyncedArchive(archive, manifest))
+				.collect(Collectors.toSet());
+		deleteFilesOfRemovedArchives(archives, localFilesByArchive);
+
+		List<StreamedDownload> downloads = new ArrayList<>();
+		for (String archive : archives) {
+			List<Path> localFiles = localFilesByArchive.getOrDefault(archive, Collections.emptyList());
+			Optional<ManifestEntry> regionBase = getRegionBaseEntry(manifest, archive);
+			Optional<ManifestEntry> deltaBase = getDeltaBaseEntry(manifest, archive);
+			if (regionBase.isPresent()) {
+				downloads.addAll(createRegionDownloads(regionBase.get(), localFiles, manifest, regionPatches));
+			} else if (deltaBase.isPresent()) {
+				downloads.addAll(createDeltaDownloads(deltaBase.get(), localFiles, manifest, fileDeltas, extractedBases));
+			} else if (!isRegionPatch(archive) && !isFileDeltaPart(archive)) {
+				downloads.add(createArchiveDownload(archive, localFiles));
+			}
+		}
+		return downloads;
+	}
+
+	private StreamedDownload createArchiveDownload(String archive, List<Path> localFiles) {
+		return new StreamedDownload(archive, () -> getArchiveSourceHash(archive, localFiles),
+				in -> extractArchive(archive, localFiles, in));
+	}
+
+	/**
+	 * Compares the chunk timestamps of the local region with the ones on the server. If all changed chunks are in the patch, only the
+	 * patch is downloaded, otherwise the base is extracted first. The patches are applied after all downloads are finished.
+	 */
+	private List<StreamedDownload> createRegionDownloads(ManifestEntry base, List<Path> localFiles, SyncManifest manifest,
+			Map<Path, RegionPatch> regionPatches) {
+		String patchPath = getRegionPatchPath(base.getPath());
+		Optional<ManifestEntry> patch = manifest.getEntry(patchPath);
+		Map<Integer, Integer> patchTimestamps = patch.map(ManifestEntry::getChunkTimestamps).orElse(Collections.emptyMap());
+		Map<Integer, Integer> remoteTimestamps = getRemoteChunkTimestamps(base, manifest);
+
+		Path regionFile = getRegionFile(base.getPath());
+		Set<Integer> neededChunks = RegionPatch.getChangedChunks(readLocalChunkTimestamps(regionFile), remoteTimestamps).keySet();
+		if (neededChunks.isEmpty()) {
+			LOGGER.debug("Region {} unchanged, skipping download.", regionFile);
+			return Collections.emptyList();
+		}
+
+		List<StreamedDownload> downloads = new ArrayList<>();
+		if (!patch.isPresent() || !patchTimestamps.keySet().containsAll(neededChunks)) {
+			downloads.add(createArchiveDownload(base.getPath(), localFiles));
+		}
+		if (patch.isPresent()) {
+			downloads.add(new StreamedDownload(patchPath, () -> new byte[0],
+					in -> regionPatches.put(regionFile, RegionPatch.read(in))));
+		}
+		return downloads;
+	}
+
+	/**
+	 * Downloads the signature and delta of a file that differs from the server version. The base is only downloaded if there is no
+	 * local file to take the blocks from, the deltas are applied after all downloads are finished.
+	 */
+	private List<StreamedDownload> createDeltaDownloads(ManifestEntry base, List<Path> localFiles, SyncManifest manifest,
+			Collection<String> fileDeltas, Set<String> extractedBases) throws IOException {
+		Path file = getDeltaTargetFile(base.getPath());
+		String deltaPath = getDeltaPath(base.getPath());
+		if (Files.exists(file)) {
+			byte[] localSourceHash = getFileDeltaSourceHash(base.getSourceHash(), hashCache.getHash(file));
+			if (manifest.getEntry(deltaPath).filter(delta -> delta.hasSourceHash(localSourceHash)).isPresent()) {
+				LOGGER.debug("File {} unchanged, skipping download.", file);
+				return Collections.emptyList();
+			}
+		}
+
+		fileDeltas.add(base.getPath());
+		List<StreamedDownload> downloads = new ArrayList<>();
+		downloads.add(createSyncFileDownload(getSignaturePath(base.getPath())));
+		downloads.add(createSyncFileDownload(deltaPath));
+		if (!Files.exists(file)) {
+			downloads.add(new StreamedDownload(base.getPath(), () -> new byte[0], in -> {
+				extractArchive(base.getPath(), localFiles, in);
+				extractedBases.add(base.getPath());
+			}));
+		}
+		return downloads;
+	}
+
+	private StreamedDownload createSyncFileDownload(String path) {
+		Path syncFile = appConfig.getSyncPath().resolve(path);
+		return new StreamedDownload(path, () -> new byte[0], in -> {
+			Files.createDirectories(syncFile.getParent());
+			Files.copy(in, syncFile, StandardCopyOption.REPLACE_EXISTING);
+		});
+	}
+
+	private static Map<Integer, Integer> getRemoteChunkTimestamps(ManifestEntry base, SyncManifest manifest) {
+		Map<Integer, Integer> patchTimestamps = manifest.getEntry(getRegionPatchPath(base.getPath()))
+				.map(ManifestEntry::getChunkTimestamps)
+				.orElse(Collections.emptyMap());
+		return RegionPatch.applyTimestamps(base.getChunkTimestamps(), patchTimestamps);
+	}
+
+	private static Map<Integer, Integer> readLocalChunkTimestamps(Path regionFile) {
+		if (!Files.exists(regionFile)) {
+			return Collections.emptyMap();
+		}
+		try {
+			return RegionFile.readChunkTimestamps(regionFile);
+		} catch (IOException e) {
+			LOGGER.warn("Could not read local region {}, downloading it completely: {}", regionFile, e.getMessage());
+			LogUtil.stacktrace(LOGGER, e);
+			return Collections.emptyMap();
+		}
+	}
+
+	private static Optional<ManifestEntry> getRegionBaseEntry(SyncManifest manifest, String archive) {
+		return manifest.getEntry(archive).filter(ManifestEntry::hasChunkTimestamps);
+	}
+
+	/**
+	 * @return the base of a file that is synchronized as signature and delta, if the archive is one
+	 */
+	private static Optional<ManifestEntry> getDeltaBaseEntry(SyncManifest manifest, String archive) {
+		return manifest.getEntry(archive)
+				.filter(base -> manifest.getEntry(getSignaturePath(archive)).isPresent())
+				.filter(base -> manifest.getEntry(getDeltaPath(archive)).isPresent());
+	}
+
+	private static boolean isFileDeltaPart(String archive) {
+		return archive.endsWith(BlockSignature.SIGNATURE_EXTENSION) || archive.endsWith(FileDelta.DELTA_EXTENSION);
+	}
+
+	private static String getSignaturePath(String basePath) {
+		return StringUtils.removeEnd(basePath, ZIP_EXTENSION) + BlockSignature.SIGNATURE_EXTENSION;
+	}
+
+	private static String getDeltaPath(String basePath) {
+		return StringUtils.removeEnd(basePath, ZIP_EXTENSION) + FileDelta.DELTA_EXTENSION;
+	}
+
+	private static String getFileDeltaBasePath(String deltaPartPath) {
+		String path = StringUtils.removeEnd(deltaPartPath, BlockSignature.SIGNATURE_EXTENSION);
+		return StringUtils.removeEnd(path, FileDelta.DELTA_EXTENSION) + ZIP_EXTENSION;
+	}
+
+	private Path getDeltaTargetFile(String basePath) {
+		return appConfig.getBaseServerPath().resolve(StringUtils.removeEnd(basePath, ZIP_EXTENSION));
+	}
+
+	private static boolean isRawRegion(Path file) {
+		String fileName = file.getFileName().toString();
+		return fileName.endsWith(RawRegion.RAW_EXTENSION)
+				&& RegionFile.isRegionFile(file.resolveSibling(StringUtils.removeEnd(fileName, RawRegion.RAW_EXTENSION)));
+	}
+
+	private static boolean isRegionPatch(String archive) {
+		return archive.endsWith(RegionPatch.PATCH_EXTENSION);
+	}
 
-		LOGGER.info("Backed up previous data at '{}'.", backupZip);
+	private static String getRegionPatchPath(String basePath) {
+		return StringUtils.removeEnd(basePath, ZIP_EXTENSION) + RegionPatch.PATCH_EXTENSION;
 	}
 
-	boolean isUploadInProgress() throws ExecutionException {
-		Future<String> content = syncClient.retrieveFileContents(SAVE_IN_PROGRESS_FILE_NAME);
-		return Boolean.parseBoolean(AsyncUtil.getResult(content));
+	private static String getRegionBasePath(String patchPath) {
+		return StringUtils.removeEnd(patchPath, RegionPatch.PATCH_EXTENSION) + ZIP_EXTENSION;
 	}
 
-	private List<Path> downloadFiles(Collection<String> fileNames) throws ExecutionException {
+	private Path getRegionFile(String archive) {
+		String regionPath = isRegionPatch(archive)
+				? StringUtils.removeEnd(archive, RegionPatch.PATCH_EXTENSION)
+				: StringUtils.removeEnd(archive, ZIP_EXTENSION);
+		return appConfig.getBaseServerPath().resolve(regionPath);
+	}
+
+	/**
+	 * @param bundleMembership the bundle of every bundled file, empty if the small files are in the single archive of earlier versions
+	 */
+	private String getArchivePath(Path localFile, Map<String, String> bundleMembership) {
+		String bundle = bundleMembership.get(toBaseRelativePath(localFile).replace('\\', '/'));
+		if (bundle != null) {
+			return bundle;
+		}
+		boolean inSmallFilesZip = bundleMembership.isEmpty() && isSmallFile(localFile, LEGACY_SMALL_FILE_THRESHOLD);
+		return toSyncRelativePath(inSmallFilesZip ? appConfig.getSyncPath().resolve(SMALL_FILES_ZIP) : getZipFile(localFile));
+	}
+
+	private boolean isSmallFilesArchive(String archive) {
+		return SmallFileBundles.isBundle(archive) || archive.equals(toSyncRelativePath(appConfig.getSyncPath().resolve(SMALL_FILES_ZIP)));
+	}
+
+	private byte[] getArchiveSourceHash(String archive, List<Path> localFiles) throws IOException {
+		if (isSmallFilesArchive(archive)) {
+			return getSmallFilesSourceHash(sortSmallFiles(localFiles));
+		}
+		return (localFiles.size() == 1) ? hashCache.getHash(localFiles.get(0)) : new byte[0];
+	}
+
+	/**
+	 * Extracts the archive into the sync directory first and then moves every file into place, so the local files are never
+	 * partially written. Raw regions are compressed back into region files. Local files of the archive that are not in it anymore
+	 * are deleted.
+	 */
+	private void extractArchive(String archive, Collection<Path> localFiles, InputStream in) throws IOException {
+		LOGGER.debug("Extracting archive: {}", archive);
+		Path extractDir = appConfig.getSyncPath().resolve(EXTRACT_DIRECTORY).resolve(archive);
+		deleteFile(extractDir);
+		Files.createDirectories(extractDir);
+		try {
+			ServerArchive.unpack(in, extractDir.toFile());
+		} catch (IOException | RuntimeException e) {
+			// a failed download is retried, which must not find the partially extracted files
+			deleteFile(extractDir);
+			throw e;
+		}
+
+		// small files are stored with their path relative to the base server path, big files only with their name
+		Path parentBaseDir = isSmallFilesArchive(archive)
+				? appConfig.getBaseServerPath()
+				: appConfig.getBaseServerPath().resolve(archive).getParent();
+		Set<Path> extractedFiles = new HashSet<>();
+		for (Path file : pathToFileList(extractDir)) {
+			Path target = parentBaseDir.resolve(extractDir.relativize(file).toString());
+			Files.createDirectories(target.getParent());
+			if (isRawRegion(target)) {
+				target = target.resolveSibling(StringUtils.removeEnd(target.getFileName().toString(), RawRegion.RAW_EXTENSION));
+				RawRegion.restore(file, target);
+			} else {
+				Files.move(file, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			extractedFiles.add(target);
+		}
+		localFiles.stream()
+				.filter(localFile -> !extractedFiles.contains(localFile))
+				.forEach(ServerSynchronizer::deleteFile);
+		deleteFile(extractDir);
+		LOGGER.debug("Extract finished");
+	}
+
+	private void downloadStreams(Collection<StreamedDownload> downloads, SyncManifest manifest) throws ExecutionException {
 		LOGGER.info("Downloading new server files...");
+		SyncActionFuture<Void> future = syncClient.downloadStreams(downloads, manifest);
+		new ProgressLogger(future).logProgress();
+		AsyncUtil.getResult(future);
+		LOGGER.info("Downloaded and extracted new server files.");
+	}
 
-		SyncActionFuture<List<Path>> downloadedFileResult = syncClient.downloadFiles(fileNames);
+	private List<Path> downloadFiles(Collection<String> fileNames, SyncManifest manifest) throws ExecutionException {
+		LOGGER.info("Downloading new server files...");
+
+		SyncActionFuture<List<Path>> downloadedFileResult = syncClient.downloadFiles(fileNames, manifest);
 		new ProgressLogger(downloadedFileResult).logProgress();
 		List<Path> newServerFiles = AsyncUtil.getResult(downloadedFileResult);
 
@@ -223,77 +736,496 @@ public class ServerSynchronizer {
 		return newServerFiles;
 	}
 
+	/**
+	 * Uploads the server files into a new generation, which is only published once every file is uploaded.
+	 */
 	public void saveFiles() throws IOException, ExecutionException {
-		setUploadInProgressFlag();
-
-		List<Path> localServerFiles = findLocalServerFiles();
-
-		List<Path> filesToUpload = zipServerFiles(localServerFiles);
+		Optional<Set<Path>> changedFiles = localFiles.isTracking() ? localFiles.takeChangedFiles() : Optional.empty();
+		List<Path> localServerFiles = localFiles.isTracking() ? localFiles.getFiles() : findLocalServerFiles();
 
-		uploadFiles(filesToUpload);
+		compressibilityDetector.reset();
+		try {
+			if (appConfig.isDedupStorage()) {
+				uploadFiles(localServerFiles);
+			} else if (appConfig.isUploadStreaming()) {
+				SyncManifest manifest = AsyncUtil.getResult(syncClient.retrieveManifest());
+				List<String> keptPaths = new ArrayList<>();
+				uploadStreams(createStreamedUploads(localServerFiles, changedFiles, manifest, keptPaths), keptPaths);
+			} else {
+				List<Path> filesToUpload = zipServerFiles(localServerFiles);
 
-		removeUploadInProgressFlag();
+				uploadFiles(filesToUpload);
+			}
+		} catch (IOException | ExecutionException | RuntimeException e) {
+			localFiles.markAllChanged();
+			throw e;
+		}
 
+		LOGGER.info("Compression: {}", compressibilityDetector);
 		LOGGER.info("All server files synchronized!");
 	}
 
-	public void removeUploadInProgressFlag() throws ExecutionException {
-		AsyncUtil.getResult(syncClient.setFileContents(SAVE_IN_PROGRESS_FILE_NAME, String.valueOf(false)));
-	}
-
-	private void setUploadInProgressFlag() throws ExecutionException {
-		AsyncUtil.getResult(syncClient.setFileContents(SAVE_IN_PROGRESS_FILE_NAME, String.valueOf(true)));
-	}
-
-	private List<Path> zipServerFiles(Collection<Path> localServerFiles) {
+	/**
+	 * The files are compressed in parallel by the compression threads, the small files archive together with the big files.
+	 */
+	private List<Path> zipServerFiles(Collection<Path> localServerFiles) throws ExecutionException {
 		LOGGER.info("Zipping local server files...");
+		Future<Path> smallFilesZip = compressionExecutor.submit(() -> zipSmallFiles(localServerFiles));
 		List<Path> bigFileZips = zipBigFiles(localServerFiles);
-		Path smallFilesZip = zipSmallFiles(localServerFiles);
 		List<Path> zippedServerFiles = new ArrayList<>(bigFileZips);
-		zippedServerFiles.add(smallFilesZip);
+		zippedServerFiles.add(AsyncUtil.getResult(smallFilesZip));
 		LOGGER.info("Local server files zipped.");
 		return zippedServerFiles;
 	}
 
-	private List<Path> zipBigFiles(Collection<Path> localServerFiles) {
-		List<Path> bigFiles = filterForBigFiles(localServerFiles);
-		return bigFiles.stream()
-				.map(rethrow(this::zipFile))
+	private List<Path> zipBigFiles(Collection<Path> localServerFiles) throws ExecutionException {
+		List<Future<Path>> zipResults = filterForBigFiles(localServerFiles).stream()
+				.map(bigFile -> compressionExecutor.submit(() -> zipFileIfChanged(bigFile)))
 				.collect(Collectors.toList());
+		List<Path> zips = new ArrayList<>();
+		for (Future<Path> zipResult : zipResults) {
+			zips.add(AsyncUtil.getResult(zipResult));
+		}
+		hashCache.save();
+		return zips;
 	}
 
-	private Path zipSmallFiles(Collection<Path> localServerFiles) {
+	private Path zipSmallFiles(Collection<Path> localServerFiles) throws IOException {
 		List<Path> smallFiles = filterForSmallFiles(localServerFiles);
 		OnlyContentZipEntrySource[] smallFileZipEntries = smallFiles.stream()
 				.map(smallFile -> {
 					Path relativeToBase = appConfig.getBaseServerPath().relativize(smallFile);
-					return new OnlyContentZipEntrySource(relativeToBase.toString(), smallFile.toFile());
+					return new OnlyContentZipEntrySource(relativeToBase.toString(), smallFile.toFile(), diskReadLimiter);
 				})
 				.toArray(OnlyContentZipEntrySource[]::new);
 		Path smallFilesZip = appConfig.getSyncPath().resolve(SMALL_FILES_ZIP);
-		ZipUtil.pack(smallFileZipEntries, smallFilesZip.toFile());
+		ServerArchive.pack(smallFileZipEntries, smallFileCompression, compressibilityDetector, smallFilesZip.toFile());
 		return smallFilesZip;
 	}
 
-	private Path zipFile(Path fileToZip) throws IOException {
-		LOGGER.debug("Zipping file: {}", fileToZip);
+	private CompressionCodec getCompression(Path bigFile) {
+		return RegionFile.isRegionFile(bigFile) ? regionCompression : bigFileCompression;
+	}
 
+	private Path getZipFile(Path fileToZip) {
 		Path fileRelativeToBase = appConfig.getBaseServerPath().relativize(fileToZip);
-		String fileName = fileToZip.getFileName().toString();
 		Path zipFilePath = appConfig.getSyncPath();
 		if (fileRelativeToBase.getParent() != null) {
 			zipFilePath = zipFilePath.resolve(fileRelativeToBase.getParent());
 		}
-		Files.createDirectories(zipFilePath);
-		Path zipFile = zipFilePath.resolve(fileName + ".zip");
+		return zipFilePath.resolve(fileToZip.getFileName() + ".zip");
+	}
+
+	/**
+	 * Only zips the file again if it changed since it was last zipped, according to the {@link HashCache}.
+	 */
+	private Path zipFileIfChanged(Path fileToZip) throws IOException {
+		Path zipFile = getZipFile(fileToZip);
+		if (Files.exists(zipFile) && hashCache.isUnchanged(fileToZip)) {
+			LOGGER.debug("File unchanged since last zip: {}", fileToZip);
+			return zipFile;
+		}
+
+		FileTime lastModifiedBeforeZip = Files.getLastModifiedTime(fileToZip);
+		zipFile(fileToZip, zipFile);
+		hashCache.getHash(fileToZip);
+		if (!Files.getLastModifiedTime(fileToZip).equals(lastModifiedBeforeZip)) {
+			// changed while zipping, the zip may not match the hashed content
+			hashCache.invalidate(fileToZip);
+		}
+		return zipFile;
+	}
 
-		ZipEntrySource[] filesToZip = {new OnlyContentZipEntrySource(fileName, fileToZip.toFile())};
+	private void zipFile(Path fileToZip, Path zipFile) throws IOException {
+		LOGGER.debug("Zipping file: {}", fileToZip);
 
-		ZipUtil.pack(filesToZip, zipFile.toFile());
+		Files.createDirectories(zipFile.getParent());
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(zipFile))) {
+			packBigFile(fileToZip, out);
+		}
 
 		LOGGER.debug("File zipped: {}", zipFile);
+	}
 
-		return zipFile;
+	/**
+	 * Writes the archive of a big file. Regions are archived as {@link RawRegion} if configured, unless they cannot be read.
+	 */
+	private void packBigFile(Path bigFile, OutputStream out) throws IOException {
+		CompressionCodec compression = getCompression(bigFile);
+		if (appConfig.isRawRegionCompression() && RegionFile.isRegionFile(bigFile)) {
+			Path rawFile = getZipFile(bigFile).resolveSibling(bigFile.getFileName() + RawRegion.RAW_EXTENSION);
+			try {
+				if (writeRawRegion(bigFile, rawFile)) {
+					ZipEntrySource[] zipEntries = {new OnlyContentZipEntrySource(rawFile.getFileName().toString(), rawFile.toFile(),
+							diskReadLimiter)};
+					ServerArchive.pack(zipEntries, compression, compressibilityDetector, out);
+					return;
+				}
+			} finally {
+				Files.deleteIfExists(rawFile);
+			}
+		}
+
+		ZipEntrySource[] zipEntries =
+				{new OnlyContentZipEntrySource(bigFile.getFileName().toString(), bigFile.toFile(), diskReadLimiter)};
+		ServerArchive.pack(zipEntries, compression, compressibilityDetector, out);
+	}
+
+	private static boolean writeRawRegion(Path regionFile, Path rawFile) throws IOException {
+		Files.createDirectories(rawFile.getParent());
+		try (OutputStream out = Files.newOutputStream(rawFile)) {
+			RawRegion.write(regionFile, out);
+			return true;
+		} catch (IOException e) {
+			LOGGER.warn("Could not read the chunks of region {}, uploading it as it is: {}", regionFile, e.getMessage());
+			LogUtil.stacktrace(LOGGER, e);
+			return false;
+		}
+	}
+
+	private String toSyncRelativePath(Path syncFile) {
+		return appConfig.getSyncPath().relativize(syncFile).toString().replace('\\', '/');
+	}
+
+	/**
+	 * Creates the archives of the big files like {@link #zipServerFiles(Collection)}, but they are compressed directly into the upload
+	 * instead of being written to the sync directory first. The small files are uploaded as {@link SmallFileBundles}. Which files are
+	 * small depends on the measured {@link RequestCost}.
+	 *
+	 * @param changedFiles the files changed since the last upload, empty if it is not known which files changed
+	 */
+	private List<StreamedUpload> createStreamedUploads(Collection<Path> localServerFiles, Optional<Set<Path>> changedFiles,
+			SyncManifest manifest, Collection<String> keptPaths) throws IOException {
+		long smallFileThreshold = requestCost.getSmallFileThreshold();
+		LOGGER.debug("Bundling files smaller than {} bytes, request cost: {}", smallFileThreshold, requestCost);
+
+		List<StreamedUpload> uploads = new ArrayList<>();
+		List<Path> deltaFiles = new ArrayList<>();
+		Map<String, List<Path>> filesByBundleDirectory = new TreeMap<>();
+		for (Path file : localServerFiles) {
+			if (isBundled(file, smallFileThreshold)) {
+				String bundleDirectory = SmallFileBundles.getBundleDirectory(toBaseRelativePath(file).replace('\\', '/'));
+				filesByBundleDirectory.computeIfAbsent(bundleDirectory, unused -> new ArrayList<>()).add(file);
+			} else if (changedFiles.isPresent() && !changedFiles.get().contains(file) && keepUnchangedFile(file, manifest, keptPaths)) {
+				LOGGER.debug("File unchanged since last upload: {}", file);
+			} else if (RegionFile.isRegionFile(file)) {
+				uploads.addAll(createRegionUploads(file, manifest, keptPaths));
+			} else if (Files.size(file) >= MIN_DELTA_FILE_SIZE) {
+				deltaFiles.add(file);
+			} else {
+				uploads.add(createBigFileUpload(file));
+			}
+		}
+		uploads.addAll(createDeltaUploads(deltaFiles, manifest, keptPaths));
+		Map<String, String> bundleMembership = SmallFileBundles.getBundleMembership(manifest);
+		Instant now = Instant.now();
+		for (Map.Entry<String, List<Path>> directory : filesByBundleDirectory.entrySet()) {
+			for (Map.Entry<String, List<Path>> bundle : groupIntoBundles(directory.getKey(), directory.getValue(), manifest,
+					bundleMembership, now).entrySet()) {
+				uploads.add(createSmallFilesUpload(bundle.getKey(), bundle.getValue()));
+			}
+		}
+		return uploads;
+	}
+
+	/**
+	 * Splits the small files of a directory into the bundle of recently changed files and the one of the others, as described in
+	 * {@link SmallFileBundles}. Whether the other bundle changed is decided by its source hash, which stays the same on a host that
+	 * downloaded it, even though the files have new modification times there.
+	 *
+	 * @return the files by the path of their bundle, without empty bundles
+	 */
+	private Map<String, List<Path>> groupIntoBundles(String bundleDirectory, List<Path> files, SyncManifest manifest,
+			Map<String, String> bundleMembership, Instant now) throws IOException {
+		String bundle = SmallFileBundles.getBundlePath(bundleDirectory, false);
+		String recentBundle = SmallFileBundles.getBundlePath(bundleDirectory, true);
+
+		Set<Path> previousMembers = files.stream()
+				.filter(file -> bundle.equals(bundleMembership.get(toBaseRelativePath(file).replace('\\', '/'))))
+				.collect(Collectors.toSet());
+		long previousMemberCount = bundleMembership.values().stream().filter(bundle::equals).count();
+		// before the members are hashed for the source hash, which records them as unchanged
+		Set<Path> unchangedMembers = previousMembers.stream().filter(hashCache::isUnchanged).collect(Collectors.toSet());
+		Optional<ManifestEntry> previousBundle = manifest.getEntry(bundle);
+		boolean bundleChanged = previousMembers.size() != previousMemberCount || previousBundle.isPresent()
+				&& !previousBundle.get().hasSourceHash(getSmallFilesSourceHash(sortSmallFiles(previousMembers)));
+
+		List<Path> members = new ArrayList<>();
+		List<Path> recentMembers = new ArrayList<>();
+		List<Path> staleRecentMembers = new ArrayList<>();
+		for (Path file : files) {
+			boolean recentlyChanged = SmallFileBundles.isRecentlyChanged(Files.getLastModifiedTime(file), now);
+			if (previousMembers.contains(file) && (!bundleChanged || !recentlyChanged || unchangedMembers.contains(file))) {
+				members.add(file);
+			} else {
+				recentMembers.add(file);
+				if (!recentlyChanged) {
+					staleRecentMembers.add(file);
+				}
+			}
+		}
+		if (bundleChanged || staleRecentMembers.size() * 2 > recentMembers.size()) {
+			members.addAll(staleRecentMembers);
+			recentMembers.removeAll(new HashSet<>(staleRecentMembers));
+		}
+
+		Map<String, List<Path>> bundles = new TreeMap<>();
+		if (!members.isEmpty()) {
+			bundles.put(bundle, members);
+		}
+		if (!recentMembers.isEmpty()) {
+			bundles.put(recentBundle, recentMembers);
+		}
+		return bundles;
+	}
+
+	/**
+	 * Keeps the server version of a file that did not change since the last upload, without reading the file.
+	 * <p>
+	 * The watch service reports changes asynchronously, so the last writes before the upload may not have been reported yet. A file is
+	 * only kept if its size, modification time and file key are also still the ones it was last hashed with.
+	 *
+	 * @return false if the server does not have every part of the file or the file may have changed
+	 */
+	private boolean keepUnchangedFile(Path file, SyncManifest manifest, Collection<String> keptPaths) {
+		if (!hashCache.isUnchanged(file)) {
+			return false;
+		}
+		String basePath = toSyncRelativePath(getZipFile(file));
+		List<String> paths;
+		if (RegionFile.isRegionFile(file)) {
+			paths = Arrays.asList(basePath, getRegionPatchPath(basePath));
+		} else if (manifest.getEntry(getDeltaPath(basePath)).isPresent()) {
+			paths = Arrays.asList(basePath, getSignaturePath(basePath), getDeltaPath(basePath));
+		} else {
+			paths = Collections.singletonList(basePath);
+		}
+		if (!paths.stream().allMatch(path -> manifest.getEntry(path).isPresent())) {
+			return false;
+		}
+		keptPaths.addAll(paths);
+		return true;
+	}
+
+	private StreamedUpload createBigFileUpload(Path bigFile) throws IOException {
+		return createBigFileUpload(bigFile, Collections.emptyMap());
+	}
+
+	private StreamedUpload createBigFileUpload(Path bigFile, Map<Integer, Integer> chunkTimestamps) throws IOException {
+		String path = toSyncRelativePath(getZipFile(bigFile));
+		return new StreamedUpload(path, Files.size(bigFile), () -> hashCache.getHash(bigFile),
+				fromUnchangedSources(Collections.singletonList(bigFile), out -> packBigFile(bigFile, out)), chunkTimestamps);
+	}
+
+	/**
+	 * The source hash of an upload is computed before its content is written, which reads the source files again. If a file changed
+	 * in between, the manifest would pair the old source hash with the new content, and a client with the old file would skip the
+	 * download. The upload fails instead if a source file no longer has the size and modification time it was hashed with.
+	 */
+	private StreamedUpload.ContentWriter fromUnchangedSources(Collection<Path> sourceFiles, StreamedUpload.ContentWriter writer) {
+		return out -> {
+			writer.writeTo(out);
+			for (Path sourceFile : sourceFiles) {
+				if (!hashCache.isUnchanged(sourceFile)) {
+					throw new IOException("File " + sourceFile + " changed while it was uploaded");
+				}
+			}
+		};
+	}
+
+	/**
+	 * A region is uploaded as a base, which is only replaced when most of its chunks changed, and a patch with every chunk that
+	 * changed since the base. Usually only a few chunks of a region change, so only the small patch has to be uploaded, and nothing
+	 * if the patch on the server already has the changed chunks.
+	 */
+	private List<StreamedUpload> createRegionUploads(Path regionFile, SyncManifest manifest, Collection<String> keptPaths)
+			throws IOException {
+		Map<Integer, Integer> chunkTimestamps;
+		try {
+			chunkTimestamps = RegionFile.readChunkTimestamps(regionFile);
+		} catch (IOException e) {
+			LOGGER.warn("Could not read region {}, uploading it completely: {}", regionFile, e.getMessage());
+			LogUtil.stacktrace(LOGGER, e);
+			return Collections.singletonList(createBigFileUpload(regionFile));
+		}
+
+		String basePath = toSyncRelativePath(getZipFile(regionFile));
+		String patchPath = getRegionPatchPath(basePath);
+		Optional<ManifestEntry> base = getRegionBaseEntry(manifest, basePath);
+		if (base.isPresent()) {
+			Map<Integer, Integer> baseTimestamps = base.get().getChunkTimestamps();
+			Map<Integer, Integer> changedChunks = RegionPatch.getChangedChunks(chunkTimestamps, baseTimestamps);
+			byte[] patchSourceHash = getRegionPatchSourceHash(base.get().getSourceHash(), changedChunks);
+			if (manifest.getEntry(patchPath).filter(patch -> patch.hasSourceHash(patchSourceHash)).isPresent()) {
+				LOGGER.debug("No chunks changed in {} since the last upload", regionFile);
+				keptPaths.addAll(Arrays.asList(basePath, patchPath));
+				return Collections.emptyList();
+			}
+			if (changedChunks.size() <= chunkTimestamps.size() * MAX_PATCHED_CHUNK_RATIO) {
+				LOGGER.debug("{} of {} chunks changed in {}, uploading them as patch", changedChunks.size(), chunkTimestamps.size(),
+						regionFile);
+				keptPaths.add(basePath);
+				StreamedUpload patch = new StreamedUpload(patchPath, Files.size(regionFile),
+						() -> patchSourceHash,
+						out -> createUnchangedRegionPatch(regionFile, baseTimestamps, changedChunks).write(out), changedChunks);
+				return Collections.singletonList(patch);
+			}
+		}
+
+		StreamedUpload newBase = createBigFileUpload(regionFile, chunkTimestamps);
+		StreamedUpload emptyPatch = new StreamedUpload(patchPath, 0, () -> getRegionPatchSourceHash(newBase.getSourceHash(),
+				Collections.emptyMap()), out -> new RegionPatch(Collections.emptyMap(), Collections.emptyMap()).write(out));
+		return Arrays.asList(newBase, emptyPatch);
+	}
+
+	/**
+	 * The source hash of a patch is made of the changed chunks found when the upload was planned, the patch must contain exactly
+	 * those.
+	 */
+	private static RegionPatch createUnchangedRegionPatch(Path regionFile, Map<Integer, Integer> baseTimestamps,
+			Map<Integer, Integer> changedChunks) throws IOException {
+		RegionPatch patch = RegionPatch.create(regionFile, baseTimestamps);
+		if (!patch.getTimestamps().equals(changedChunks)) {
+			throw new IOException("Region " + regionFile + " changed while it was uploaded");
+		}
+		return patch;
+	}
+
+	/**
+	 * Large files are uploaded as a base with its block signature, which are only replaced when the file changed too much, and a
+	 * delta from the base to the current content. The delta is computed against the signature on the server, so its size depends on
+	 * how much of the file changed and not on the size of the file.
+	 */
+	private List<StreamedUpload> createDeltaUploads(Collection<Path> files, SyncManifest manifest, Collection<String> keptPaths)
+			throws IOException {
+		List<StreamedUpload> uploads = new ArrayList<>();
+		Map<Path, ManifestEntry> changedFiles = new HashMap<>();
+		for (Path file : files) {
+			String basePath = toSyncRelativePath(getZipFile(file));
+			Optional<ManifestEntry> base = getDeltaBaseEntry(manifest, basePath);
+			if (!base.isPresent()) {
+				uploads.addAll(createDeltaBaseUploads(file));
+				continue;
+			}
+			byte[] deltaSourceHash = getFileDeltaSourceHash(base.get().getSourceHash(), hashCache.getHash(file));
+			if (manifest.getEntry(getDeltaPath(basePath)).filter(delta -> delta.hasSourceHash(deltaSourceHash)).isPresent()) {
+				LOGGER.debug("File unchanged since last upload: {}", file);
+				keptPaths.addAll(Arrays.asList(basePath, getSignaturePath(basePath), getDeltaPath(basePath)));
+			} else {
+				changedFiles.put(file, base.get());
+			}
+		}
+
+		Map<String, BlockSignature> signatures = retrieveSignatures(changedFiles.values(), manifest);
+		for (Map.Entry<Path, ManifestEntry> changedFile : changedFiles.entrySet()) {
+			Path file = changedFile.getKey();
+			ManifestEntry base = changedFile.getValue();
+			BlockSignature signature = signatures.get(base.getPath());
+			if (signature != null) {
+				long deltaSize = FileDelta.getSize(file, signature);
+				if (deltaSize <= Files.size(file) * MAX_DELTA_RATIO) {
+					LOGGER.debug("Delta of {} is {} bytes, uploading it instead of the file", file, deltaSize);
+					keptPaths.addAll(Arrays.asList(base.getPath(), getSignaturePath(base.getPath())));
+					byte[] fileHash = hashCache.getHash(file);
+					uploads.add(new StreamedUpload(getDeltaPath(base.getPath()), Files.size(file),
+							() -> getFileDeltaSourceHash(base.getSourceHash(), fileHash),
+							fromUnchangedSources(Collections.singletonList(file), out -> FileDelta.write(file, signature, out))));
+					continue;
+				}
+			}
+			uploads.addAll(createDeltaBaseUploads(file));
+		}
+		return uploads;
+	}
+
+	private List<StreamedUpload> createDeltaBaseUploads(Path file) throws IOException {
+		StreamedUpload newBase = createBigFileUpload(file);
+		List<Path> sourceFiles = Collections.singletonList(file);
+		StreamedUpload signature = new StreamedUpload(getSignaturePath(newBase.getPath()), Files.size(file), newBase::getSourceHash,
+				fromUnchangedSources(sourceFiles, out -> BlockSignature.compute(file).write(out)));
+		StreamedUpload delta = new StreamedUpload(getDeltaPath(newBase.getPath()), Files.size(file),
+				() -> getFileDeltaSourceHash(newBase.getSourceHash(), newBase.getSourceHash()),
+				fromUnchangedSources(sourceFiles, out -> FileDelta.write(file, BlockSignature.compute(file), out)));
+		return Arrays.asList(newBase, signature, delta);
+	}
+
+	/**
+	 * @return the signatures of the given bases, missing for those that could not be downloaded
+	 */
+	private Map<String, BlockSignature> retrieveSignatures(Collection<ManifestEntry> bases, SyncManifest manifest) {
+		Map<String, BlockSignature> signatures = new ConcurrentHashMap<>();
+		if (bases.isEmpty()) {
+			return signatures;
+		}
+		List<StreamedDownload> downloads = bases.stream()
+				.map(base -> new StreamedDownload(getSignaturePath(base.getPath()), () -> new byte[0],
+						in -> signatures.put(base.getPath(), BlockSignature.read(in))))
+				.collect(Collectors.toList());
+		try {
+			AsyncUtil.getResult(syncClient.downloadStreams(downloads, manifest));
+		} catch (ExecutionException e) {
+			LOGGER.warn("Could not download block signatures, uploading the changed files completely: {}", e.getMessage());
+			LogUtil.stacktrace(LOGGER, e);
+		}
+		return signatures;
+	}
+
+	private static byte[] getFileDeltaSourceHash(byte[] baseSourceHash, byte[] fileHash) {
+		MessageDigest sourceDigest = DigestUtils.getMd5Digest();
+		sourceDigest.update(baseSourceHash);
+		sourceDigest.update(fileHash);
+		return sourceDigest.digest();
+	}
+
+	private static byte[] getRegionPatchSourceHash(byte[] baseSourceHash, Map<Integer, Integer> changedChunks) {
+		MessageDigest sourceDigest = DigestUtils.getMd5Digest();
+		sourceDigest.update(baseSourceHash);
+		changedChunks.forEach((index, timestamp) -> sourceDigest.update(ByteBuffer.allocate(8).putInt(index).putInt(timestamp).array()));
+		return sourceDigest.digest();
+	}
+
+	private static List<Path> sortSmallFiles(Collection<Path> smallFiles) {
+		return smallFiles.stream().sorted().collect(Collectors.toList());
+	}
+
+	private byte[] getSmallFilesSourceHash(Iterable<Path> sortedSmallFiles) throws IOException {
+		MessageDigest sourceDigest = DigestUtils.getMd5Digest();
+		for (Path smallFile : sortedSmallFiles) {
+			sourceDigest.update(toBaseRelativePath(smallFile).getBytes(StandardCharsets.UTF_8));
+			sourceDigest.update(hashCache.getHash(smallFile));
+		}
+		return sourceDigest.digest();
+	}
+
+	private StreamedUpload createSmallFilesUpload(String path, Collection<Path> smallFiles) throws IOException {
+		List<Path> sortedSmallFiles = sortSmallFiles(smallFiles);
+		long sourceSize = 0;
+		for (Path smallFile : sortedSmallFiles) {
+			sourceSize += Files.size(smallFile);
+		}
+
+		ZipEntrySource[] zipEntries = sortedSmallFiles.stream()
+				.map(smallFile -> new OnlyContentZipEntrySource(toBaseRelativePath(smallFile), smallFile.toFile(), diskReadLimiter))
+				.toArray(ZipEntrySource[]::new);
+		List<String> members = sortedSmallFiles.stream()
+				.map(smallFile -> toBaseRelativePath(smallFile).replace('\\', '/'))
+				.collect(Collectors.toList());
+		return new StreamedUpload(path, sourceSize, () -> getSmallFilesSourceHash(sortedSmallFiles),
+				fromUnchangedSources(sortedSmallFiles,
+						out -> ServerArchive.pack(zipEntries, smallFileCompression, compressibilityDetector, out)),
+				Collections.emptyMap(), members);
+	}
+
+	private String toBaseRelativePath(Path file) {
+		return appConfig.getBaseServerPath().relativize(file).toString();
+	}
+
+	private void uploadStreams(Collection<StreamedUpload> uploads, Collection<String> keptPaths) throws ExecutionException {
+		LOGGER.info("Uploading server files to server");
+		SyncActionFuture<Void> future = syncClient.uploadStreams(uploads, keptPaths);
+		new ProgressLogger(future).logProgress();
+		AsyncUtil.getResult(future);
+		LOGGER.info("Upload finished");
 	}
 
 	private void uploadFiles(Collection<Path> paths) throws ExecutionException {
@@ -0,0 +1,79 @@
+package name.azzurite.mcserver.sync;
+
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Groups the small files into bundles, so a changed file only causes its own bundle to be uploaded again instead of every small file.
+ * <p>
+ * Files are bundled by their directory, up to two levels deep, like {@code world/playerdata} or {@code plugins/Essentials}. Files
+ * that changed recently are bundled separately from the ones that did not change for a while, so the files of players that are not
+ * playing anymore are not uploaded again every time an active player changes. Which files are in a bundle is recorded in the
+ * manifest, so the downloading side does not need to know how the files were grouped.
+ * <p>
+ * A file stays in its bundle until it changes, then it moves to the recent bundle. Files of the recent bundle that did not change
+ * for a while only move back when the other bundle is uploaded anyway, or when they are most of the recent bundle, so files that
+ * just get older do not cause uploads of their own.
+ */
+final class SmallFileBundles {
+
+	static final String BUNDLE_DIRECTORY = "smallFilesSync";
+
+	private static final String BUNDLE_FILE_NAME = "files.zip";
+
+	private static final String RECENT_BUNDLE_FILE_NAME = "recentFiles.zip";
+
+	private static final int DIRECTORY_DEPTH = 2;
+
+	private static final Duration RECENT_CHANGE = Duration.ofDays(7);
+
+	private SmallFileBundles() {}
+
+	/**
+	 * @param baseRelativePath the path of the file relative to the base server path, with '/' as separator
+	 * @return the directory of the bundles of the file, relative to the sync directory
+	 */
+	static String getBundleDirectory(String baseRelativePath) {
+		String[] directories = baseRelativePath.split("/");
+		directories = Arrays.copyOf(directories, Math.min(directories.length - 1, DIRECTORY_DEPTH));
+
+		StringBuilder bundleDirectory = new StringBuilder(BUNDLE_DIRECTORY);
+		for (String directory : directories) {
+			bundleDirectory.append('/').append(directory);
+		}
+		return bundleDirectory.toString();
+	}
+
+	/**
+	 * @return the path of the bundle relative to the sync directory
+	 */
+	static String getBundlePath(String bundleDirectory, boolean recent) {
+		return bundleDirectory + '/' + (recent ? RECENT_BUNDLE_FILE_NAME : BUNDLE_FILE_NAME);
+	}
+
+	static boolean isRecentlyChanged(FileTime lastModified, Instant now) {
+		return lastModified.toInstant().isAfter(now.minus(RECENT_CHANGE));
+	}
+
+	static boolean isBundle(String archive) {
+		return archive.startsWith(BUNDLE_DIRECTORY + '/');
+	}
+
+	/**
+	 * @return the bundle every bundled file is in, by the path of the file relative to the base server path. Empty if the server files
+	 * were uploaded by an earlier version, which put all small files into a single archive.
+	 */
+	static Map<String, String> getBundleMembership(SyncManifest manifest) {
+		Map<String, String> bundleMembership = new HashMap<>();
+		for (ManifestEntry entry : manifest.getEntries()) {
+			if (isBundle(entry.getPath())) {
+				entry.getMembers().forEach(member -> bundleMembership.put(member, entry.getPath()));
+			}
+		}
+		return bundleMembership;
+	}
+}
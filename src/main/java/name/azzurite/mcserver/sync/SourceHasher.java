@@ -0,0 +1,12 @@
+package name.azzurite.mcserver.sync;
+
+import java.io.IOException;
+
+/**
+ * Computes the hash of the local content a synchronized file is created from.
+ */
+@FunctionalInterface
+public interface SourceHasher {
+
+	byte[] hash() throws IOException;
+}
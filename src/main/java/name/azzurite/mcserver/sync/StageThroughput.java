@@ -0,0 +1,40 @@
+package name.azzurite.mcserver.sync;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import name.azzurite.mcserver.config.Constants;
+
+/**
+ * Collects how many bytes one stage of a transfer pipeline processed and how long its workers were busy doing so. Time a worker
+ * spends waiting for the previous or next stage is not counted, so the stage with the lowest throughput is the one limiting the
+ * pipeline.
+ */
+public class StageThroughput {
+
+	private static final double BYTES_IN_MEGABYTE = 1_000_000d;
+	private static final double NANOS_IN_SECOND = 1_000_000_000d;
+
+	private final String name;
+
+	private final LongAdder bytes = new LongAdder();
+
+	private final LongAdder busyNanos = new LongAdder();
+
+	public StageThroughput(String name) {
+		this.name = name;
+	}
+
+	public void record(long processedBytes, long processingNanos) {
+		bytes.add(processedBytes);
+		busyNanos.add(Math.max(processingNanos, 0L));
+	}
+
+	@Override
+	public String toString() {
+		double megabytes = bytes.sum() / BYTES_IN_MEGABYTE;
+		double seconds = busyNanos.sum() / NANOS_IN_SECOND;
+		String perSecond = (seconds > 0) ? Constants.NUMBER_FORMAT.format(megabytes / seconds) : "-";
+		return name + ": " + Constants.NUMBER_FORMAT.format(megabytes) + "MB in " + Constants.NUMBER_FORMAT.format(seconds)
+				+ "s busy, " + perSecond + "MB/s per worker";
+	}
+}
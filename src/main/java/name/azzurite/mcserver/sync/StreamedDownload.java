@@ -0,0 +1,57 @@
+package name.azzurite.mcserver.sync;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A file that is not stored on disk after it is downloaded, but processed while it is downloaded by reading its content directly
+ * from the download stream.
+ */
+public class StreamedDownload {
+
+	private final String path;
+
+	private final SourceHasher localSourceHasher;
+
+	private final ContentReader contentReader;
+
+	private volatile byte[] localSourceHash;
+
+	/**
+	 * @param path the path of the downloaded file, relative to the sync directory
+	 * @param localSourceHasher computes the hash of the local content the file would be created from, the download is skipped if the
+	 * remote file was created from the same content
+	 * @param contentReader reads the content of the downloaded file, is called again from the start if the download fails
+	 */
+	public StreamedDownload(String path, SourceHasher localSourceHasher, ContentReader contentReader) {
+		this.path = path;
+		this.localSourceHasher = localSourceHasher;
+		this.contentReader = contentReader;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public byte[] getLocalSourceHash() throws IOException {
+		if (localSourceHash == null) {
+			localSourceHash = localSourceHasher.hash();
+		}
+		return localSourceHash.clone();
+	}
+
+	public void readFrom(InputStream in) throws IOException {
+		contentReader.readFrom(in);
+	}
+
+	@Override
+	public String toString() {
+		return path;
+	}
+
+	@FunctionalInterface
+	public interface ContentReader {
+
+		void readFrom(InputStream in) throws IOException;
+	}
+}
@@ -0,0 +1,98 @@
+package name.azzurite.mcserver.sync;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A file that is not staged on disk, but created while it is uploaded by writing its content directly into the upload stream.
+ */
+public class StreamedUpload {
+
+	private final String path;
+
+	private final long sourceSize;
+
+	private final SourceHasher sourceHasher;
+
+	private final ContentWriter contentWriter;
+
+	private final Map<Integer, Integer> chunkTimestamps;
+
+	private final List<String> members;
+
+	private volatile byte[] sourceHash;
+
+	/**
+	 * @param path the path of the uploaded file, relative to the sync directory
+	 * @param sourceSize the uncompressed size of the content, used to estimate progress and to order the uploads
+	 * @param sourceHasher computes the hash of the uncompressed content, uploads with an unchanged source hash are skipped. Only called
+	 * by the upload itself, so hashing overlaps with the other uploads.
+	 * @param contentWriter writes the content of the uploaded file, has to write the same bytes every time for the same source hash
+	 */
+	public StreamedUpload(String path, long sourceSize, SourceHasher sourceHasher, ContentWriter contentWriter) {
+		this(path, sourceSize, sourceHasher, contentWriter, Collections.emptyMap());
+	}
+
+	/**
+	 * @param chunkTimestamps for region files and region patches, the timestamps of the chunks that are written, recorded in the
+	 * manifest
+	 */
+	public StreamedUpload(String path, long sourceSize, SourceHasher sourceHasher, ContentWriter contentWriter,
+			Map<Integer, Integer> chunkTimestamps) {
+		this(path, sourceSize, sourceHasher, contentWriter, chunkTimestamps, Collections.emptyList());
+	}
+
+	/**
+	 * @param members for bundles of small files, the files in the bundle, recorded in the manifest
+	 */
+	public StreamedUpload(String path, long sourceSize, SourceHasher sourceHasher, ContentWriter contentWriter,
+			Map<Integer, Integer> chunkTimestamps, List<String> members) {
+		this.path = path;
+		this.sourceSize = sourceSize;
+		this.sourceHasher = sourceHasher;
+		this.contentWriter = contentWriter;
+		this.chunkTimestamps = chunkTimestamps;
+		this.members = members;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public long getSourceSize() {
+		return sourceSize;
+	}
+
+	public byte[] getSourceHash() throws IOException {
+		if (sourceHash == null) {
+			sourceHash = sourceHasher.hash();
+		}
+		return sourceHash.clone();
+	}
+
+	public Map<Integer, Integer> getChunkTimestamps() {
+		return chunkTimestamps;
+	}
+
+	public List<String> getMembers() {
+		return members;
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		contentWriter.writeTo(out);
+	}
+
+	@Override
+	public String toString() {
+		return path;
+	}
+
+	@FunctionalInterface
+	public interface ContentWriter {
+
+		void writeTo(OutputStream out) throws IOException;
+	}
+}
@@ -3,6 +3,7 @@ package name.azzurite.mcserver.sync;
 import java.nio.file.Path;
 import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
 import java.util.Set;
 
 public interface SyncClient {
@@ -15,9 +16,39 @@ public interface SyncClient {
 
 	SyncActionFuture<Void> uploadFiles(Collection<Path> filePaths);
 
-	SyncActionFuture<Boolean> doesFileExist(String file);
+	/**
+	 * @param keptPaths files that are already on the server and stay part of the synchronized files without being uploaded again
+	 */
+	SyncActionFuture<Void> uploadStreams(Collection<StreamedUpload> uploads, Collection<String> keptPaths);
 
-	SyncActionFuture<List<Path>> downloadFiles(Collection<String> fileNames);
+	SyncActionFuture<Boolean> doesFileExist(String file);
 
-	SyncActionFuture<Set<String>> findServerFiles();
+	/**
+	 * @param manifest the manifest the files are downloaded by, read once by the caller so every file comes from the same generation
+	 */
+	SyncActionFuture<List<Path>> downloadFiles(Collection<String> fileNames, SyncManifest manifest);
+
+	/**
+	 * @param manifest the manifest the files are downloaded by, read once by the caller so every file comes from the same generation
+	 */
+	SyncActionFuture<Void> downloadStreams(Collection<StreamedDownload> downloads, SyncManifest manifest);
+
+	/**
+	 * @param manifest the manifest of the generation to download, the files in the sync directory are listed if it is empty
+	 */
+	SyncActionFuture<Set<String>> findServerFiles(SyncManifest manifest);
+
+	SyncActionFuture<SyncManifest> retrieveManifest();
+
+	/**
+	 * Makes the generation of the server files before the current one the current one again.
+	 *
+	 * @return the generation that is current now, empty if there is no earlier one
+	 */
+	SyncActionFuture<Optional<String>> rollBack();
+
+	/**
+	 * @param publishGuard checked before every generation of the server files is published
+	 */
+	void setPublishGuard(PublishGuard publishGuard);
 }
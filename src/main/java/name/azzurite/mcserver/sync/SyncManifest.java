@@ -0,0 +1,182 @@
+package name.azzurite.mcserver.sync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+/**
+ * Describes every synchronized file with its path, size, modification time and hash.
+ * <p>
+ * The manifest is stored as a single binary file: a magic number, the format version and the number of entries, followed by the
+ * entries themselves. It is read and written as a stream, so it never has to touch the disk on its way to or from the sync server.
+ */
+public class SyncManifest {
+
+	private static final int MAGIC = 0x4D53534D; // "MSSM"
+
+	/**
+	 * Version history:
+	 * <ol>
+	 * <li>path, size, modification time and hash per entry</li>
+	 * <li>adds the hash of the uncompressed source content per entry</li>
+	 * <li>adds the chunk timestamps of region files and region patches per entry</li>
+	 * <li>adds the member files of small file bundles per entry</li>
+	 * <li>adds the generation the file was uploaded in per entry</li>
+	 * </ol>
+	 */
+	private static final int VERSION = 5;
+
+	private final Map<String, ManifestEntry> entries = new TreeMap<>();
+
+	/**
+	 * @throws ManifestFormatException if the stream is not a complete manifest of a supported version
+	 */
+	public static SyncManifest read(InputStream inputStream) throws IOException {
+		try {
+			return readEntries(new DataInputStream(new BufferedInputStream(inputStream)));
+		} catch (EOFException e) {
+			throw new ManifestFormatException("Sync manifest is truncated", e);
+		}
+	}
+
+	private static SyncManifest readEntries(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new ManifestFormatException("Not a sync manifest");
+		}
+		int version = in.readInt();
+		if (version < 1 || version > VERSION) {
+			throw new ManifestFormatException("Unsupported sync manifest version " + version);
+		}
+
+		SyncManifest manifest = new SyncManifest();
+		int entryCount = in.readInt();
+		if (entryCount < 0) {
+			throw new ManifestFormatException("Invalid sync manifest entry count " + entryCount);
+		}
+		for (int i = 0; i < entryCount; ++i) {
+			String path = in.readUTF();
+			long size = in.readLong();
+			long lastModified = in.readLong();
+			byte[] hash = readHash(in);
+			byte[] sourceHash = version >= 2 ? readHash(in) : new byte[0];
+			Map<Integer, Integer> chunkTimestamps = version >= 3 ? readChunkTimestamps(in) : Collections.emptyMap();
+			List<String> members = version >= 4 ? readMembers(in) : Collections.emptyList();
+			String generation = version >= 5 ? in.readUTF() : "";
+			manifest.putEntry(new ManifestEntry(path, size, lastModified, hash, sourceHash, chunkTimestamps, members, generation));
+		}
+		return manifest;
+	}
+
+	public void write(OutputStream outputStream) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream));
+
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(entries.size());
+		for (ManifestEntry entry : entries.values()) {
+			out.writeUTF(entry.getPath());
+			out.writeLong(entry.getSize());
+			out.writeLong(entry.getLastModified());
+			writeHash(out, entry.getHash());
+			writeHash(out, entry.getSourceHash());
+			writeChunkTimestamps(out, entry.getChunkTimestamps());
+			writeMembers(out, entry.getMembers());
+			out.writeUTF(entry.getGeneration());
+		}
+		out.flush();
+	}
+
+	private static byte[] readHash(DataInputStream in) throws IOException {
+		byte[] hash = new byte[in.readUnsignedByte()];
+		in.readFully(hash);
+		return hash;
+	}
+
+	private static void writeHash(DataOutputStream out, byte[] hash) throws IOException {
+		out.writeByte(hash.length);
+		out.write(hash);
+	}
+
+	private static Map<Integer, Integer> readChunkTimestamps(DataInputStream in) throws IOException {
+		Map<Integer, Integer> chunkTimestamps = new TreeMap<>();
+		int chunkCount = in.readUnsignedShort();
+		for (int i = 0; i < chunkCount; ++i) {
+			chunkTimestamps.put(in.readUnsignedShort(), in.readInt());
+		}
+		return chunkTimestamps;
+	}
+
+	private static void writeChunkTimestamps(DataOutputStream out, Map<Integer, Integer> chunkTimestamps) throws IOException {
+		out.writeShort(chunkTimestamps.size());
+		for (Map.Entry<Integer, Integer> chunkTimestamp : chunkTimestamps.entrySet()) {
+			out.writeShort(chunkTimestamp.getKey());
+			out.writeInt(chunkTimestamp.getValue());
+		}
+	}
+
+	private static List<String> readMembers(DataInputStream in) throws IOException {
+		int memberCount = in.readInt();
+		if (memberCount < 0) {
+			throw new ManifestFormatException("Invalid bundle member count " + memberCount);
+		}
+		List<String> members = new ArrayList<>();
+		for (int i = 0; i < memberCount; ++i) {
+			members.add(in.readUTF());
+		}
+		return members;
+	}
+
+	private static void writeMembers(DataOutputStream out, List<String> members) throws IOException {
+		out.writeInt(members.size());
+		for (String member : members) {
+			out.writeUTF(member);
+		}
+	}
+
+	/**
+	 * @return the MD5 of this manifest in its serialized form, to detect whether a remote manifest changed
+	 */
+	public byte[] getDigest() {
+		MessageDigest digest = DigestUtils.getMd5Digest();
+		try (DigestOutputStream out = new DigestOutputStream(NullOutputStream.NULL_OUTPUT_STREAM, digest)) {
+			write(out);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return digest.digest();
+	}
+
+	public Optional<ManifestEntry> getEntry(String path) {
+		return Optional.ofNullable(entries.get(path));
+	}
+
+	public void putEntry(ManifestEntry entry) {
+		entries.put(entry.getPath(), entry);
+	}
+
+	public Collection<ManifestEntry> getEntries() {
+		return Collections.unmodifiableCollection(entries.values());
+	}
+
+	public boolean isEmpty() {
+		return entries.isEmpty();
+	}
+}
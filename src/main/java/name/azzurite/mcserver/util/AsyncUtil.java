@@ -1,7 +1,9 @@
 package name.azzurite.mcserver.util;
 
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 public final class AsyncUtil {
 
@@ -15,6 +17,18 @@ public final class AsyncUtil {
 		}
 	}
 
+	/**
+	 * For the threads that upload the server files, so the server keeps running smoothly while they are uploaded in the background.
+	 */
+	public static ThreadFactory lowPriorityThreads() {
+		ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+		return runnable -> {
+			Thread thread = defaultFactory.newThread(runnable);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		};
+	}
+
 	public static void threadSleep(long millis) {
 		try {
 			Thread.sleep(millis);
@@ -0,0 +1,92 @@
+package name.azzurite.mcserver.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Semaphore;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Limits how many threads read files from the disk at the same time. The files are read in large blocks while holding a permit, so
+ * threads that are busy compressing the block they read do not keep the disk from reading sequentially for the other threads.
+ */
+public class DiskReadLimiter {
+
+	private static final int READ_BLOCK_SIZE = 1048576;
+
+	private final Semaphore permits;
+
+	public DiskReadLimiter(int concurrentReads) {
+		permits = new Semaphore(concurrentReads, true);
+	}
+
+	public InputStream open(File file) throws IOException {
+		return new LimitedFileInputStream(new FileInputStream(file));
+	}
+
+	private class LimitedFileInputStream extends InputStream {
+
+		private final InputStream in;
+
+		private final byte[] buffer = new byte[READ_BLOCK_SIZE];
+
+		private int position;
+
+		private int count;
+
+		private boolean endOfFile;
+
+		LimitedFileInputStream(InputStream in) {
+			this.in = in;
+		}
+
+		private boolean fill() throws IOException {
+			if (position < count) {
+				return true;
+			}
+			if (endOfFile) {
+				return false;
+			}
+			permits.acquireUninterruptibly();
+			try {
+				count = IOUtils.read(in, buffer);
+			} finally {
+				permits.release();
+			}
+			position = 0;
+			endOfFile = count < buffer.length;
+			return count > 0;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return fill() ? (buffer[position++] & 0xFF) : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!fill()) {
+				return -1;
+			}
+			int read = Math.min(len, count - position);
+			System.arraycopy(buffer, position, b, off, read);
+			position += read;
+			return read;
+		}
+
+		@Override
+		public int available() {
+			return count - position;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
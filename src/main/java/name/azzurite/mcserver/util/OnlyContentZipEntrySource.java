@@ -15,9 +15,23 @@ public class OnlyContentZipEntrySource implements ZipEntrySource {
 
 	private final File file;
 
+	private final DiskReadLimiter diskReadLimiter;
+
 	public OnlyContentZipEntrySource(String path, File file) {
+		this(path, file, null);
+	}
+
+	/**
+	 * @param diskReadLimiter limits the concurrent reads of the file, {@code null} to read it without limit
+	 */
+	public OnlyContentZipEntrySource(String path, File file, DiskReadLimiter diskReadLimiter) {
 		this.path = path;
 		this.file = file;
+		this.diskReadLimiter = diskReadLimiter;
+	}
+
+	public File getFile() {
+		return file;
 	}
 
 	@Override
@@ -39,6 +53,9 @@ public class OnlyContentZipEntrySource implements ZipEntrySource {
 	@SuppressWarnings({"OverlyBroadThrowsClause", "ReturnOfNull"})
 	@Override
 	public InputStream getInputStream() throws IOException {
-		return file.isDirectory() ? null : new BufferedInputStream(new FileInputStream(file));
+		if (file.isDirectory()) {
+			return null;
+		}
+		return (diskReadLimiter == null) ? new BufferedInputStream(new FileInputStream(file)) : diskReadLimiter.open(file);
 	}
 }
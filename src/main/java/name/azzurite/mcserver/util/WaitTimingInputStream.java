@@ -0,0 +1,43 @@
+package name.azzurite.mcserver.util;
+
+import java.io.InputStream;
+
+import org.apache.commons.io.input.ProxyInputStream;
+
+/**
+ * Measures the time spent inside the read calls of the underlying stream, i.e. the time waiting for the data to arrive, and counts
+ * the bytes read.
+ */
+public class WaitTimingInputStream extends ProxyInputStream {
+
+	private long waitNanos;
+
+	private long byteCount;
+
+	private long readStart;
+
+	public WaitTimingInputStream(InputStream proxy) {
+		super(proxy);
+	}
+
+	@Override
+	protected void beforeRead(int n) {
+		readStart = System.nanoTime();
+	}
+
+	@Override
+	protected void afterRead(int n) {
+		waitNanos += System.nanoTime() - readStart;
+		if (n > 0) {
+			byteCount += n;
+		}
+	}
+
+	public long getWaitNanos() {
+		return waitNanos;
+	}
+
+	public long getByteCount() {
+		return byteCount;
+	}
+}
@@ -0,0 +1,33 @@
+package name.azzurite.mcserver.util;
+
+import java.io.OutputStream;
+
+import org.apache.commons.io.output.ProxyOutputStream;
+
+/**
+ * Measures the time spent inside the write calls of the underlying stream, i.e. the time waiting for the data to be taken.
+ */
+public class WaitTimingOutputStream extends ProxyOutputStream {
+
+	private long waitNanos;
+
+	private long writeStart;
+
+	public WaitTimingOutputStream(OutputStream proxy) {
+		super(proxy);
+	}
+
+	@Override
+	protected void beforeWrite(int n) {
+		writeStart = System.nanoTime();
+	}
+
+	@Override
+	protected void afterWrite(int n) {
+		waitNanos += System.nanoTime() - writeStart;
+	}
+
+	public long getWaitNanos() {
+		return waitNanos;
+	}
+}
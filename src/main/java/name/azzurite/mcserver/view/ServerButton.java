@@ -47,7 +47,6 @@ public class ServerButton implements NodeRepresentation {
 				startServer();
 				break;
 			case REMOTE_ONLINE:
-			case REMOTE_UPLOADING:
 			case LOCALLY_UPLOADING:
 			case LOCALLY_DOWNLOADING:
 				// do nothing
@@ -65,9 +64,6 @@ public class ServerButton implements NodeRepresentation {
 				serverButton.setText("Start server");
 				serverButton.setDisable(false);
 				break;
-			case REMOTE_UPLOADING:
-				serverButton.setDisable(true);
-				break;
 			case LOCALLY_ONLINE:
 				serverButton.setText("Stop server");
 				serverButton.setDisable(false);
@@ -36,10 +36,6 @@ public class ServerStatusDisplay extends WithRootFXMLNode {
 					serverStatusLabel.setTextFill(Color.RED);
 					serverStatusLabel.setText("Offline");
 					break;
-				case REMOTE_UPLOADING:
-					serverStatusLabel.setTextFill(Color.ORANGE);
-					serverStatusLabel.setText("Upload in progress");
-					break;
 				case LOCALLY_ONLINE:
 					serverStatusLabel.setTextFill(Color.GREEN);
 					serverStatusLabel.setText("Started locally");
@@ -7,28 +7,28 @@ import name.azzurite.mcserver.sync.ServerStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class UploadInProgressOverride extends OverrideButton {
+public class RestoreBackupOverride extends OverrideButton {
 
-	private static final Logger LOGGER = LoggerFactory.getLogger(UploadInProgressOverride.class);
+	private static final Logger LOGGER = LoggerFactory.getLogger(RestoreBackupOverride.class);
 
 	private final LocalServerService localServerService;
 
-	public UploadInProgressOverride(LocalServerService localServerService) {
-		super(ServerStatus.REMOTE_UPLOADING);
+	public RestoreBackupOverride(LocalServerService localServerService) {
+		super(ServerStatus.OFFLINE);
 
 		this.localServerService = localServerService;
 	}
 
 	@FXML
-	private void onRemoveUploadInProgress(ActionEvent event) {
+	private void onRestoreBackup(ActionEvent event) {
 		if (localServerService.isRunning()) {
 			LOGGER.info("Still waiting for other action...");
 			return;
 		}
 
-		LOGGER.info("Removing upload in progress flag...");
+		LOGGER.info("Restoring last backup...");
 		localServerService.reset();
-		localServerService.startRemoveUploadInProgressFlag();
+		localServerService.startRestoreBackup();
 	}
 
 }
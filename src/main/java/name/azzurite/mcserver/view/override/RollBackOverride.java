@@ -7,26 +7,28 @@ import name.azzurite.mcserver.sync.ServerStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class SetOfflineOverride extends OverrideButton {
+public class RollBackOverride extends OverrideButton {
 
-	private static final Logger LOGGER = LoggerFactory.getLogger(SetOfflineOverride.class);
+	private static final Logger LOGGER = LoggerFactory.getLogger(RollBackOverride.class);
 
 	private final LocalServerService localServerService;
 
-	public SetOfflineOverride(LocalServerService localServerService) {
-		super(ServerStatus.REMOTE_ONLINE);
+	public RollBackOverride(LocalServerService localServerService) {
+		super(ServerStatus.OFFLINE);
+
 		this.localServerService = localServerService;
 	}
 
 	@FXML
-	private void onSetOffline(ActionEvent event) {
+	private void onRollBack(ActionEvent event) {
 		if (localServerService.isRunning()) {
 			LOGGER.info("Still waiting for other action...");
 			return;
 		}
 
-		LOGGER.info("Setting server offline...");
+		LOGGER.info("Rolling back the last save...");
 		localServerService.reset();
-		localServerService.startDeleteServerIp();
+		localServerService.startRollBack();
 	}
+
 }
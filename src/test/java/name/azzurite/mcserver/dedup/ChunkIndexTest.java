@@ -0,0 +1,81 @@
+package name.azzurite.mcserver.dedup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import name.azzurite.mcserver.sync.ManifestFormatException;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ChunkIndexTest {
+
+	private static ChunkIndex createIndex() {
+		ChunkIndex index = new ChunkIndex();
+		index.putFile(new IndexedFile("world/level.dat", 30, new byte[] {1, 2, 3}, Arrays.asList(
+				new ChunkRef(DigestUtils.sha256Hex("first"), 0, 10),
+				new ChunkRef(DigestUtils.sha256Hex("second"), 10, 20))));
+		index.putFile(new IndexedFile("empty.txt", 0, DigestUtils.md5(new byte[0]), Collections.emptyList()));
+		return index;
+	}
+
+	private static byte[] serialize(ChunkIndex index) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		index.write(out);
+		return out.toByteArray();
+	}
+
+	@Test
+	public void roundTripKeepsEveryFile() throws IOException {
+		ChunkIndex read = ChunkIndex.read(new ByteArrayInputStream(serialize(createIndex())));
+
+		assertEquals(2, read.getFiles().size());
+		IndexedFile file = read.getFile("world/level.dat").get();
+		assertEquals(30, file.getSize());
+		assertTrue(file.hasHash(new byte[] {1, 2, 3}));
+		assertEquals(2, file.getChunks().size());
+		ChunkRef second = file.getChunks().get(1);
+		assertEquals(DigestUtils.sha256Hex("second"), second.getHash());
+		assertEquals(10, second.getOffset());
+		assertEquals(20, second.getLength());
+		assertTrue(read.getFile("empty.txt").get().getChunks().isEmpty());
+		assertArrayEquals(serialize(createIndex()), serialize(read));
+	}
+
+	@Test
+	public void roundTripOfEmptyIndex() throws IOException {
+		assertTrue(ChunkIndex.read(new ByteArrayInputStream(serialize(new ChunkIndex()))).getFiles().isEmpty());
+	}
+
+	@Test
+	public void rejectsEveryTruncation() throws IOException {
+		byte[] serialized = serialize(createIndex());
+
+		for (int length = 0; length < serialized.length; ++length) {
+			try {
+				ChunkIndex.read(new ByteArrayInputStream(Arrays.copyOf(serialized, length)));
+				fail("Chunk index truncated to " + length + " bytes was read");
+			} catch (ManifestFormatException expected) {
+				// expected
+			}
+		}
+	}
+
+	@Test(expected = ManifestFormatException.class)
+	public void rejectsWrongMagic() throws IOException {
+		byte[] serialized = serialize(createIndex());
+		serialized[0] = 0;
+		ChunkIndex.read(new ByteArrayInputStream(serialized));
+	}
+
+	@Test(expected = ManifestFormatException.class)
+	public void rejectsNegativeFileCount() throws IOException {
+		byte[] serialized = serialize(createIndex());
+		serialized[8] = (byte) 0x80;
+		ChunkIndex.read(new ByteArrayInputStream(serialized));
+	}
+}
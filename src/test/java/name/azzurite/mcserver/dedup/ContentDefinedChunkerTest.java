@@ -0,0 +1,100 @@
+package name.azzurite.mcserver.dedup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ContentDefinedChunkerTest {
+
+	private static byte[] randomBytes(int length) {
+		byte[] data = new byte[length];
+		new Random(42).nextBytes(data);
+		return data;
+	}
+
+	private static List<ChunkRef> chunk(byte[] data) throws IOException {
+		return ContentDefinedChunker.chunk(new ByteArrayInputStream(data));
+	}
+
+	private static void assertCoversContent(byte[] data, List<ChunkRef> chunks) {
+		long offset = 0;
+		for (ChunkRef chunk : chunks) {
+			assertEquals(offset, chunk.getOffset());
+			byte[] content = Arrays.copyOfRange(data, (int) offset, (int) offset + chunk.getLength());
+			assertEquals(DigestUtils.sha256Hex(content), chunk.getHash());
+			offset += chunk.getLength();
+		}
+		assertEquals(data.length, offset);
+	}
+
+	@Test
+	public void emptyContentHasNoChunks() throws IOException {
+		assertTrue(chunk(new byte[0]).isEmpty());
+	}
+
+	@Test
+	public void contentShorterThanMinimumIsOneChunk() throws IOException {
+		byte[] data = randomBytes(ContentDefinedChunker.MIN_CHUNK_SIZE - 1);
+
+		List<ChunkRef> chunks = chunk(data);
+
+		assertEquals(1, chunks.size());
+		assertCoversContent(data, chunks);
+	}
+
+	@Test
+	public void contentOfMinimumSizeIsOneChunk() throws IOException {
+		byte[] data = randomBytes(ContentDefinedChunker.MIN_CHUNK_SIZE);
+
+		List<ChunkRef> chunks = chunk(data);
+
+		assertEquals(1, chunks.size());
+		assertCoversContent(data, chunks);
+	}
+
+	@Test
+	public void chunksStayWithinSizeLimits() throws IOException {
+		byte[] data = randomBytes(4 * 1048576 + 123);
+
+		List<ChunkRef> chunks = chunk(data);
+
+		assertCoversContent(data, chunks);
+		for (ChunkRef chunk : chunks.subList(0, chunks.size() - 1)) {
+			assertTrue(chunk.getLength() >= ContentDefinedChunker.MIN_CHUNK_SIZE);
+			assertTrue(chunk.getLength() <= ContentDefinedChunker.MAX_CHUNK_SIZE);
+		}
+	}
+
+	@Test
+	public void chunksOfUniformContentDoNotExceedMaximumSize() throws IOException {
+		byte[] data = new byte[3 * ContentDefinedChunker.MAX_CHUNK_SIZE];
+
+		List<ChunkRef> chunks = chunk(data);
+
+		assertCoversContent(data, chunks);
+		assertTrue(chunks.stream().allMatch(chunk -> chunk.getLength() <= ContentDefinedChunker.MAX_CHUNK_SIZE));
+	}
+
+	@Test
+	public void insertedBytesKeepTheFollowingChunks() throws IOException {
+		byte[] data = randomBytes(2 * 1048576);
+		byte[] inserted = new byte[data.length + 100];
+		System.arraycopy(data, 0, inserted, 100, data.length);
+
+		Set<String> originalHashes = chunk(data).stream().map(ChunkRef::getHash).collect(Collectors.toSet());
+		Set<String> keptHashes = chunk(inserted).stream().map(ChunkRef::getHash).collect(Collectors.toCollection(HashSet::new));
+		keptHashes.retainAll(originalHashes);
+
+		assertTrue(keptHashes.size() >= originalHashes.size() - 2);
+	}
+}
@@ -0,0 +1,108 @@
+package name.azzurite.mcserver.sync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class BlockSignatureTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path createFile(byte[] content) throws IOException {
+		Path file = folder.newFile().toPath();
+		Files.write(file, content);
+		return file;
+	}
+
+	private static byte[] randomBytes(int length) {
+		byte[] data = new byte[length];
+		new Random(42).nextBytes(data);
+		return data;
+	}
+
+	private static byte[] serialize(BlockSignature signature) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		signature.write(out);
+		return out.toByteArray();
+	}
+
+	@Test
+	public void emptyFileHasNoBlocks() throws IOException {
+		assertEquals(0, BlockSignature.compute(createFile(new byte[0])).getBlockCount());
+	}
+
+	@Test
+	public void fileShorterThanBlockHasNoBlocks() throws IOException {
+		assertEquals(0, BlockSignature.compute(createFile(randomBytes(BlockSignature.BLOCK_SIZE - 1))).getBlockCount());
+	}
+
+	@Test
+	public void onlyFullBlocksAreInTheSignature() throws IOException {
+		assertEquals(3, BlockSignature.compute(createFile(randomBytes(3 * BlockSignature.BLOCK_SIZE + 5))).getBlockCount());
+	}
+
+	@Test
+	public void roundTripKeepsEveryBlock() throws IOException {
+		BlockSignature signature = BlockSignature.compute(createFile(randomBytes(4 * BlockSignature.BLOCK_SIZE)));
+
+		BlockSignature read = BlockSignature.read(new ByteArrayInputStream(serialize(signature)));
+
+		assertEquals(BlockSignature.BLOCK_SIZE, read.getBlockSize());
+		assertEquals(4, read.getBlockCount());
+		assertArrayEquals(serialize(signature), serialize(read));
+	}
+
+	@Test
+	public void locatesMovedBlocks() throws IOException {
+		byte[] base = randomBytes(2 * BlockSignature.BLOCK_SIZE);
+		byte[] moved = new byte[base.length + 3];
+		System.arraycopy(base, BlockSignature.BLOCK_SIZE, moved, 0, BlockSignature.BLOCK_SIZE);
+		System.arraycopy(base, 0, moved, BlockSignature.BLOCK_SIZE + 3, BlockSignature.BLOCK_SIZE);
+		BlockSignature signature = BlockSignature.compute(createFile(base));
+
+		Map<Integer, Long> offsets = signature.locateBlocks(createFile(moved), Arrays.asList(0, 1));
+
+		assertEquals(Long.valueOf(BlockSignature.BLOCK_SIZE + 3), offsets.get(0));
+		assertEquals(Long.valueOf(0), offsets.get(1));
+	}
+
+	@Test
+	public void rejectsEveryTruncation() throws IOException {
+		byte[] serialized = serialize(BlockSignature.compute(createFile(randomBytes(2 * BlockSignature.BLOCK_SIZE))));
+
+		for (int length = 0; length < serialized.length; ++length) {
+			try {
+				BlockSignature.read(new ByteArrayInputStream(Arrays.copyOf(serialized, length)));
+				fail("Block signature truncated to " + length + " bytes was read");
+			} catch (ManifestFormatException expected) {
+				// expected
+			}
+		}
+	}
+
+	@Test(expected = ManifestFormatException.class)
+	public void rejectsWrongMagic() throws IOException {
+		byte[] serialized = serialize(BlockSignature.compute(createFile(new byte[0])));
+		serialized[0] = 0;
+		BlockSignature.read(new ByteArrayInputStream(serialized));
+	}
+
+	@Test(expected = ManifestFormatException.class)
+	public void rejectsNegativeBlockCount() throws IOException {
+		byte[] serialized = serialize(BlockSignature.compute(createFile(new byte[0])));
+		serialized[12] = (byte) 0x80;
+		BlockSignature.read(new ByteArrayInputStream(serialized));
+	}
+}
@@ -0,0 +1,136 @@
+package name.azzurite.mcserver.sync;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.zip.DeflaterOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class FileDeltaTest {
+
+	private static final int BLOCK_SIZE = BlockSignature.BLOCK_SIZE;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path createFile(byte[] content) throws IOException {
+		Path file = folder.newFile().toPath();
+		Files.write(file, content);
+		return file;
+	}
+
+	private static byte[] randomBytes(int length, long seed) {
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	private Path writeDelta(byte[] base, byte[] content) throws IOException {
+		Path delta = folder.newFile().toPath();
+		try (OutputStream out = Files.newOutputStream(delta)) {
+			FileDelta.write(createFile(content), BlockSignature.compute(createFile(base)), out);
+		}
+		return delta;
+	}
+
+	private byte[] applyDelta(Path delta, byte[] base) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (FileChannel baseChannel = FileChannel.open(createFile(base), StandardOpenOption.READ)) {
+			FileDelta.apply(delta, FileDelta.fromBase(baseChannel), out);
+		}
+		return out.toByteArray();
+	}
+
+	private void assertRoundTrip(byte[] base, byte[] content) throws IOException {
+		assertArrayEquals(content, applyDelta(writeDelta(base, content), base));
+	}
+
+	@Test
+	public void roundTripOfUnchangedFile() throws IOException {
+		byte[] base = randomBytes(5 * BLOCK_SIZE + 17, 1);
+
+		assertRoundTrip(base, base);
+	}
+
+	@Test
+	public void roundTripOfInsertedAndChangedBytes() throws IOException {
+		byte[] base = randomBytes(8 * BLOCK_SIZE, 1);
+		byte[] content = new byte[base.length + 100];
+		System.arraycopy(base, 0, content, 0, 3 * BLOCK_SIZE);
+		System.arraycopy(base, 3 * BLOCK_SIZE, content, 3 * BLOCK_SIZE + 100, 5 * BLOCK_SIZE);
+		content[7 * BLOCK_SIZE] ^= 1;
+
+		assertRoundTrip(base, content);
+	}
+
+	@Test
+	public void roundTripOfEmptyFiles() throws IOException {
+		assertRoundTrip(new byte[0], new byte[0]);
+		assertRoundTrip(randomBytes(2 * BLOCK_SIZE, 1), new byte[0]);
+		assertRoundTrip(new byte[0], randomBytes(BLOCK_SIZE - 1, 2));
+	}
+
+	@Test
+	public void referencesOnlyTheCopiedBlocks() throws IOException {
+		byte[] base = randomBytes(4 * BLOCK_SIZE, 1);
+		byte[] content = Arrays.copyOf(base, 4 * BLOCK_SIZE);
+		System.arraycopy(randomBytes(BLOCK_SIZE, 2), 0, content, BLOCK_SIZE, BLOCK_SIZE);
+
+		assertEquals(new TreeSet<>(Arrays.asList(0, 2, 3)), FileDelta.readReferencedBlocks(writeDelta(base, content)));
+	}
+
+	@Test
+	public void rejectsEveryTruncation() throws IOException {
+		byte[] base = randomBytes(4 * BLOCK_SIZE, 1);
+		byte[] content = Arrays.copyOf(base, 5 * BLOCK_SIZE);
+		byte[] delta = Files.readAllBytes(writeDelta(base, content));
+
+		for (int length = 0; length < delta.length; ++length) {
+			Path truncated = createFile(Arrays.copyOf(delta, length));
+			try {
+				applyDelta(truncated, base);
+				fail("Delta truncated to " + length + " bytes was applied");
+			} catch (ManifestFormatException expected) {
+				// expected
+			}
+		}
+	}
+
+	@Test(expected = ManifestFormatException.class)
+	public void rejectsContentThatIsNotDeflated() throws IOException {
+		FileDelta.readReferencedBlocks(createFile(randomBytes(100, 3)));
+	}
+
+	@Test(expected = ManifestFormatException.class)
+	public void rejectsWrongMagic() throws IOException {
+		FileDelta.readReferencedBlocks(createFile(deflate(0, 1, BLOCK_SIZE)));
+	}
+
+	@Test(expected = ManifestFormatException.class)
+	public void rejectsUnknownOperation() throws IOException {
+		FileDelta.readReferencedBlocks(createFile(deflate(0x4D535344, 1, BLOCK_SIZE, 7 << 24)));
+	}
+
+	private static byte[] deflate(int... values) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+			for (int value : values) {
+				out.writeInt(value);
+			}
+		}
+		return bytes.toByteArray();
+	}
+}
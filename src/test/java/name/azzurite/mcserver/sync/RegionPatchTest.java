@@ -0,0 +1,111 @@
+package name.azzurite.mcserver.sync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RegionPatchTest {
+
+	private static RegionPatch createPatch() {
+		Map<Integer, Integer> timestamps = new TreeMap<>();
+		timestamps.put(0, 1500000000);
+		timestamps.put(5, 0);
+		timestamps.put(RegionFile.CHUNK_COUNT - 1, 1500000002);
+		Map<Integer, byte[]> chunks = new TreeMap<>();
+		chunks.put(0, new byte[] {1, 2, 3});
+		chunks.put(RegionFile.CHUNK_COUNT - 1, new byte[0]);
+		return new RegionPatch(timestamps, chunks);
+	}
+
+	private static byte[] serialize(RegionPatch patch) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		patch.write(out);
+		return out.toByteArray();
+	}
+
+	@Test
+	public void roundTripKeepsTimestampsOfChangedAndRemovedChunks() throws IOException {
+		RegionPatch read = RegionPatch.read(new ByteArrayInputStream(serialize(createPatch())));
+
+		assertEquals(createPatch().getTimestamps(), read.getTimestamps());
+		assertArrayEquals(serialize(createPatch()), serialize(read));
+	}
+
+	@Test
+	public void roundTripOfEmptyPatch() throws IOException {
+		RegionPatch empty = new RegionPatch(Collections.emptyMap(), Collections.emptyMap());
+
+		assertTrue(RegionPatch.read(new ByteArrayInputStream(serialize(empty))).getTimestamps().isEmpty());
+	}
+
+	@Test
+	public void rejectsEveryTruncation() throws IOException {
+		byte[] serialized = serialize(createPatch());
+
+		for (int length = 0; length < serialized.length; ++length) {
+			try {
+				RegionPatch.read(new ByteArrayInputStream(Arrays.copyOf(serialized, length)));
+				fail("Region patch truncated to " + length + " bytes was read");
+			} catch (ManifestFormatException expected) {
+				// expected
+			}
+		}
+	}
+
+	@Test(expected = ManifestFormatException.class)
+	public void rejectsWrongMagic() throws IOException {
+		byte[] serialized = serialize(createPatch());
+		serialized[0] = 0;
+		RegionPatch.read(new ByteArrayInputStream(serialized));
+	}
+
+	@Test(expected = ManifestFormatException.class)
+	public void rejectsNegativeChunkCount() throws IOException {
+		byte[] serialized = serialize(createPatch());
+		serialized[8] = (byte) 0x80;
+		RegionPatch.read(new ByteArrayInputStream(serialized));
+	}
+
+	@Test(expected = ManifestFormatException.class)
+	public void rejectsChunkOutsideOfRegion() throws IOException {
+		byte[] serialized = serialize(createPatch());
+		serialized[12] = (byte) 0xFF;
+		RegionPatch.read(new ByteArrayInputStream(serialized));
+	}
+
+	@Test
+	public void changedChunksContainNewChangedAndRemovedChunks() {
+		Map<Integer, Integer> base = new TreeMap<>();
+		base.put(1, 100);
+		base.put(2, 200);
+		base.put(3, 300);
+		Map<Integer, Integer> current = new TreeMap<>();
+		current.put(1, 100);
+		current.put(2, 201);
+		current.put(4, 400);
+
+		Map<Integer, Integer> changed = RegionPatch.getChangedChunks(current, base);
+
+		Map<Integer, Integer> expected = new TreeMap<>();
+		expected.put(2, 201);
+		expected.put(3, 0);
+		expected.put(4, 400);
+		assertEquals(expected, changed);
+		assertEquals(current, RegionPatch.applyTimestamps(base, changed));
+	}
+
+	@Test
+	public void unchangedRegionHasNoChangedChunks() {
+		Map<Integer, Integer> timestamps = Collections.singletonMap(7, 700);
+
+		assertTrue(RegionPatch.getChangedChunks(timestamps, timestamps).isEmpty());
+	}
+}
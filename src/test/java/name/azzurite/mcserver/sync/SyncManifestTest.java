@@ -0,0 +1,115 @@
+package name.azzurite.mcserver.sync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SyncManifestTest {
+
+	private static ManifestEntry createEntry(String path) {
+		Map<Integer, Integer> chunkTimestamps = new TreeMap<>();
+		chunkTimestamps.put(0, 1500000000);
+		chunkTimestamps.put(1023, 1500000001);
+		return new ManifestEntry(path, 1234, 5678, new byte[] {1, 2, 3}, new byte[] {4, 5}, chunkTimestamps,
+				Arrays.asList("world/level.dat", "world/data/villages.dat"), "20261017T120000Z-00ff");
+	}
+
+	private static byte[] serialize(SyncManifest manifest) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		manifest.write(out);
+		return out.toByteArray();
+	}
+
+	@Test
+	public void roundTripKeepsEveryField() throws IOException {
+		SyncManifest manifest = new SyncManifest();
+		manifest.putEntry(createEntry("world/region/r.0.0.mca.zip"));
+		manifest.putEntry(new ManifestEntry("legacy.zip", 0, 0, new byte[0], new byte[0], Collections.emptyMap(),
+				Collections.emptyList(), ""));
+
+		SyncManifest read = SyncManifest.read(new ByteArrayInputStream(serialize(manifest)));
+
+		assertEquals(2, read.getEntries().size());
+		ManifestEntry entry = read.getEntry("world/region/r.0.0.mca.zip").get();
+		assertEquals(1234, entry.getSize());
+		assertEquals(5678, entry.getLastModified());
+		assertTrue(entry.hasHash(new byte[] {1, 2, 3}));
+		assertTrue(entry.hasSourceHash(new byte[] {4, 5}));
+		assertEquals(createEntry("").getChunkTimestamps(), entry.getChunkTimestamps());
+		assertEquals(Arrays.asList("world/level.dat", "world/data/villages.dat"), entry.getMembers());
+		assertEquals("20261017T120000Z-00ff", entry.getGeneration());
+		assertEquals("", read.getEntry("legacy.zip").get().getGeneration());
+		assertArrayEquals(manifest.getDigest(), read.getDigest());
+	}
+
+	@Test
+	public void roundTripOfEmptyManifest() throws IOException {
+		assertTrue(SyncManifest.read(new ByteArrayInputStream(serialize(new SyncManifest()))).isEmpty());
+	}
+
+	@Test
+	public void readsVersionOneEntries() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0x4D53534D);
+		out.writeInt(1);
+		out.writeInt(1);
+		out.writeUTF("server.properties");
+		out.writeLong(10);
+		out.writeLong(20);
+		out.writeByte(1);
+		out.writeByte(7);
+
+		ManifestEntry entry = SyncManifest.read(new ByteArrayInputStream(bytes.toByteArray())).getEntry("server.properties").get();
+
+		assertTrue(entry.hasHash(new byte[] {7}));
+		assertEquals(0, entry.getSourceHash().length);
+		assertEquals("", entry.getGeneration());
+	}
+
+	@Test
+	public void rejectsEveryTruncation() throws IOException {
+		SyncManifest manifest = new SyncManifest();
+		manifest.putEntry(createEntry("a.zip"));
+		byte[] serialized = serialize(manifest);
+
+		for (int length = 0; length < serialized.length; ++length) {
+			try {
+				SyncManifest.read(new ByteArrayInputStream(Arrays.copyOf(serialized, length)));
+				fail("Manifest truncated to " + length + " bytes was read");
+			} catch (ManifestFormatException expected) {
+				// expected
+			}
+		}
+	}
+
+	@Test(expected = ManifestFormatException.class)
+	public void rejectsWrongMagic() throws IOException {
+		byte[] serialized = serialize(new SyncManifest());
+		serialized[0] = 0;
+		SyncManifest.read(new ByteArrayInputStream(serialized));
+	}
+
+	@Test(expected = ManifestFormatException.class)
+	public void rejectsNewerVersion() throws IOException {
+		byte[] serialized = serialize(new SyncManifest());
+		serialized[7] = 6;
+		SyncManifest.read(new ByteArrayInputStream(serialized));
+	}
+
+	@Test(expected = ManifestFormatException.class)
+	public void rejectsNegativeEntryCount() throws IOException {
+		byte[] serialized = serialize(new SyncManifest());
+		serialized[8] = (byte) 0x80;
+		SyncManifest.read(new ByteArrayInputStream(serialized));
+	}
+}